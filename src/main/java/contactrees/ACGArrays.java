@@ -0,0 +1,167 @@
+package contactrees;
+
+import java.util.Arrays;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * Primitive (struct-of-arrays) view of a ConversionGraph for hot loops which
+ * should neither chase Node/Conversion references nor allocate iterators.
+ * Nodes are indexed by their number, conversions by a dense slot in
+ * [0, getConvCount()) (the iteration order of the ConversionList).
+ *
+ * The view is owned and kept up to date by the ConversionGraph (see
+ * ConversionGraph.getArrays()). It must not be modified by its consumers
+ * and is only valid until the next edit of the ACG.
+ *
+ * @author Nico Neureiter
+ */
+public class ACGArrays {
+
+    protected int nodeCount, leafNodeCount, rootNr;
+    protected int[] parent = new int[0], left = new int[0], right = new int[0];
+    protected double[] height = new double[0];
+
+    protected int convCount;
+    protected int[] convID = new int[0], convNode1 = new int[0], convNode2 = new int[0];
+    protected double[] convHeight = new double[0], sortedConvHeights = new double[0];
+
+    /**
+     * Rebuild the view from the current state of the ACG. The arrays are only
+     * reallocated when the number of nodes or conversions exceeds their capacity.
+     */
+    protected void update(ConversionGraph acg) {
+        nodeCount = acg.getNodeCount();
+        leafNodeCount = acg.getLeafNodeCount();
+        if (parent.length < nodeCount) {
+            parent = new int[nodeCount];
+            left = new int[nodeCount];
+            right = new int[nodeCount];
+            height = new double[nodeCount];
+        }
+
+        Node[] nodes = acg.getNodesAsArray();
+        for (int i=0; i<nodeCount; i++) {
+            Node node = nodes[i];
+            height[i] = node.getHeight();
+
+            if (node.isRoot()) {
+                parent[i] = -1;
+                rootNr = i;
+            } else {
+                parent[i] = node.getParent().getNr();
+            }
+
+            if (node.isLeaf()) {
+                left[i] = -1;
+                right[i] = -1;
+            } else {
+                left[i] = node.getChild(0).getNr();
+                right[i] = node.getChild(1).getNr();
+            }
+        }
+
+        convCount = acg.getConvCount();
+        if (convID.length < convCount) {
+            int capacity = Math.max(convCount, 2*convID.length);
+            convID = new int[capacity];
+            convNode1 = new int[capacity];
+            convNode2 = new int[capacity];
+            convHeight = new double[capacity];
+            sortedConvHeights = new double[capacity];
+        }
+
+        int slot = 0;
+        for (Conversion conv : acg.getConversions()) {
+            convID[slot] = conv.getID();
+            convNode1[slot] = conv.getNode1().getNr();
+            convNode2[slot] = conv.getNode2().getNr();
+            convHeight[slot] = conv.getHeight();
+            slot++;
+        }
+
+        System.arraycopy(convHeight, 0, sortedConvHeights, 0, convCount);
+        Arrays.sort(sortedConvHeights, 0, convCount);
+    }
+
+    /*
+     * Clonal frame
+     */
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafNodeCount() {
+        return leafNodeCount;
+    }
+
+    public int getRootNr() {
+        return rootNr;
+    }
+
+    /**
+     * @return number of the parent of node nr, or -1 for the root.
+     */
+    public int getParent(int nr) {
+        return parent[nr];
+    }
+
+    /**
+     * @return number of the first child of node nr, or -1 for leaves.
+     */
+    public int getLeft(int nr) {
+        return left[nr];
+    }
+
+    /**
+     * @return number of the second child of node nr, or -1 for leaves.
+     */
+    public int getRight(int nr) {
+        return right[nr];
+    }
+
+    public double getHeight(int nr) {
+        return height[nr];
+    }
+
+    /**
+     * @return the node heights by node number (the array may be longer than getNodeCount()).
+     */
+    public double[] getHeights() {
+        return height;
+    }
+
+    /*
+     * Conversions
+     */
+
+    public int getConvCount() {
+        return convCount;
+    }
+
+    public int getConvID(int slot) {
+        return convID[slot];
+    }
+
+    public int getConvNode1(int slot) {
+        return convNode1[slot];
+    }
+
+    public int getConvNode2(int slot) {
+        return convNode2[slot];
+    }
+
+    public double getConvHeight(int slot) {
+        return convHeight[slot];
+    }
+
+    /**
+     * @return the conversion heights in increasing order (only the first
+     * getConvCount() entries are valid).
+     */
+    public double[] getSortedConvHeights() {
+        return sortedConvHeights;
+    }
+
+}
@@ -0,0 +1,391 @@
+package contactrees;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * Self-contained copy of the state of a ConversionGraph and its BlockSet in
+ * primitive arrays: the clonal frame (by node number), the conversions and
+ * the moves of all blocks. A snapshot is cheap to capture (one pass over the
+ * nodes, conversions and moves) and does not reference any Node, Conversion
+ * or Block, so it can be processed on another thread while the chain
+ * continues. Conversions are stored in the iteration order of the
+ * ConversionList.
+ *
+ * Snapshots can be written to and read from a compact binary format and
+ * applied to an ACG with the same taxa and blocks, e.g. to resume a run.
+ * The arrays are reused when a snapshot is captured again.
+ *
+ * @author Nico Neureiter
+ */
+public class ACGSnapshot {
+
+    static final int MAGIC = 0x43544350;  // "CTCP"
+    static final int FORMAT_VERSION = 1;
+
+    protected long sample;
+
+    protected int nodeCount, leafNodeCount, rootNr;
+    protected int[] parent = new int[0], left = new int[0], right = new int[0];
+    protected double[] height = new double[0];
+    protected String[] nodeIDs = new String[0];
+
+    protected int convCount;
+    protected int[] convID = new int[0], convNode1 = new int[0], convNode2 = new int[0];
+    protected double[] convHeight = new double[0];
+
+    // The moves of block b are moveConvIDs[moveOffsets[b]..moveOffsets[b+1])
+    protected int blockCount;
+    protected String[] blockIDs = new String[0];
+    protected int[] moveOffsets = new int[1];
+    protected int[] moveConvIDs = new int[0];
+
+    /**
+     * Copy the current state of the ACG and the blocks into this snapshot.
+     * @param acg The conversion graph.
+     * @param blockSet The blocks (may be null).
+     * @param sample The sample number of the state.
+     * @return this snapshot.
+     */
+    public ACGSnapshot capture(ConversionGraph acg, BlockSet blockSet, long sample) {
+        this.sample = sample;
+
+        Node[] nodes = acg.getNodesAsArray();
+        nodeCount = acg.getNodeCount();
+        leafNodeCount = acg.getLeafNodeCount();
+        rootNr = acg.getRoot().getNr();
+        if (left.length < nodeCount) {
+            parent = new int[nodeCount];
+            left = new int[nodeCount];
+            right = new int[nodeCount];
+            height = new double[nodeCount];
+            nodeIDs = new String[nodeCount];
+        }
+        for (int i=0; i<nodeCount; i++) {
+            Node node = nodes[i];
+            height[i] = node.getHeight();
+            nodeIDs[i] = node.getID();
+            parent[i] = node.isRoot() ? -1 : node.getParent().getNr();
+            if (node.isLeaf()) {
+                left[i] = -1;
+                right[i] = -1;
+            } else {
+                left[i] = node.getChild(0).getNr();
+                right[i] = node.getChild(1).getNr();
+            }
+        }
+
+        convCount = acg.getConvCount();
+        if (convID.length < convCount) {
+            int capacity = Math.max(convCount, 2*convID.length);
+            convID = new int[capacity];
+            convNode1 = new int[capacity];
+            convNode2 = new int[capacity];
+            convHeight = new double[capacity];
+        }
+        int slot = 0;
+        for (Conversion conv : acg.getConversions()) {
+            convID[slot] = conv.getID();
+            convNode1[slot] = conv.getNode1().getNr();
+            convNode2[slot] = conv.getNode2().getNr();
+            convHeight[slot] = conv.getHeight();
+            slot++;
+        }
+
+        blockCount = (blockSet == null) ? 0 : blockSet.getBlockCount();
+        if (blockIDs.length < blockCount) {
+            blockIDs = new String[blockCount];
+            moveOffsets = new int[blockCount + 1];
+        }
+        int moveCount = 0;
+        for (int b=0; b<blockCount; b++)
+            moveCount += blockSet.get(b).convIDs.size();
+        if (moveConvIDs.length < moveCount)
+            moveConvIDs = new int[Math.max(moveCount, 2*moveConvIDs.length)];
+
+        int offset = 0;
+        for (int b=0; b<blockCount; b++) {
+            Block block = blockSet.get(b);
+            blockIDs[b] = block.getID();
+            moveOffsets[b] = offset;
+            for (int i=0; i<block.convIDs.size(); i++)
+                moveConvIDs[offset++] = block.convIDs.get(i);
+        }
+        moveOffsets[blockCount] = offset;
+
+        return this;
+    }
+
+    /**
+     * Set the ACG and the blocks to the state of this snapshot. The ACG must
+     * have the same taxa (node numbers) and the block set the same blocks as
+     * the captured ones.
+     * @param acg The conversion graph.
+     * @param blockSet The blocks (may be null).
+     */
+    public void applyTo(ConversionGraph acg, BlockSet blockSet) {
+        if (acg.getNodeCount() != nodeCount || acg.getLeafNodeCount() != leafNodeCount)
+            throw new IllegalArgumentException("The snapshot has " + leafNodeCount
+                    + " leaves, but the ACG has " + acg.getLeafNodeCount() + ".");
+        Node[] nodes = acg.getNodesAsArray();
+        for (int i=0; i<leafNodeCount; i++) {
+            if (nodeIDs[i] != null && !nodeIDs[i].equals(nodes[i].getID()))
+                throw new IllegalArgumentException("Leaf " + i + " of the snapshot is " + nodeIDs[i]
+                        + ", but leaf " + i + " of the ACG is " + nodes[i].getID() + ".");
+        }
+        if (blockSet != null) {
+            if (blockSet.getBlockCount() != blockCount)
+                throw new IllegalArgumentException("The snapshot has " + blockCount
+                        + " blocks, but the block set has " + blockSet.getBlockCount() + ".");
+            for (int b=0; b<blockCount; b++) {
+                if (blockIDs[b] != null && !blockIDs[b].equals(blockSet.get(b).getID()))
+                    throw new IllegalArgumentException("Block " + b + " of the snapshot is " + blockIDs[b]
+                            + ", but block " + b + " of the block set is " + blockSet.get(b).getID() + ".");
+            }
+        }
+
+        // Clonal frame
+        for (Node node : nodes)
+            node.removeAllChildren(false);
+        for (int i=0; i<nodeCount; i++) {
+            nodes[i].setHeight(height[i]);
+            if (left[i] >= 0) {
+                nodes[i].addChild(nodes[left[i]]);
+                nodes[i].addChild(nodes[right[i]]);
+            }
+        }
+        Node root = nodes[rootNr];
+        root.setParent(null);
+        acg.initAfterParsingFromNewick(root, nodes);
+
+        // Conversions
+        acg.removeAllConversions();
+        nodes = acg.getNodesAsArray();
+        for (int c=0; c<convCount; c++)
+            acg.addConversion(new Conversion(nodes[convNode1[c]], nodes[convNode2[c]], convHeight[c], acg, convID[c]));
+        acg.commitJournal();
+        acg.makeDerivedStateDirty();
+
+        // Block moves
+        if (blockSet == null)
+            return;
+        ConversionList convs = acg.getConversions();
+        for (int b=0; b<blockCount; b++) {
+            Block block = blockSet.get(b);
+            block.removeAllMoves();
+            for (int i=moveOffsets[b]; i<moveOffsets[b+1]; i++) {
+                Conversion conv = convs.get(moveConvIDs[i]);
+                if (conv == null)
+                    throw new IllegalArgumentException("Block " + block.getID() + " moves over unknown conversion " + moveConvIDs[i] + ".");
+                block.addMove(conv);
+            }
+        }
+    }
+
+    /*
+     * Binary format
+     */
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(sample);
+
+        out.writeInt(nodeCount);
+        out.writeInt(leafNodeCount);
+        out.writeInt(rootNr);
+        for (int i=0; i<nodeCount; i++) {
+            out.writeDouble(height[i]);
+            out.writeInt(left[i]);
+            out.writeInt(right[i]);
+        }
+        for (int i=0; i<leafNodeCount; i++)
+            writeString(out, nodeIDs[i]);
+
+        out.writeInt(convCount);
+        for (int c=0; c<convCount; c++) {
+            out.writeInt(convID[c]);
+            out.writeInt(convNode1[c]);
+            out.writeInt(convNode2[c]);
+            out.writeDouble(convHeight[c]);
+        }
+
+        out.writeInt(blockCount);
+        for (int b=0; b<blockCount; b++) {
+            writeString(out, blockIDs[b]);
+            out.writeInt(moveOffsets[b+1] - moveOffsets[b]);
+            for (int i=moveOffsets[b]; i<moveOffsets[b+1]; i++)
+                out.writeInt(moveConvIDs[i]);
+        }
+    }
+
+    /**
+     * Read a snapshot written by write() into this snapshot.
+     * @return this snapshot.
+     */
+    public ACGSnapshot read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an ACG snapshot.");
+        int version = in.readInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unsupported ACG snapshot format version " + version + ".");
+        sample = in.readLong();
+
+        nodeCount = in.readInt();
+        leafNodeCount = in.readInt();
+        rootNr = in.readInt();
+        left = new int[nodeCount];
+        right = new int[nodeCount];
+        height = new double[nodeCount];
+        nodeIDs = new String[nodeCount];
+        parent = new int[nodeCount];
+        parent[rootNr] = -1;
+        for (int i=0; i<nodeCount; i++) {
+            height[i] = in.readDouble();
+            left[i] = in.readInt();
+            right[i] = in.readInt();
+        }
+        for (int i=0; i<nodeCount; i++) {
+            if (left[i] >= 0) {
+                parent[left[i]] = i;
+                parent[right[i]] = i;
+            }
+        }
+        for (int i=0; i<leafNodeCount; i++)
+            nodeIDs[i] = readString(in);
+
+        convCount = in.readInt();
+        convID = new int[convCount];
+        convNode1 = new int[convCount];
+        convNode2 = new int[convCount];
+        convHeight = new double[convCount];
+        for (int c=0; c<convCount; c++) {
+            convID[c] = in.readInt();
+            convNode1[c] = in.readInt();
+            convNode2[c] = in.readInt();
+            convHeight[c] = in.readDouble();
+        }
+
+        blockCount = in.readInt();
+        blockIDs = new String[blockCount];
+        moveOffsets = new int[blockCount + 1];
+        int[] moves = new int[16];
+        int offset = 0;
+        for (int b=0; b<blockCount; b++) {
+            blockIDs[b] = readString(in);
+            int n = in.readInt();
+            moveOffsets[b] = offset;
+            if (offset + n > moves.length)
+                moves = Arrays.copyOf(moves, Math.max(offset + n, 2*moves.length));
+            for (int i=0; i<n; i++)
+                moves[offset++] = in.readInt();
+        }
+        moveOffsets[blockCount] = offset;
+        moveConvIDs = moves;
+
+        return this;
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /*
+     * Accessors
+     */
+
+    public long getSample() {
+        return sample;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafNodeCount() {
+        return leafNodeCount;
+    }
+
+    public int getRootNr() {
+        return rootNr;
+    }
+
+    /**
+     * @return number of the parent of node nr, or -1 for the root.
+     */
+    public int getParent(int nr) {
+        return parent[nr];
+    }
+
+    /**
+     * @return number of the first child of node nr, or -1 for leaves.
+     */
+    public int getLeft(int nr) {
+        return left[nr];
+    }
+
+    /**
+     * @return number of the second child of node nr, or -1 for leaves.
+     */
+    public int getRight(int nr) {
+        return right[nr];
+    }
+
+    public double getHeight(int nr) {
+        return height[nr];
+    }
+
+    public String getNodeID(int nr) {
+        return nodeIDs[nr];
+    }
+
+    public int getConvCount() {
+        return convCount;
+    }
+
+    public int getConvID(int slot) {
+        return convID[slot];
+    }
+
+    public int getConvNode1(int slot) {
+        return convNode1[slot];
+    }
+
+    public int getConvNode2(int slot) {
+        return convNode2[slot];
+    }
+
+    public double getConvHeight(int slot) {
+        return convHeight[slot];
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public String getBlockID(int b) {
+        return blockIDs[b];
+    }
+
+    public int getMoveCount(int b) {
+        return moveOffsets[b+1] - moveOffsets[b];
+    }
+
+    /**
+     * @return the conversion ID of the i'th move of block b.
+     */
+    public int getMove(int b, int i) {
+        return moveConvIDs[moveOffsets[b] + i];
+    }
+
+}
@@ -4,19 +4,34 @@
 package contactrees;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import beast.base.core.BEASTObject;
 import beast.base.core.Input;
-import beast.base.core.Loggable;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import contactrees.util.SnapshotLoggable;
 
 /**
- *
+ * Logs summary statistics of the ACG and, optionally, the gene flow between
+ * clades: for every pair of clades (source, target) the number of blocks
+ * which the target clade borrowed from the source clade. The clades are the
+ * clades of a fixed reference topology (by default the clonal frame at the
+ * start of the log), so that the clade pairs are comparable across samples.
+ * Branches whose clade does not exist in the reference topology are
+ * summarised as "other". The gene flow is logged in a single sparse column
+ * "geneFlow" of the form {flow_[s]_to_[t]=count,...}, listing only the
+ * non-zero clade pairs, since the number of possible pairs grows
+ * quadratically with the number of taxa.
  *
  * @author Nico Neureiter
  */
-public class ACGStatsLogger extends BEASTObject implements Loggable {
+public class ACGStatsLogger extends BEASTObject implements SnapshotLoggable<ACGStatsLogger.Stats> {
 
 
 	public Input<ConversionGraph> networkInput = new Input<>(
@@ -27,15 +42,37 @@ public class ACGStatsLogger extends BEASTObject implements Loggable {
 			"blockSet",
 			"The moves each local tree takes along the conversion graph.",
 			Input.Validate.REQUIRED);
-//	public Input<Boolean> logGeneFlowInput = new Input<>(
-//	        "logGeneFlow",
-//	        "Include logs about the gene flow (percentage of blocks borrowed) between different clades of the tree.",
-//	        false);
+	public Input<Boolean> logGeneFlowInput = new Input<>(
+	        "logGeneFlow",
+	        "Include logs about the gene flow (number of blocks borrowed) between different clades of the tree.",
+	        false);
+	public Input<Tree> referenceTreeInput = new Input<>(
+	        "referenceTree",
+	        "Topology defining the clades of the gene flow log (by default the clonal frame at the start of the log).");
 
 	protected ConversionGraph acg;
 	protected BlockSet blockSet;
+
+	// Snapshots which were written and can be reused
+	protected final Queue<Stats> statsPool = new ConcurrentLinkedQueue<>();
 	final protected String[] columnNames = {"rootHeight", "treeLength", "pairedTreeLength", "convCount", "meanConvHeight", "moveCount", "movesPerConv"};
 
+	// Clades of the reference topology, identified by the sum of random keys
+	// of their leaves (sorted, for binary search). Clade index cladeCount
+	// stands for all clades which are not in the reference.
+	protected long[] leafKeys;
+	protected long[] refCladeKeys;
+	protected String[] cladeNames;
+	protected int cladeCount;
+
+	// Scratch arrays of the gene flow computation
+	protected long[] _nodeKeys = new long[0];
+	protected int[] _nodeClades = new int[0];
+	protected long[] _convSlotsByID = new long[0];
+	protected int[] _nodeStamps = new int[0], _firstSlots = new int[0], _touchedNodes = new int[0];
+	protected int[] _flowCounts = new int[0];
+	protected int _stamp;
+
 	@Override
 	public void initAndValidate() {
 		blockSet = blockSetInput.get();
@@ -47,41 +84,92 @@ public class ACGStatsLogger extends BEASTObject implements Loggable {
         for (String column : columnNames)
             out.print(column + "\t");
 
-//        if (logGeneFlowInput.get())
-//            for (CladePair cladePair : getCladePairs(acg))
-//                out.print(cladePair.toString() + "\t");
-
+        if (logGeneFlowInput.get()) {
+            initClades();
+            out.print("geneFlow\t");
+        }
     }
 
     @Override
     public void log(final long sample, final PrintStream out) {
-    	double height = acg.getRoot().getHeight();
-    	double treeLength = acg.getClonalFrameLength();
-    	double pairedTreeLength = acg.getClonalFramePairedLength();
-    	int nConv = acg.getConvCount();
-    	int moveCount = blockSet.countMoves();
-    	double meanConvHeight = 0;
-    	double movesPerConv = 0;
-        if (nConv > 0) {
-            meanConvHeight = meanConvHeight(acg);
-            movesPerConv = (double) moveCount / nConv;
+        Stats stats = takeSnapshot(sample);
+        logSnapshot(stats, out);
+        releaseSnapshot(stats);
+    }
+
+    /*
+     * SnapshotLoggable implementation
+     */
+
+    /**
+     * Statistics of the ACG in one sample.
+     */
+    public static class Stats {
+        protected double height, treeLength, pairedTreeLength, meanConvHeight, movesPerConv;
+        protected int nConv, moveCount;
+
+        // Non-zero gene flow counts by clade pair (source * (cladeCount+1) + target)
+        protected int flowEntries;
+        protected int[] flowPairs = new int[0], flowCounts = new int[0];
+    }
+
+    @Override
+    public Stats takeSnapshot(long sample) {
+        Stats stats = statsPool.poll();
+        if (stats == null)
+            stats = new Stats();
+
+        stats.height = acg.getRoot().getHeight();
+        stats.treeLength = acg.getClonalFrameLength();
+        stats.pairedTreeLength = acg.getClonalFramePairedLength();
+        stats.nConv = acg.getConvCount();
+        stats.moveCount = blockSet.countMoves();
+        stats.meanConvHeight = 0;
+        stats.movesPerConv = 0;
+        if (stats.nConv > 0) {
+            stats.meanConvHeight = meanConvHeight(acg);
+            stats.movesPerConv = (double) stats.moveCount / stats.nConv;
         }
 
-        out.print(height + "\t" + treeLength + "\t" + pairedTreeLength + "\t" + nConv + "\t" + meanConvHeight + "\t" + moveCount + "\t" + movesPerConv + "\t");
-
-//        if (logGeneFlowInput.get()) {
-//            HashMultiset<String> geneFlows = HashMultiset.create();
-//            HashMultimap<Node, Integer> branchedOut = HashMultimap.create();
-//            for (Conversion conv : acg.getConversions().asSortedArray()) {
-//                CladePair cladePair = new CladePair(conv);
-//                for (int iBlock : blockSet.getAffectedBlockIDs(conv)) {
-//                    if (!branchedOut.containsEntry(cladePair.target, iBlock)) {
-//                        branchedOut.put(cladePair.target, iBlock);
-//                        geneFlows.add(cladePair.toString());
-//                    }
-//                }
-//            }
-//        }
+        stats.flowEntries = 0;
+        if (logGeneFlowInput.get()) {
+            countGeneFlow();
+            for (int pair=0; pair<_flowCounts.length; pair++) {
+                if (_flowCounts[pair] == 0)
+                    continue;
+                if (stats.flowEntries == stats.flowPairs.length) {
+                    int capacity = Math.max(8, 2*stats.flowEntries);
+                    stats.flowPairs = Arrays.copyOf(stats.flowPairs, capacity);
+                    stats.flowCounts = Arrays.copyOf(stats.flowCounts, capacity);
+                }
+                stats.flowPairs[stats.flowEntries] = pair;
+                stats.flowCounts[stats.flowEntries] = _flowCounts[pair];
+                stats.flowEntries++;
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public void logSnapshot(Stats stats, PrintStream out) {
+        out.print(stats.height + "\t" + stats.treeLength + "\t" + stats.pairedTreeLength + "\t" + stats.nConv + "\t"
+                + stats.meanConvHeight + "\t" + stats.moveCount + "\t" + stats.movesPerConv + "\t");
+
+        if (logGeneFlowInput.get()) {
+            // Sparse format: only the non-zero clade pairs are written
+            StringBuilder sb = new StringBuilder("{");
+            for (int i=0; i<stats.flowEntries; i++) {
+                if (i > 0)
+                    sb.append(",");
+                sb.append(getCladePairName(stats.flowPairs[i])).append("=").append(stats.flowCounts[i]);
+            }
+            out.print(sb.append("}\t"));
+        }
+    }
+
+    @Override
+    public void releaseSnapshot(Stats stats) {
+        statsPool.add(stats);
     }
 
 	protected double meanConvHeight(ConversionGraph acg) {
@@ -98,42 +186,156 @@ public class ACGStatsLogger extends BEASTObject implements Loggable {
     }
 
     /*
-     * CLADE PAIR CLASS FOR CONVENIENCE
+     * GENE FLOW
      */
 
-    class CladePair {
+    /**
+     * Identify the clades of the reference topology. Each leaf gets a random
+     * 64 bit key, a clade is identified by the sum of the keys of its leaves.
+     */
+    protected void initClades() {
+        Tree reference = referenceTreeInput.get();
+        Node refRoot = (reference != null) ? reference.getRoot() : acg.getRoot();
 
-        Node source, target;
+        Map<String, Integer> leafNrs = new HashMap<>();
+        for (Node leaf : acg.getExternalNodes())
+            leafNrs.put(leaf.getID(), leaf.getNr());
 
-        public CladePair(Node target, Node source) {
-            this.target = target;
-            this.source = source;
-        }
+        // Fixed seed: the keys must not depend on (or consume) the random state of the chain
+        Random random = new Random(1);
+        leafKeys = new long[acg.getLeafNodeCount()];
+        for (int i=0; i<leafKeys.length; i++)
+            leafKeys[i] = random.nextLong();
 
-        public CladePair(Conversion conv) {
-            this(conv.node1, conv.node2);
+        // The root clade can not be the target or source of a conversion
+        Node[] refNodes = refRoot.getAllChildNodesAndSelf().stream()
+                .filter(node -> !node.isRoot())
+                .toArray(Node[]::new);
+        long[] keys = new long[refNodes.length];
+        for (int i=0; i<refNodes.length; i++) {
+            for (Node leaf : refNodes[i].getAllLeafNodes()) {
+                Integer leafNr = leafNrs.get(leaf.getID());
+                if (leafNr == null)
+                    throw new IllegalArgumentException("Taxon " + leaf.getID() + " of the reference tree is not in the ACG.");
+                keys[i] += leafKeys[leafNr];
+            }
         }
 
-        @Override
-        public String toString() {
-            return "flow_" + source.getNr() + "_to_" + target.getNr();
+        Integer[] order = new Integer[refNodes.length];
+        for (int i=0; i<order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (i, j) -> Long.compare(keys[i], keys[j]));
+
+        cladeCount = refNodes.length;
+        refCladeKeys = new long[cladeCount];
+        cladeNames = new String[cladeCount + 1];
+        for (int i=0; i<cladeCount; i++) {
+            refCladeKeys[i] = keys[order[i]];
+            cladeNames[i] = String.valueOf(refNodes[order[i]].getNr());
         }
+        cladeNames[cladeCount] = "other";
+
+        _flowCounts = new int[(cladeCount + 1) * (cladeCount + 1)];
     }
 
-    public ArrayList<CladePair> getCladePairs(ConversionGraph acg) {
-        ArrayList<CladePair> cladePairs = new ArrayList<>();
+    /**
+     * Count the blocks flowing between each pair of clades into _flowCounts.
+     * For every block and target branch only the lowest conversion counts,
+     * since the lineage of the block left the branch at that conversion.
+     */
+    protected void countGeneFlow() {
+        if (refCladeKeys == null)
+            initClades();
 
-        for (Node source : acg.getNodesAsArray()) {
-            for (Node target : acg.getNodesAsArray()) {
-                if (source == target)
-                    continue;
+        ACGArrays arrays = acg.getArrays();
+        int nodeCount = arrays.nodeCount;
+        if (_nodeKeys.length < nodeCount) {
+            _nodeKeys = new long[nodeCount];
+            _nodeClades = new int[nodeCount];
+            _nodeStamps = new int[nodeCount];
+            _firstSlots = new int[nodeCount];
+            _touchedNodes = new int[nodeCount];
+        }
+
+        // Match the clade of every branch to the reference clades
+        computeNodeKeys(arrays, arrays.rootNr);
+        for (int nr=0; nr<nodeCount; nr++) {
+            int i = Arrays.binarySearch(refCladeKeys, _nodeKeys[nr]);
+            _nodeClades[nr] = (i >= 0) ? i : cladeCount;
+        }
 
-                if (source.isLeaf() && target.isLeaf())
-                    cladePairs.add(new CladePair(target, source));
+        // Sorted (conversion ID, slot) pairs to find the slots of the moves
+        int convCount = arrays.convCount;
+        if (_convSlotsByID.length < convCount)
+            _convSlotsByID = new long[Math.max(convCount, 2*_convSlotsByID.length)];
+        for (int slot=0; slot<convCount; slot++)
+            _convSlotsByID[slot] = ((long) arrays.convID[slot] << 32) | slot;
+        Arrays.sort(_convSlotsByID, 0, convCount);
+
+        Arrays.fill(_flowCounts, 0);
+        for (Block block : blockSet.getBlocks()) {
+            // Find the lowest move of the block on each target branch
+            int stamp = ++_stamp;
+            int nTouched = 0;
+            for (int convID : block.convIDs) {
+                int slot = findSlot(convID, convCount);
+                int target = arrays.convNode1[slot];
+                if (_nodeStamps[target] != stamp) {
+                    _nodeStamps[target] = stamp;
+                    _firstSlots[target] = slot;
+                    _touchedNodes[nTouched++] = target;
+                } else if (arrays.convHeight[slot] < arrays.convHeight[_firstSlots[target]]) {
+                    _firstSlots[target] = slot;
+                }
+            }
+
+            for (int i=0; i<nTouched; i++) {
+                int slot = _firstSlots[_touchedNodes[i]];
+                int source = _nodeClades[arrays.convNode2[slot]];
+                int target = _nodeClades[arrays.convNode1[slot]];
+                _flowCounts[source * (cladeCount + 1) + target]++;
             }
         }
+    }
+
+    protected long computeNodeKeys(ACGArrays arrays, int nr) {
+        if (arrays.left[nr] < 0)
+            _nodeKeys[nr] = leafKeys[nr];
+        else
+            _nodeKeys[nr] = computeNodeKeys(arrays, arrays.left[nr]) + computeNodeKeys(arrays, arrays.right[nr]);
+        return _nodeKeys[nr];
+    }
 
-        return cladePairs;
+    protected int findSlot(int convID, int convCount) {
+        int i = Arrays.binarySearch(_convSlotsByID, 0, convCount, (long) convID << 32);
+        if (i < 0)
+            i = -i - 1;
+        if (i == convCount || (int) (_convSlotsByID[i] >>> 32) != convID)
+            throw new RuntimeException("Block move refers to unknown conversion " + convID + ".");
+        return (int) _convSlotsByID[i];
+    }
+
+    /**
+     * @return name of a clade pair (source * (cladeCount+1) + target), with
+     * clades named by their node number in the reference topology.
+     */
+    public String getCladePairName(int pair) {
+        int source = pair / (cladeCount + 1);
+        int target = pair % (cladeCount + 1);
+        return "flow_" + cladeNames[source] + "_to_" + cladeNames[target];
+    }
+
+    /**
+     * @return gene flow counts of the current state by clade pair name
+     * (only non-zero entries).
+     */
+    public Map<String, Integer> getGeneFlow() {
+        countGeneFlow();
+        Map<String, Integer> geneFlow = new HashMap<>();
+        for (int pair=0; pair<_flowCounts.length; pair++)
+            if (_flowCounts[pair] > 0)
+                geneFlow.put(getCladePairName(pair), _flowCounts[pair]);
+        return geneFlow;
     }
 
     /*
@@ -248,6 +248,7 @@ public class ACGWithBlocks extends ConversionGraph  {
 
         for (Conversion conv : convIDMap.values())
             addConversion(conv);
+        commitJournal();
     }
 
 
@@ -1,21 +1,26 @@
 package contactrees;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.core.Loggable;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.spec.evolution.branchratemodel.Base;
+import contactrees.util.SnapshotLoggable;
 
 @Description("Logs conversion graphs annotated with metadata and/or rates")
-public class ACGWithMetaDataLogger extends BEASTObject implements Loggable {
+public class ACGWithMetaDataLogger extends BEASTObject implements SnapshotLoggable<ACGWithMetaDataLogger.Snapshot> {
 
     public Input<ConversionGraph> networkInput = new Input<>(
             "network",
@@ -32,6 +37,9 @@ public class ACGWithMetaDataLogger extends BEASTObject implements Loggable {
     protected ConversionGraph acg;
     protected BlockSet blockSet;
 
+    // Snapshots which were written and can be reused
+    protected final Queue<Snapshot> snapshotPool = new ConcurrentLinkedQueue<>();
+
     @Override
     public void initAndValidate() {
         blockSet = blockSetInput.get();
@@ -88,154 +96,259 @@ public class ACGWithMetaDataLogger extends BEASTObject implements Loggable {
      * @return Extended Newick string.
      */
     public String getExtendedNewick(boolean includeSiteStats) {
-        Node root = acg.getRoot();
-        Base branchRateModel = clockModelInput.get();
-        return extendedNewickTraverse(root, includeSiteStats, branchRateModel) + ";";
+        StringBuilder sb = new StringBuilder();
+        writeExtendedNewick(sb, includeSiteStats);
+        return sb.append(";").toString();
     }
 
-    private String extendedNewickTraverse(Node node,
-                                          boolean includeBlockStats,
-                                          Base branchRateModel) {
-        ConversionList convs = acg.getConversions();
-        HashMap<Conversion, List<Integer>> affectedBlocks = blockSet.getAffectedBlockIDs();
-
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Write the extended Newick representation of the ACG (without the
+     * terminating ";") directly to the given output, without assembling
+     * the Newick string of the whole ACG in memory.
+     *
+     * @param out output to write the Newick string to
+     * @param includeBlockStats if true, include the names of the affected blocks
+     */
+    public void writeExtendedNewick(Appendable out, boolean includeBlockStats) {
+        Snapshot snapshot = takeSnapshot(0);
+        writeExtendedNewick(snapshot, out, includeBlockStats);
+        releaseSnapshot(snapshot);
+    }
 
+    /**
+     * Write the extended Newick representation of a snapshot of the ACG
+     * (without the terminating ";").
+     */
+    protected void writeExtendedNewick(Snapshot snapshot, Appendable out, boolean includeBlockStats) {
+        ACGSnapshot acgSnapshot = snapshot.acg;
+
+        // Collect the events along every edge of the clonal frame (in one pass)
+        List<List<NewickEvent>> eventsByNode = new ArrayList<>();
+        for (int i=0; i<acgSnapshot.getNodeCount(); i++)
+            eventsByNode.add(new ArrayList<>());
+        for (int c=0; c<acgSnapshot.getConvCount(); c++) {
+            double height = acgSnapshot.getConvHeight(c);
+            eventsByNode.get(acgSnapshot.getConvNode1(c)).add(new NewickEvent(false, height, c));
+            eventsByNode.get(acgSnapshot.getConvNode2(c)).add(new NewickEvent(true, height, c));
+        }
 
-        // Determine sequence of events along this node.
-        class Event {
-            boolean isArrival;
-            double time;
-            Conversion conv;
+        // Ascending block indices by conversion ID
+        HashMap<Integer, List<Integer>> affectedBlocks = new HashMap<>();
+        for (int b=0; b<acgSnapshot.getBlockCount(); b++) {
+            for (int i=0; i<acgSnapshot.getMoveCount(b); i++)
+                affectedBlocks.computeIfAbsent(acgSnapshot.getMove(b, i), k -> new ArrayList<>()).add(b);
+        }
 
-            public Event(boolean isArrival, double time, Conversion conv) {
-                this.isArrival = isArrival;
-                this.time = time;
-                this.conv = conv;
-            }
+        try {
+            extendedNewickTraverse(acgSnapshot.getRootNr(), snapshot, out, eventsByNode, affectedBlocks,
+                    includeBlockStats);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        List<Event> events = new ArrayList<>();
-        for (Conversion conv : convs) {
-            if (conv.node1 == node)
-                events.add(new Event(false, conv.getHeight(), conv));
-            if (conv.node2 == node)
-                events.add(new Event(true, conv.getHeight(), conv));
+    }
+
+    /**
+     * Conversion arrival or departure along an edge of the clonal frame.
+     */
+    private static class NewickEvent {
+        boolean isArrival;
+        double time;
+        int slot;  // index of the conversion in the snapshot
+
+        public NewickEvent(boolean isArrival, double time, int slot) {
+            this.isArrival = isArrival;
+            this.time = time;
+            this.slot = slot;
         }
+    }
 
+    /**
+     * Write the subtree below (and including) the edge above node nr. Each event
+     * along the edge opens a bracket before the subtree and closes it after the
+     * subtree, the youngest event being closest to the node.
+     */
+    private void extendedNewickTraverse(int nr,
+                                        Snapshot snapshot,
+                                        Appendable out,
+                                        List<List<NewickEvent>> eventsByNode,
+                                        HashMap<Integer, List<Integer>> affectedBlocks,
+                                        boolean includeBlockStats) throws IOException {
+        ACGSnapshot acgSnapshot = snapshot.acg;
 
         // Sort events from oldest to youngest.
-        events.sort((Event e1, Event e2) -> {
+        List<NewickEvent> events = eventsByNode.get(nr);
+        events.sort((NewickEvent e1, NewickEvent e2) -> {
             if (e1.time > e2.time) return -1;
             else return 1;
         });
 
-        // Process events.
-
-        int cursor = 0;
-
+        // Branch lengths above each event (and above the node itself)
+        double[] lengths = new double[events.size() + 1];
         double lastTime;
-        if (node.isRoot())
+        int parentNr = acgSnapshot.getParent(nr);
+        if (parentNr < 0)
             lastTime = Double.POSITIVE_INFINITY;
         else
-            lastTime = node.getParent().getHeight();
+            lastTime = acgSnapshot.getHeight(parentNr);
+
+        for (int i=0; i<events.size(); i++) {
+            double time = events.get(i).time;
+            lengths[i] = Double.isInfinite(lastTime) ? 0.0 : lastTime - time;
+            lastTime = time;
+        }
+        lengths[events.size()] = Double.isInfinite(lastTime) ? 0.0 : lastTime - acgSnapshot.getHeight(nr);
+
+        for (int i=0; i<events.size(); i++)
+            out.append('(');
+
+        // Process this node and its children.
+
+        if (acgSnapshot.getLeft(nr) >= 0) {
+            out.append('(');
+            extendedNewickTraverse(acgSnapshot.getLeft(nr), snapshot, out, eventsByNode, affectedBlocks, includeBlockStats);
+            out.append(',');
+            extendedNewickTraverse(acgSnapshot.getRight(nr), snapshot, out, eventsByNode, affectedBlocks, includeBlockStats);
+            out.append(')');
+        }
+
+        String nodeMetaData = "";
+        if (snapshot.nodeMetaData[nr] != null)
+            nodeMetaData += snapshot.nodeMetaData[nr];
+        if (snapshot.hasRates)
+            nodeMetaData += "rate=" + snapshot.rates[nr];
+        if (nodeMetaData.length() > 0)
+            nodeMetaData = "[&" + nodeMetaData + ']';
+        out.append(String.valueOf(nr + Tree.taxaTranslationOffset))
+           .append(nodeMetaData).append(":").append(String.valueOf(lengths[events.size()]));
 
-        for (Event event : events) {
+        // Close the events from youngest to oldest.
 
-            double thisLength;
-            if (Double.isInfinite(lastTime))
-                thisLength = 0.0;
-            else
-                thisLength = lastTime - event.time;
+        for (int i=events.size()-1; i>=0; i--) {
+            NewickEvent event = events.get(i);
+            int convID = acgSnapshot.getConvID(event.slot);
+            double thisLength = lengths[i];
 
             if (event.isArrival) {
+                List<Integer> blockIndices = affectedBlocks.getOrDefault(convID, Collections.emptyList());
                 String meta =  String.format(Locale.ENGLISH,
                         "[&conv=%d, relSize=%.2f",
-                        event.conv.getID(),
-                        affectedBlocks.get(event.conv).size()/(double) blockSet.getBlockCount()
+                        convID,
+                        blockIndices.size()/(double) acgSnapshot.getBlockCount()
                 );
-//                String meta =  String.format(Locale.ENGLISH,
-//                        "[&conv=%d, region={%d,%d}, locus=\"%s\", relSize=%g",
-//                        convs.indexOf(event.conv),
-//                        0, 1, 0, 1.);
 
                 if (includeBlockStats) {
-                    int affectedBlockCount = blockSet.countAffectedBlocks();
+                    List<String> blockNames = new ArrayList<>();
+                    for (int b : blockIndices)
+                        blockNames.add(acgSnapshot.getBlockID(b));
                     meta += String.format(Locale.ENGLISH,
                             ", affectedBlocks=%s",
-                            formatList(blockSet.getAffectedBlockNames(event.conv))
-//                            ", affectedSites=%d, uselessSiteFraction=%g, affectedBlocks=%s",
-//                            affectedBlockCount,
-//                            1.0-affectedBlockFraction,
-//                            formatList(blockSet.getAffectedBlocks(event.conv))
-                            );
+                            formatList(blockNames));
                 }
 
-                if (event.conv.newickMetaDataMiddle != null)
-                    meta += ", " + event.conv.newickMetaDataMiddle;
+                if (snapshot.convMetaDataMiddle[event.slot] != null)
+                    meta += ", " + snapshot.convMetaDataMiddle[event.slot];
 
                 meta += "]";
 
                 String parentMeta;
-                if (event.conv.newickMetaDataTop != null)
-                    parentMeta = "[&" + event.conv.newickMetaDataTop + "]";
+                if (snapshot.convMetaDataTop[event.slot] != null)
+                    parentMeta = "[&" + snapshot.convMetaDataTop[event.slot] + "]";
                 else
                     parentMeta = "";
 
-                sb.insert(cursor, "(,#" + event.conv.getID()
-                        + meta
-                        + ":0.00001" // TODO Fix in IcyTree to avoid this.
-                        + ")"
-                        + parentMeta
-                        + ":" + thisLength);
-                cursor += 1;
+                out.append(",#").append(String.valueOf(convID))
+                   .append(meta)
+                   .append(":0.00001") // TODO Fix in IcyTree to avoid this.
+                   .append(")")
+                   .append(parentMeta)
+                   .append(":").append(String.valueOf(thisLength));
             } else {
                 String meta;
-                if (event.conv.newickMetaDataBottom != null)
-                    meta = "[&" + event.conv.newickMetaDataBottom + "]";
+                if (snapshot.convMetaDataBottom[event.slot] != null)
+                    meta = "[&" + snapshot.convMetaDataBottom[event.slot] + "]";
                 else
                     meta = "";
 
-                sb.insert(cursor, "()#" + event.conv.getID()
-                        + meta
-                        + ":" + thisLength);
-                cursor += 1;
+                out.append(")#").append(String.valueOf(convID))
+                   .append(meta)
+                   .append(":").append(String.valueOf(thisLength));
             }
-
-            lastTime = event.time;
         }
+    }
 
-        // Process this node and its children.
+    @Override
+    public void log(long nSample, PrintStream out) {
+        Snapshot snapshot = takeSnapshot(nSample);
+        logSnapshot(snapshot, out);
+        releaseSnapshot(snapshot);
+    }
+
+    /*
+     * SnapshotLoggable implementation
+     */
+
+    /**
+     * State of the ACG, the blocks and the Newick annotations of one sample.
+     */
+    public static class Snapshot {
+        protected final ACGSnapshot acg = new ACGSnapshot();
+        protected boolean hasRates;
+        protected double[] rates = new double[0];
+        protected String[] nodeMetaData = new String[0];
+        protected String[] convMetaDataBottom = new String[0], convMetaDataMiddle = new String[0], convMetaDataTop = new String[0];
+    }
 
-        if (!node.isLeaf()) {
-            String subtree1 = extendedNewickTraverse(node.getChild(0), includeBlockStats, branchRateModel);
-            String subtree2 = extendedNewickTraverse(node.getChild(1), includeBlockStats, branchRateModel);
-            sb.insert(cursor, "(" + subtree1 + "," + subtree2 + ")");
-            cursor += subtree1.length() + subtree2.length() + 3;
+    @Override
+    public Snapshot takeSnapshot(long sample) {
+        Snapshot snapshot = snapshotPool.poll();
+        if (snapshot == null)
+            snapshot = new Snapshot();
+
+        snapshot.acg.capture(acg, blockSet, sample);
+
+        int nodeCount = acg.getNodeCount();
+        if (snapshot.nodeMetaData.length < nodeCount) {
+            snapshot.rates = new double[nodeCount];
+            snapshot.nodeMetaData = new String[nodeCount];
+        }
+        Base branchRateModel = clockModelInput.get();
+        snapshot.hasRates = branchRateModel != null;
+        Node[] nodes = acg.getNodesAsArray();
+        for (int i=0; i<nodeCount; i++) {
+            Node node = nodes[i];
+            snapshot.nodeMetaData[i] = (node.lengthMetaDataString != null) ? String.valueOf(node.metaDataString) : null;
+            if (branchRateModel != null)
+                snapshot.rates[i] = branchRateModel.getRateForBranch(node);
         }
 
-        double thisLength;
-        if (Double.isInfinite(lastTime))
-            thisLength = 0.0;
-        else
-            thisLength = lastTime - node.getHeight();
+        int convCount = acg.getConvCount();
+        if (snapshot.convMetaDataBottom.length < convCount) {
+            int capacity = Math.max(convCount, 2*snapshot.convMetaDataBottom.length);
+            snapshot.convMetaDataBottom = new String[capacity];
+            snapshot.convMetaDataMiddle = new String[capacity];
+            snapshot.convMetaDataTop = new String[capacity];
+        }
+        int slot = 0;
+        for (Conversion conv : acg.getConversions()) {
+            snapshot.convMetaDataBottom[slot] = conv.newickMetaDataBottom;
+            snapshot.convMetaDataMiddle[slot] = conv.newickMetaDataMiddle;
+            snapshot.convMetaDataTop[slot] = conv.newickMetaDataTop;
+            slot++;
+        }
 
-        String nodeMetaData = "";
-        if (node.lengthMetaDataString != null)
-            nodeMetaData += node.metaDataString;
-        if (branchRateModel != null)
-            nodeMetaData += "rate=" + branchRateModel.getRateForBranch(node);
-        if (nodeMetaData.length() > 0)
-            nodeMetaData = "[&" + nodeMetaData + ']';
-        sb.insert(cursor, (node.getNr() + Tree.taxaTranslationOffset)
-                + nodeMetaData + ":" + thisLength);
+        return snapshot;
+    }
 
-        return sb.toString();
+    @Override
+    public void logSnapshot(Snapshot snapshot, PrintStream out) {
+        out.print("tree STATE_" + snapshot.acg.getSample() + " = [&R] ");
+        writeExtendedNewick(snapshot, out, true);
+        out.print(";");
     }
 
     @Override
-    public void log(long nSample, PrintStream out) {
-        out.print(String.format("tree STATE_%d = [&R] %s",
-                nSample, getExtendedNewick()));
+    public void releaseSnapshot(Snapshot snapshot) {
+        snapshotPool.add(snapshot);
     }
 
     /*
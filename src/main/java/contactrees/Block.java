@@ -26,10 +26,20 @@ public class Block extends StateNode {
     List<Integer> convIDs, convIDsStored;
     protected boolean aheadOfMTree;
 
+    // Incremented on every change of convIDs (allows caches to detect changes
+    // independently of the dirty flags of the state).
+    protected int version;
+
+    // The BlockSet containing this block, which keeps a running total of all moves.
+    protected BlockSet blockSet;
+
     @Override
     public void initAndValidate() {
+        int oldSize = (convIDs == null) ? 0 : convIDs.size();
         convIDs = new ArrayList<Integer>();
         convIDsStored = new ArrayList<>();
+        version++;
+        movesChanged(-oldSize);
     }
 
     /**
@@ -43,6 +53,7 @@ public class Block extends StateNode {
         assert !convIDs.contains(conv.getID());
 
         convIDs.add(conv.getID());
+        movesChanged(1);
     }
 
 
@@ -53,7 +64,8 @@ public class Block extends StateNode {
     public void removeMove(Conversion conv) {
         startEditing(null);
         Integer cID = conv.getID();
-        convIDs.remove(cID);
+        if (convIDs.remove(cID))
+            movesChanged(-1);
         assert !convIDs.contains(cID);
     }
 
@@ -62,16 +74,32 @@ public class Block extends StateNode {
      */
     public void removeAllMoves() {
         startEditing(null);
+        movesChanged(-convIDs.size());
         convIDs.clear();
     }
 
+    /**
+     * Update the running total of moves in the containing BlockSet.
+     * @param delta Change in the number of moves of this block.
+     */
+    protected void movesChanged(int delta) {
+        if (blockSet != null)
+            blockSet.moveCount.addAndGet(delta);
+    }
+
     /**
      * Evaluate whether this block was affected by the given conversion.
      * @param The conversion in question.
      * @return "true" iff the block moved over the conversion.
      */
     public boolean isAffected(Conversion conv) {
-        return convIDs.contains(conv.getID());
+        // Compare unboxed IDs (contains() would box the ID on every call)
+        int convID = conv.getID();
+        for (int i=0; i<convIDs.size(); i++) {
+            if (convIDs.get(i) == convID)
+                return true;
+        }
+        return false;
     }
 
     public int countMoves() {
@@ -121,17 +149,23 @@ public class Block extends StateNode {
     public void assignTo(StateNode other) {
         final Block block = (Block) other;
         block.setID(getID());
+        int oldSize = block.convIDs.size();
         block.convIDs = Util.deepCopyIntegers(convIDs);
         block.convIDsStored = Util.deepCopyIntegers(convIDsStored);
+        block.version++;
+        block.movesChanged(block.convIDs.size() - oldSize);
     }
 
     @Override
     public void assignFrom(StateNode other) {
         aheadOfMTree = true;
+        version++;
         final Block block = (Block) other;
         setID(block.getID());
+        int oldSize = convIDs.size();
         convIDs = Util.deepCopyIntegers(block.convIDs);
         convIDsStored = Util.deepCopyIntegers(block.convIDsStored);
+        movesChanged(convIDs.size() - oldSize);
     }
 
     @Override
@@ -147,15 +181,18 @@ public class Block extends StateNode {
         List<Integer> tmp = convIDs;
         convIDs = convIDsStored;
         convIDsStored = tmp;
+        movesChanged(convIDs.size() - convIDsStored.size());
 
         // Marginal trees are not stored/restored
         //  => restore leads to out-dated MTree
         aheadOfMTree = true;
+        version++;
     }
 
     @Override
     public void startEditing(Operator operator) {
         aheadOfMTree = true;
+        version++;
         super.startEditing(operator);
     }
 
@@ -167,6 +204,13 @@ public class Block extends StateNode {
         return aheadOfMTree;
     }
 
+    /**
+     * @return a counter which changes whenever the moves of this block change.
+     */
+    public int getVersion() {
+        return version;
+    }
+
     @Override
     public void assignFromFragile(StateNode other) {
         assignFrom(other);
@@ -190,8 +234,10 @@ public class Block extends StateNode {
     @Override
     public void fromXML(Node node) {
         // Initialize arrays
+        int oldSize = (convIDs == null) ? 0 : convIDs.size();
         convIDs = new ArrayList<Integer>();
         convIDsStored = new ArrayList<>();
+        version++;
 
         // Get the string representation of the `convIDs` list
         String str = node.getTextContent();
@@ -207,6 +253,7 @@ public class Block extends StateNode {
                 convIDs.add(Integer.parseInt(convID));
             }
         }
+        movesChanged(convIDs.size() - oldSize);
     }
 
     public Block() {
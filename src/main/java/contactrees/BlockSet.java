@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import beast.base.inference.CalculationNode;
 import beast.base.core.Description;
@@ -31,11 +32,16 @@ public class BlockSet extends CalculationNode implements Iterable<Block> {
 	protected ArrayList<Block> blocks;
 	protected ConversionGraph acg;
 
+	// Running total of the moves of all blocks (maintained by the blocks).
+	// Atomic, since blocks may be edited concurrently (see BorrowingOperator).
+	final AtomicInteger moveCount = new AtomicInteger();
+
 	@Override
 	public void initAndValidate() {
 		blocks = blocksInput.get();
 		for (Block block : blocks)
 		    block.initAndValidate();
+		attachBlocks();
 
         if (networkInput.get() != null)
             acg = networkInput.get();
@@ -43,6 +49,19 @@ public class BlockSet extends CalculationNode implements Iterable<Block> {
             assert deferNetworkSpecificationInput.get() == true;
 	}
 
+	/**
+	 * Register this BlockSet with its blocks, so that they keep the running
+	 * total of moves up to date, and recount the moves.
+	 */
+	protected void attachBlocks() {
+	    int count = 0;
+	    for (Block block : blocks) {
+	        block.blockSet = this;
+	        count += block.countMoves();
+	    }
+	    moveCount.set(count);
+	}
+
 	public void setNetwork(ConversionGraph acg) {
 	    this.acg = acg;
 	}
@@ -118,13 +137,38 @@ public class BlockSet extends CalculationNode implements Iterable<Block> {
 		return affectedBlocks;
 	}
 
+	/**
+	 * Count the blocks currently affected by the given conversion.
+	 * @return Number of affected blocks.
+	 */
+	public int countAffectedBlocks(Conversion conv){
+		int n = 0;
+		for (int i = 0; i<blocks.size(); i++) {
+			if (blocks.get(i).isAffected(conv))
+				n++;
+		}
+		return n;
+	}
+
     /**
      * Obtain the blocks currently affected by the given conversion.
      * @return List of affected blocks.
      */
     public List<Block> getAffectedBlocks(Conversion conv){
-        List<Block> affectedBlocks = new ArrayList<>();
-        for (Block block : this) {
+        return getAffectedBlocks(conv, new ArrayList<>());
+    }
+
+    /**
+     * Write the blocks currently affected by the given conversion to the given
+     * list (no allocation, unless the list needs to grow).
+     * @param conv The conversion.
+     * @param affectedBlocks List receiving the affected blocks (cleared first).
+     * @return affectedBlocks
+     */
+    public List<Block> getAffectedBlocks(Conversion conv, List<Block> affectedBlocks){
+        affectedBlocks.clear();
+        for (int i = 0; i<blocks.size(); i++) {
+            Block block = blocks.get(i);
             if (block.isAffected(conv))
                 affectedBlocks.add(block);
         }
@@ -162,6 +206,24 @@ public class BlockSet extends CalculationNode implements Iterable<Block> {
         return affectedBlocksByConv;
     }
 
+    /**
+     * Obtain a hash-map, mapping each conversion ID to the (ascending) indices
+     * of the currently affected blocks. Unlike getAffectedBlockIDs() this is
+     * computed in a single pass over the moves of all blocks. Conversions
+     * without moves are not contained in the map.
+     * @return Map from conversion ID to affected block indices.
+     */
+    public HashMap<Integer, List<Integer>> getAffectedBlockIndicesByConvID(){
+        HashMap<Integer, List<Integer>> affectedBlocksByConvID = new HashMap<>();
+
+        for (int i = 0; i<blocks.size(); i++) {
+            for (int convID : blocks.get(i).getConversionIDs())
+                affectedBlocksByConvID.computeIfAbsent(convID, k -> new ArrayList<>()).add(i);
+        }
+
+        return affectedBlocksByConvID;
+    }
+
     /**
      * Obtain a hash-map, mapping each conversion to the currently affected blocks.
      * @return Map from conversion to affected blocks.
@@ -213,12 +275,21 @@ public class BlockSet extends CalculationNode implements Iterable<Block> {
      * @return Number of moves
      */
     public int countMoves() {
-        int moveCount = 0;
+        int count = moveCount.get();
+        assert count == recountMoves();
+        return count;
+    }
 
+    /**
+     * Count the moves by summing over all blocks (instead of using the running total).
+     *
+     * @return Number of moves
+     */
+    protected int recountMoves() {
+        int count = 0;
         for (Block block : blocks)
-            moveCount += block.countMoves();
-
-        return moveCount;
+            count += block.countMoves();
+        return count;
     }
 
     /**
@@ -282,6 +353,7 @@ public class BlockSet extends CalculationNode implements Iterable<Block> {
 //		bs.initAndValidate();
 //		bs.acg = acg;
 		bs.blocks = blocks;
+		bs.attachBlocks();
 		return bs;
 	}
 
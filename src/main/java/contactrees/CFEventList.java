@@ -1,17 +1,26 @@
 package contactrees;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 
-import javax.management.InvalidAttributeValueException;
-
 import beast.base.evolution.tree.Node;
+import beast.base.util.Randomizer;
 
 /**
  * Maintains an ordered list of events which make up the clonal frame.
  *
+ * The events are stored in parallel primitive arrays (heights, node numbers,
+ * types and lineage counts in event order). They are sorted by an index sort
+ * on primitive keys, which starts from the order of the previous update, so
+ * that rebuilding the list after a local change of the clonal frame is cheap
+ * and allocation-free. Event objects are lightweight views on these arrays.
+ *
+ * Along with the events, the list caches the cumulative volumes of the
+ * intervals between events (for pairwise and linear contact growth) and the
+ * total branch length, so that edge attachments can be sampled and evaluated
+ * in O(log n).
+ *
  * @author Nico Neureiter
  */
 public class CFEventList {
@@ -22,66 +31,50 @@ public class CFEventList {
     public enum EventType {COALESCENCE, SAMPLE }
 
     /**
-     * Class of events on clonal frame.
+     * View on a single event in the list (valid until the next update of the list).
      */
     public static class Event {
-        EventType type;
-        double t;
-        int lineages;
-        Node node;
+        private final CFEventList list;
+        private final int index;
 
-        /**
-         * Construct event object corresponding to chosen CF node.
-         *
-         * @param node chosen CF node
-         */
-        public Event(Node node) {
-            this.fromNode(node);
+        Event(CFEventList list, int index) {
+            this.list = list;
+            this.index = index;
         }
 
-        public void fromNode(Node node) {
-            this.node = node;
-
-            if (node.isLeaf())
-                type = EventType.SAMPLE;
-            else
-                type = EventType.COALESCENCE;
-
-            t = node.getHeight();
+        public double getHeight() {
+            return list.heights[index];
         }
 
-        /**
-         * Construct an event object with only the time defined.
-         * Useful for conducting binary searches over the event list.
-         *
-         * @param t age of the event object
-         */
-        public Event(double t) {
-            this.t = t;
+        public EventType getType() {
+            return list.isSample[index] ? EventType.SAMPLE : EventType.COALESCENCE;
         }
 
-        public double getHeight() {
-            return t;
+        public Node getNode() {
+            return list.acg.getNode(list.nodeNrs[index]);
         }
 
-        public EventType getType() {
-            return type;
+        public int getNodeNr() {
+            return list.nodeNrs[index];
         }
 
-        public Node getNode() {
-            return node;
+        /**
+         * @return position of this event in the (sorted) event list.
+         */
+        public int getIndex() {
+            return index;
         }
 
         /**
          * @return number of lineages _above_ this event.
          */
         public int getLineageCount() {
-            return lineages;
+            return list.lineageCounts[index];
         }
 
         @Override
         public String toString() {
-            return "t: " + t + ", k: " + lineages + ", type: " + type;
+            return "t: " + getHeight() + ", k: " + getLineageCount() + ", type: " + getType();
         }
     }
 
@@ -91,7 +84,34 @@ public class CFEventList {
     private final ConversionGraph acg;
 
     /**
-     * List of events on clonal frame.
+     * Events in increasing order of their heights.
+     */
+    private int nEvents = 0;
+    private double[] heights = new double[0];
+    private int[] nodeNrs = new int[0];
+    private boolean[] isSample = new boolean[0];
+    private int[] lineageCounts = new int[0];
+
+    /**
+     * Cumulative interval volumes: cumulative*Volumes[i] is the total volume of
+     * the intervals below event i (so the last entry is the total volume).
+     */
+    private double[] cumulativePairVolumes = new double[0];
+    private double[] cumulativeLinearVolumes = new double[0];
+    private double clonalFrameLength;
+
+    /**
+     * Sort keys and scratch arrays (indexed by node number). The node heights
+     * and parents are taken from the arrays view of the ACG during an update.
+     */
+    private double[] nodeHeights;
+    private int[] parentNrs;
+    private int[] depths = new int[0];
+    private int[] stack = new int[0];
+    private int[] sortBuffer = new int[0];
+
+    /**
+     * Event views (one per event, reused between updates).
      */
     private final List<Event> events;
     private boolean dirty = true;
@@ -101,8 +121,6 @@ public class CFEventList {
 
         events = new ArrayList<>();
         dirty = true;
-
-        eventDump = new LinkedList<>();
     }
 
     /**
@@ -123,7 +141,7 @@ public class CFEventList {
      * @return Number of events
      */
     public int countEvents() {
-        return events.size();
+        return nEvents;
     }
 
     /**
@@ -133,25 +151,39 @@ public class CFEventList {
         dirty = true;
     }
 
+    /*
+     * Primitive access to the (up to date) events.
+     */
 
-    private final LinkedList<Event> eventDump;
-    int eventDumpMaxSize = 1000;
+    public double getEventHeight(int i) {
+        return heights[i];
+    }
 
-    private void clearEvents() {
-        if (eventDump.size() < eventDumpMaxSize)
-            eventDump.addAll(events);
+    public int getEventNodeNr(int i) {
+        return nodeNrs[i];
+    }
 
-        events.clear();
+    public boolean isSampleEvent(int i) {
+        return isSample[i];
     }
 
-    private Event newEvent(Node node) {
-        if (eventDump.isEmpty()) {
-            return new Event(node);
-        }
+    public int getLineageCount(int i) {
+        return lineageCounts[i];
+    }
 
-        Event event = eventDump.pop();
-        event.fromNode(node);
-        return event;
+    private void ensureCapacity(int n) {
+        if (heights.length >= n)
+            return;
+
+        heights = new double[n];
+        nodeNrs = new int[n];
+        isSample = new boolean[n];
+        lineageCounts = new int[n];
+        cumulativePairVolumes = new double[n];
+        cumulativeLinearVolumes = new double[n];
+        depths = new int[n];
+        stack = new int[n];
+        sortBuffer = new int[n];
     }
 
     /**
@@ -164,68 +196,256 @@ public class CFEventList {
             return;
         }
 
-        clearEvents();
-
-        // Create event list
-        for (Node node : acg.getNodesAsArray()) {
-            Event event = newEvent(node);
-            events.add(event);
+        ACGArrays arrays = acg.getArrays();
+        int n = arrays.nodeCount;
+        ensureCapacity(n);
+
+        // Sort keys
+        nodeHeights = arrays.height;
+        parentNrs = arrays.parent;
+        computeDepths(n);
+
+        // Start from the previous order (usually almost sorted)
+        if (nEvents != n) {
+            for (int i=0; i<n; i++)
+                nodeNrs[i] = i;
+            nEvents = n;
+
+            while (events.size() < n)
+                events.add(new Event(this, events.size()));
+            while (events.size() > n)
+                events.remove(events.size() - 1);
         }
 
         // Sort events in increasing order of their heights
-        Collections.sort(events, (Event o1, Event o2) -> {
-            if (o1.t < o2.t)
-                return -1;
+        sort(0, n);
 
-            if (o2.t < o1.t)
-                return 1;
+        // Fill in event data and compute lineage counts
+        int k = 0;
+        for (int i=0; i<n; i++) {
+            int nr = nodeNrs[i];
+            heights[i] = nodeHeights[nr];
+            isSample[i] = arrays.left[nr] < 0;
 
-            if (o1.getNode().getParent() == o2.getNode())
-                return -1;
-
-            if (o1.getNode() == o2.getNode().getParent())
-                return 1;
-
-            return 0;
-        });
-
-        // Compute lineage counts:
-        int k=0;
-        for (Event event : events) {
-            if (event.type == EventType.SAMPLE)
+            if (isSample[i])
                 k += 1;
             else
                 k -= 1;
+            lineageCounts[i] = k;
+        }
 
-            event.lineages = k;
+        // Accumulate the interval volumes and the length of the clonal frame
+        clonalFrameLength = 0.0;
+        if (n > 0) {
+            cumulativePairVolumes[0] = 0.0;
+            cumulativeLinearVolumes[0] = 0.0;
+        }
+        for (int i=0; i<n-1; i++) {
+            clonalFrameLength += (heights[i+1] - heights[i]) * lineageCounts[i];
+            cumulativePairVolumes[i+1] = cumulativePairVolumes[i] + getIntervalVolume(i, true);
+            cumulativeLinearVolumes[i+1] = cumulativeLinearVolumes[i] + getIntervalVolume(i, false);
         }
 
         dirty = false;
     }
 
+    /**
+     * Compute the depth (number of edges to the root) of every node. Used to
+     * break ties in heights, such that children always precede their parents.
+     */
+    private void computeDepths(int n) {
+        Arrays.fill(depths, 0, n, -1);
+        for (int i=0; i<n; i++) {
+            int top = 0;
+            int j = i;
+            while (depths[j] < 0 && parentNrs[j] >= 0) {
+                stack[top++] = j;
+                j = parentNrs[j];
+            }
+            if (depths[j] < 0)
+                depths[j] = 0;
+
+            while (top > 0) {
+                int c = stack[--top];
+                depths[c] = depths[parentNrs[c]] + 1;
+            }
+        }
+    }
+
+    /**
+     * Order of events: by height, deeper nodes first on ties (children before
+     * parents), then by node number.
+     */
+    private boolean precedes(int nr1, int nr2) {
+        if (nodeHeights[nr1] != nodeHeights[nr2])
+            return nodeHeights[nr1] < nodeHeights[nr2];
+        if (depths[nr1] != depths[nr2])
+            return depths[nr1] > depths[nr2];
+        return nr1 < nr2;
+    }
+
+    /**
+     * Merge sort of nodeNrs[from, to), which runs in linear time on (almost)
+     * sorted input.
+     */
+    private void sort(int from, int to) {
+        if (to - from <= 16) {
+            // Insertion sort for short ranges
+            for (int i=from+1; i<to; i++) {
+                int nr = nodeNrs[i];
+                int j = i;
+                while (j > from && precedes(nr, nodeNrs[j-1])) {
+                    nodeNrs[j] = nodeNrs[j-1];
+                    j--;
+                }
+                nodeNrs[j] = nr;
+            }
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        sort(from, mid);
+        sort(mid, to);
+
+        // Skip the merge if both halves are already in order
+        if (!precedes(nodeNrs[mid], nodeNrs[mid-1]))
+            return;
+
+        System.arraycopy(nodeNrs, from, sortBuffer, from, to - from);
+        int i = from, j = mid;
+        for (int k=from; k<to; k++) {
+            if (j >= to || (i < mid && !precedes(sortBuffer[j], sortBuffer[i])))
+                nodeNrs[k] = sortBuffer[i++];
+            else
+                nodeNrs[k] = sortBuffer[j++];
+        }
+    }
+
+    /**
+     * Get the index of the last event below the given height (or 0 if there is none).
+     * @param height
+     * @return Index of the event.
+     */
+    public int getEventIndexAtHeight(double height) {
+        updateEvents();
+
+        // Binary search for the number of events below height
+        int lo = 0, hi = nEvents;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (heights[mid] < height)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return Math.min(Math.max(lo - 1, 0), nEvents - 1);
+    }
+
     /**
      * Get the last event below the given height.
      * @param height
      * @return
-     * @throws InvalidAttributeValueException
      */
     public Event getEventAtHeight(double height) {
+        return events.get(getEventIndexAtHeight(height));
+    }
+
+    /**
+     * Get the index of the interval (between event i and i+1) containing the
+     * given height. On ties the last event at that height is chosen, so that
+     * the interval has positive length.
+     * @param height
+     * @return Index of the first event of the interval.
+     */
+    public int getIntervalIndexAtHeight(double height) {
         updateEvents();
-        int startIdx = 0;
-        while ((startIdx < events.size()-1) && (events.get(startIdx+1).getHeight()<height))
-            startIdx += 1;
 
-        return events.get(startIdx);
+        // Binary search for the number of events at or below height
+        int lo = 0, hi = nEvents;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (heights[mid] <= height)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return Math.min(Math.max(lo - 1, 0), nEvents - 2);
+    }
+
+    /**
+     * @return Total length of all edges in the clonal frame.
+     */
+    public double getClonalFrameLength() {
+        updateEvents();
+        return clonalFrameLength;
+    }
+
+    /**
+     * @return Sum of the volumes of all intervals (for edgePairVolume this is
+     * the paired length of the clonal frame).
+     */
+    public double getTotalIntervalVolume(boolean edgePairVolume) {
+        updateEvents();
+        if (nEvents == 0)
+            return 0.0;
+        return getCumulativeVolumes(edgePairVolume)[nEvents-1];
+    }
+
+    /**
+     * Get the interval in which the cumulative volume reaches u, i.e. the
+     * interval i with cumulativeVolume(i) <= u < cumulativeVolume(i+1). Drawing
+     * u uniformly from [0, getTotalIntervalVolume()) selects intervals
+     * proportionally to their volume (intervals without volume are never chosen).
+     * @param u Volume in [0, getTotalIntervalVolume()).
+     * @param edgePairVolume
+     * @return Index of the first event of the interval.
+     */
+    public int getIntervalIndexAtVolume(double u, boolean edgePairVolume) {
+        updateEvents();
+        double[] cumulativeVolumes = getCumulativeVolumes(edgePairVolume);
+        double totalVolume = (nEvents == 0) ? 0.0 : cumulativeVolumes[nEvents-1];
+        if (totalVolume <= 0.0)
+            throw new RuntimeException("Can not sample from an empty collection.");
+        if (u >= totalVolume)
+            u = Math.nextDown(totalVolume);
+
+        // Binary search for the first cumulative volume above u
+        int lo = 1, hi = nEvents-1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulativeVolumes[mid] > u)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+
+        return lo - 1;
+    }
+
+    /**
+     * Sample an interval proportionally to its volume.
+     * @param edgePairVolume
+     * @return Index of the first event of the interval.
+     */
+    public int sampleInterval(boolean edgePairVolume) {
+        double u = getTotalIntervalVolume(edgePairVolume) * Randomizer.nextDouble();
+        return getIntervalIndexAtVolume(u, edgePairVolume);
+    }
+
+    private double[] getCumulativeVolumes(boolean edgePairVolume) {
+        return edgePairVolume ? cumulativePairVolumes : cumulativeLinearVolumes;
     }
 
     public double getIntervalVolume(int i, boolean edgePairVolume) {
-        int k = events.get(i).lineages;
+        int k = lineageCounts[i];
 
         // If only a single lineage is active, return volume 0 (important for linear conversion growth)
         if (k == 1)
             return 0;
 
-        double dt = events.get(i+1).t - events.get(i).t;
+        double dt = heights[i+1] - heights[i];
         if (edgePairVolume)
             return dt * k * (k-1);
         else
@@ -237,7 +457,7 @@ public class CFEventList {
     }
 
     public double[] getIntervalVolumes(boolean edgePairVolume) {
-        int nEvents = events.size();
+        updateEvents();
         double[] volumes = new double[nEvents-1];
         for (int i=0; i<nEvents-1; i++) {
             volumes[i] = getIntervalVolume(i, edgePairVolume);
@@ -251,17 +471,18 @@ public class CFEventList {
      * happened when the cfEventList is marked as not dirty.
      */
     protected boolean isConsistent() {
-        for (Event e : events) {
-            int nodeNr = e.node.getNr();
-            Node acgNode = acg.getNode(nodeNr);
+        if (nEvents != acg.getNodeCount())
+            return false;
 
-            // Event node is still in the tree
-            if (acgNode != e.node) {
-                return false;
-            }
+        for (int i=0; i<nEvents; i++) {
+            Node acgNode = acg.getNode(nodeNrs[i]);
 
             // Height is still up to date
-            if (acgNode.getHeight() != e.getHeight())
+            if (acgNode.getHeight() != heights[i])
+                return false;
+
+            // Type is still up to date
+            if (acgNode.isLeaf() != isSample[i])
                 return false;
         }
 
@@ -37,6 +37,19 @@ public class Conversion implements Comparable<Conversion> {
      */
     protected boolean hasStartedEditing = false;
 
+    /**
+     * Epoch of the undo journal in which this conversion was last recorded
+     * (see ConversionJournal).
+     */
+    int journalEpoch = 0;
+
+    /**
+     * Generation of the node arrays of the ACG that node1 and node2 refer to.
+     * A journaled restore swaps the node arrays of the ACG, in which case the
+     * node references are lazily updated (see syncNodes()).
+     */
+    int nodeGeneration = 0;
+
     /**
      * Used by ACGAnnotator to keep track of which conversions belong to which
      * ACGs. (The acg reference can't be used, as ACGAnnotator avoids keeping
@@ -81,6 +94,7 @@ public class Conversion implements Comparable<Conversion> {
      * @return node
      */
     public Node getNode1() {
+        syncNodes();
         return node1;
     }
 
@@ -90,6 +104,7 @@ public class Conversion implements Comparable<Conversion> {
      * @return node
      */
     public Node getNode2() {
+        syncNodes();
         return node2;
     }
 
@@ -118,6 +133,7 @@ public class Conversion implements Comparable<Conversion> {
      */
     public void setNode1(Node node1) {
         startEditing();
+        syncNodes();
         this.node1 = node1;
     }
 
@@ -128,6 +144,7 @@ public class Conversion implements Comparable<Conversion> {
      */
     public void setNode2(Node node2) {
         startEditing();
+        syncNodes();
         this.node2 = node2;
     }
 
@@ -158,6 +175,7 @@ public class Conversion implements Comparable<Conversion> {
      * @return true if specification is valid
      */
     public boolean isValid() {
+        syncNodes();
 //        assert !((node1.getHeight() > height) || (node2.getHeight() > height));
 //        assert !(node1.getParent().getHeight() < height);
 //        assert !(node2.getParent().getHeight() < height);
@@ -194,8 +212,33 @@ public class Conversion implements Comparable<Conversion> {
      */
     public void startEditing() {
         // TODO: hasStartedEditing = true
-        if (acg != null)
-            acg.startEditing(null);
+        if (acg != null) {
+            acg.startEditingConversions();
+            acg.journalModification(this);
+        }
+    }
+
+    /**
+     * Make sure node1 and node2 refer to the current node array of the ACG.
+     * After a journaled restore of the ACG the node arrays are swapped, so
+     * the node references are updated (by node number) when they are accessed.
+     */
+    protected void syncNodes() {
+        if (acg == null || nodeGeneration == acg.nodeGeneration)
+            return;
+
+        if (node1 != null)
+            node1 = acg.getNode(node1.getNr());
+        if (node2 != null)
+            node2 = acg.getNode(node2.getNr());
+        nodeGeneration = acg.nodeGeneration;
+    }
+
+    /**
+     * Force an update of the node references on the next access.
+     */
+    void invalidateNodes() {
+        nodeGeneration = Integer.MIN_VALUE;
     }
 
     /**
@@ -213,8 +256,9 @@ public class Conversion implements Comparable<Conversion> {
     public void copyTo(Conversion copy) {
          copy.setID(id);
 
-        copy.node1 = node1;
-        copy.node2 = node2;
+        copy.node1 = getNode1();
+        copy.node2 = getNode2();
+        copy.nodeGeneration = nodeGeneration;
         copy.height = height;
         copy.acg = acg;
 
@@ -232,9 +276,9 @@ public class Conversion implements Comparable<Conversion> {
 
         Conversion that = (Conversion) o;
 
-        if (!node1.equals(that.node1))
+        if (!getNode1().equals(that.getNode1()))
             return false;
-        if (!node2.equals(that.node2))
+        if (!getNode2().equals(that.getNode2()))
             return false;
         if (Double.compare(that.height, height) != 0)
             return false;
@@ -249,8 +293,8 @@ public class Conversion implements Comparable<Conversion> {
         int result;
         long temp;
         result = acg != null ? acg.hashCode() : 0;
-        result = 31 * result + node1.hashCode();
-        result = 31 * result + node2.hashCode();
+        result = 31 * result + getNode1().hashCode();
+        result = 31 * result + getNode2().hashCode();
         result = 31 * result + id; 				// TODO is this right?
         temp = Double.doubleToLongBits(height);
         result = 31 * result + (int) (temp ^ (temp >>> 32));
@@ -261,7 +305,7 @@ public class Conversion implements Comparable<Conversion> {
     @Override
     public String toString() {
         return String.format("Conversion edge at height %f from node %d to node %d. ",
-                			 height, node1.getNr(), node2.getNr());
+                			 height, getNode1().getNr(), getNode2().getNr());
     }
 
 
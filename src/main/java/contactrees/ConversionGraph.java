@@ -6,7 +6,6 @@ package contactrees;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -40,6 +39,14 @@ public class ConversionGraph extends Tree {
             "dropNewickConvs",
             "Drop the conversions specified in the extended Newick tree.",
             false);
+    public Input<Boolean> journaledStoreInput = new Input<>(
+            "journaledStore",
+            "Keep an undo journal of the changed conversions instead of copying all conversions on store (copy-on-write).",
+            false);
+    public Input<Boolean> validateJournalInput = new Input<>(
+            "validateJournal",
+            "Compare every journaled restore with a full copy of the conversions (slow, for debugging only).",
+            false);
 
 
     /**
@@ -47,11 +54,45 @@ public class ConversionGraph extends Tree {
      */
     protected ConversionList convs, storedConvs;
 
+    /**
+     * Undo journal for the conversions (only used in journaled store mode).
+     */
+    protected ConversionJournal journal;
+
+    /**
+     * Full copy of the stored conversions for validating the journal.
+     */
+    protected ConversionList validationConvs;
+
+    /**
+     * Counts how often the node arrays were swapped in a journaled restore
+     * (conversions use this to update their node references lazily).
+     */
+    protected int nodeGeneration = 0;
+
     /**
      * Clonal frame event list.
      */
     protected CFEventList cfEventList;
 
+    /**
+     * Primitive views of the ACG (see getArrays()). Two buffers are used, so
+     * that the view of the stored state survives a restore.
+     */
+    protected ACGArrays arraysA = new ACGArrays(), arraysB = new ACGArrays();
+    protected ACGArrays arrays = arraysA, storedArrays = arraysA;
+    protected boolean arraysValid = false, storedArraysValid = false;
+
+    /**
+     * Versions of the clonal frame and of the conversions. Every edit assigns
+     * a fresh number and restore() returns to the stored one, so that a
+     * version identifies the state of the respective part of the ACG (used by
+     * likelihoods and priors to skip recalculations).
+     */
+    protected long lastVersion = 0;
+    protected long cfVersion = 0, storedCFVersion = 0;
+    protected long convVersion = 0, storedConvVersion = 0;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
@@ -60,12 +101,50 @@ public class ConversionGraph extends Tree {
         convs = new ConversionList(this);
         storedConvs = new ConversionList(this);
 
+        setJournaledStore(journaledStoreInput.get(), validateJournalInput.get());
 
         if (newickInput.get() != null) {
             fromExtendedNewick(newickInput.get());
         }
 
         cfEventList = new CFEventList(this);
+        commitJournal();
+    }
+
+    /**
+     * Switch between the journaled (copy-on-write) and the full-copy store mode.
+     *
+     * @param journaled if true, only changes to conversions are recorded on store
+     * @param validate if true, journaled restores are compared to a full copy
+     */
+    public void setJournaledStore(boolean journaled, boolean validate) {
+        journal = journaled ? new ConversionJournal() : null;
+        validationConvs = (journaled && validate) ? new ConversionList(null) : null;
+    }
+
+    /**
+     * @return true iff conversions are stored via an undo journal
+     */
+    public boolean isJournaledStore() {
+        return journal != null;
+    }
+
+    /**
+     * Record the values of a conversion before it is changed (journaled store mode only).
+     *
+     * @param conv conversion that is about to change
+     */
+    void journalModification(Conversion conv) {
+        if (journal != null)
+            journal.recordModification(conv);
+    }
+
+    /**
+     * Accept all changes recorded in the journal (if any).
+     */
+    protected void commitJournal() {
+        if (journal != null)
+            journal.commit(convs);
     }
 
     /**
@@ -74,7 +153,7 @@ public class ConversionGraph extends Tree {
      * @param conv conversion events to add
      */
     public void addConversion(Conversion conv) {
-        startEditing(null);
+        startEditingConversions();
 
         conv.setConversionGraph(this);
         convs.add(conv);
@@ -86,7 +165,7 @@ public class ConversionGraph extends Tree {
      * @return The newly created conversion
      */
     public Conversion addNewConversion() {
-        startEditing(null);
+        startEditingConversions();
 
         Conversion conv = convs.addNewConversion();
         conv.setConversionGraph(this);
@@ -99,7 +178,7 @@ public class ConversionGraph extends Tree {
      * @return The newly created conversion
      */
     public Conversion addDuplicateConversion(Conversion original) {
-        startEditing(null);
+        startEditingConversions();
 
         Conversion copy = convs.duplicateConversion(original);
         copy.setConversionGraph(this);
@@ -112,7 +191,7 @@ public class ConversionGraph extends Tree {
      * @param conv conversion to remove.
      */
     public void removeConversion(Conversion conv) {
-        startEditing(null);
+        startEditingConversions();
         convs.remove(conv);
     }
 
@@ -130,7 +209,7 @@ public class ConversionGraph extends Tree {
      * Remove all conversion edges from the graph.
      */
     public void removeAllConversions() {
-        startEditing(null);
+        startEditingConversions();
         convs.clear();
     }
 
@@ -166,81 +245,89 @@ public class ConversionGraph extends Tree {
     }
 
     /**
-     * @return Total length of all edges in clonal frame.
+     * Obtain a primitive (struct-of-arrays) view of the clonal frame and the
+     * conversions. The view is rebuilt lazily after the ACG was edited and
+     * is only valid until the next edit.
+     *
+     * @return arrays view of the current state.
      */
-    public double getClonalFrameLength() {
-        double length = 0.0;
-        for (Node node : m_nodes) {
-            if (node.isRoot())
-                continue;
-            length += node.getLength();
+    public ACGArrays getArrays() {
+        if (!arraysValid) {
+            // Never overwrite the view of the stored state
+            ACGArrays target = (storedArrays == arraysA) ? arraysB : arraysA;
+            target.update(this);
+            arrays = target;
+            arraysValid = true;
         }
-
-        return length;
+        return arrays;
     }
 
     /**
-     * @return Total length of all pairs of edges in clonal frame.
+     * Mark all state derived from the clonal frame and the conversions (CF
+     * event list, arrays view) as outdated. This happens automatically on
+     * edits through startEditing(), but is required after changing the
+     * clonal frame directly (e.g. in state initialisers).
      */
-    public double getClonalFramePairedLength() {
-    	double length = 0.0;
-
-        List<CFEventList.Event> events = getCFEvents();
-        for (int i = 0; i<events.size()-1; i++) {
-        	CFEventList.Event eStart= events.get(i);
-        	CFEventList.Event eEnd = events.get(i+1);
-        	double dt = eEnd.t - eStart.t;
-        	int k = eStart.lineages;
-        	length += dt * k * (k-1);
-        }
-
-        return length;
+    public void makeDerivedStateDirty() {
+        if (cfEventList != null)
+            cfEventList.makeDirty();
+        arraysValid = false;
+        cfVersion = ++lastVersion;
     }
 
-    HashSet<Node> _lineagesAtHeight = new HashSet<>();
     /**
-     * Obtain the set of lineages active at the specified height.
-     * @param height
-     * @return Set of active lineages
+     * @return version of the clonal frame (changes with every edit of the
+     * clonal frame and is reset by restore()).
      */
-    public HashSet<Node> getLineagesAtHeight(double height) {
-        _lineagesAtHeight.clear();
-
-        List<CFEventList.Event> events = getCFEvents();
+    public long getClonalFrameVersion() {
+        return cfVersion;
+    }
 
-        for (int i=0; i<events.size(); i++) {
-            CFEventList.Event event = events.get(i);
-            if (i < events.size()-1)
-                assert event.t <= events.get(i+1).t;
-            if (i < events.size()-1)
-                assert event.getNode().getHeight() <= events.get(i+1).getNode().getHeight();
+    /**
+     * @return version of the conversions (changes with every edit of the
+     * conversions and is reset by restore()).
+     */
+    public long getConversionsVersion() {
+        return convVersion;
+    }
 
-            Node node = event.getNode();
-            assert event.t == node.getHeight();
+    /**
+     * @return Total length of all edges in clonal frame (cached in the
+     * CFEventList until the clonal frame changes).
+     */
+    public double getClonalFrameLength() {
+        return getCFEventList().getClonalFrameLength();
+    }
 
-            if (event.getHeight() > height) {
-                // We found the interval of "height"
-                break;
-            }
+    /**
+     * @return Total length of all pairs of edges in clonal frame (cached in
+     * the CFEventList until the clonal frame changes).
+     */
+    public double getClonalFramePairedLength() {
+        return getCFEventList().getTotalIntervalVolume(true);
+    }
 
-            // Add new node (for COALESCENCE and SAMPLE events)
-            _lineagesAtHeight.add(node);
-            // Remove children on COALESCENCE events
-            if (event.getType() == CFEventList.EventType.COALESCENCE) {
-                for (Node child : node.getChildren()) {
-                    _lineagesAtHeight.remove(child);
-                }
-            } else {
-                assert node.isLeaf();
-            }
+    /**
+     * Write the lineages active at the specified height to the given list
+     * (in order of the node numbers). Does not allocate, unless the list
+     * needs to grow, so callers should pass a reusable buffer.
+     * @param height
+     * @param lineages list receiving the active lineages (cleared first)
+     * @return lineages
+     */
+    public List<Node> getLineagesAtHeight(double height, List<Node> lineages) {
+        lineages.clear();
+        for (int i=0; i<nodeCount; i++) {
+            Node node = m_nodes[i];
+            if (node.getHeight() <= height && (node.isRoot() || node.getParent().getHeight() > height))
+                lineages.add(node);
         }
-
-        return _lineagesAtHeight;
+        return lineages;
     }
 
     public int countLineagesAtHeight(double height) {
     	getCFEvents();
-    	return cfEventList.getEventAtHeight(height).lineages;
+    	return cfEventList.getEventAtHeight(height).getLineageCount();
     }
 
     /**
@@ -335,13 +422,14 @@ public class ConversionGraph extends Tree {
                 convCopy.setNode2(m_nodes[conv.getNode2().getNr()]);
                 convs.convs.put(convCopy.getID(), convCopy);
             }
+            commitJournal();
 
             if (cfEventList == null)
                 cfEventList = new CFEventList(this);
-            else
-                cfEventList.makeDirty();
         }
 
+        makeDerivedStateDirty();
+
 //        nodeCount = m_nodes.length;
 //        initArrays();
         assert !isInvalid();
@@ -371,6 +459,22 @@ public class ConversionGraph extends Tree {
     public void store() {
         super.store();
 
+        storedArrays = arrays;
+        storedArraysValid = arraysValid;
+        storedCFVersion = cfVersion;
+        storedConvVersion = convVersion;
+
+        if (journal != null) {
+            // Only changes from here on are recorded
+            journal.commit(convs);
+
+            if (validationConvs != null) {
+                validationConvs.clear();
+                convs.copyTo(validationConvs);
+            }
+            return;
+        }
+
         // Copy the conversion list
 //        storedConvs = convs.copy();
         storedConvs.clear();
@@ -392,40 +496,90 @@ public class ConversionGraph extends Tree {
     public void restore() {
     	super.restore();
 
+        // The CF event list only needs to be rebuilt if the clonal frame was edited
+        // (without a state, node edits are not tracked, so we can not tell)
+        if (cfVersion != storedCFVersion || state == null)
+            cfEventList.makeDirty();
+        cfVersion = storedCFVersion;
+        convVersion = storedConvVersion;
+
+        if (journal != null) {
+            // The node arrays were swapped -> conversions update their node references lazily
+            nodeGeneration++;
+
+            // Revert all changes since the last store
+            journal.undo(convs);
+
+            if (validationConvs != null && !convs.hasSameConversions(validationConvs))
+                throw new RuntimeException("Journaled restore of conversions differs from the full-copy restore.");
+
+            restoreArrays();
+            assert !isInvalid();
+            return;
+        }
+
         // Swap conversions with storedConversions
         ConversionList tmp = storedConvs;
         storedConvs = convs;
         convs = tmp;
 
-        cfEventList.makeDirty();
+        restoreArrays();
 
         assert !isInvalid();
     }
 
+    protected void restoreArrays() {
+        arrays = storedArrays;
+        arraysValid = storedArraysValid;
+    }
+
     @Override
     public void startEditing(Operator operator) {
         if (state != null)
             super.startEditing(operator);
 
-        if (cfEventList != null)
-            cfEventList.makeDirty();
+        makeDerivedStateDirty();
+    }
+
+    /**
+     * Start editing the conversions only. The clonal frame is not changed, so
+     * the CF event list (and the lengths and volumes cached in it) stay valid.
+     */
+    public void startEditingConversions() {
+        if (state != null)
+            super.startEditing(null);
+
+        arraysValid = false;
+        convVersion = ++lastVersion;
     }
 
+    /**
+     * Scratch buffers of scale() (conversions and their offsets above the lower bound).
+     */
+    Conversion[] _scaleConvs = new Conversion[0];
+    double[] _scaleOffsets = new double[0];
+
     @Override
     public double scale(final double scale) {
-        validateConversions();
+        _scaleConvs = convs.toArray(_scaleConvs);
+        int nConvs = convs.size();
+        if (_scaleOffsets.length < nConvs)
+            _scaleOffsets = new double[_scaleConvs.length];
 
-        Map<Conversion, Double> oldOffsets = new HashMap<>();
-        for (Conversion conv : convs) {
-            oldOffsets.put(conv, conv.getHeight() - getConversionLowerBound(conv));
+        validateConversions(nConvs);
+
+        for (int i=0; i<nConvs; i++) {
+            Conversion conv = _scaleConvs[i];
+            _scaleOffsets[i] = conv.getHeight() - getConversionLowerBound(conv);
         }
 
         double logJacobian = super.scale(scale);
         double logScale = Math.log(scale);
 
-        for (Conversion conv : convs) {
+        for (int i=0; i<nConvs; i++) {
+            Conversion conv = _scaleConvs[i];
             double newLowerBound = getConversionLowerBound(conv);
-            double newHeight = newLowerBound + scale * oldOffsets.get(conv);
+            double newHeight = newLowerBound + scale * _scaleOffsets[i];
             conv.setHeight(newHeight);
 
             if (!conv.isValid()) {
@@ -436,7 +590,7 @@ public class ConversionGraph extends Tree {
             logJacobian += logScale;
         }
 
-        validateConversions();
+        validateConversions(nConvs);
         assert !isInvalid();
         return logJacobian;
     }
@@ -461,8 +615,9 @@ public class ConversionGraph extends Tree {
                         conv.getNode2().getParent().getHeight());
     }
 
-    private void validateConversions() {
-        for (Conversion conv : convs) {
+    private void validateConversions(int nConvs) {
+        for (int i=0; i<nConvs; i++) {
+            Conversion conv = _scaleConvs[i];
             double lowerBound = getConversionLowerBound(conv);
             double upperBound = getConversionUpperBound(conv);
             if (conv.getHeight() < lowerBound || conv.getHeight() > upperBound || !conv.isValid()) {
@@ -715,6 +870,7 @@ public class ConversionGraph extends Tree {
             for (Conversion conv : convIDMap.values())
                 addConversion(conv);
         }
+        commitJournal();
     }
 
     public int _getNodeCount() {
@@ -731,6 +887,7 @@ public class ConversionGraph extends Tree {
 
     public void initTreeArrays() {
     	initArrays();
+    	arraysValid = false;
     }
 
     protected Integer parseConvID(String sConvID) {
@@ -781,9 +938,9 @@ public class ConversionGraph extends Tree {
         }
         List<Event> events = new ArrayList<>();
         for (Conversion conv : convs) {
-            if (conv.node1 == node)
+            if (conv.getNode1() == node)
                 events.add(new Event(false, conv.getHeight(), conv));
-            if (conv.node2 == node)
+            if (conv.getNode2() == node)
                 events.add(new Event(true, conv.getHeight(), conv));
         }
 
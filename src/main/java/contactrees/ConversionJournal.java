@@ -0,0 +1,176 @@
+package contactrees;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * Undo journal for the conversions of a ConversionGraph. Instead of deep-copying
+ * all conversions on every store(), the journal records the previous values of
+ * every conversion the first time it is touched after a store(), as well as all
+ * additions and removals. A restore() then only replays the touched conversions.
+ *
+ * @author Nico Neureiter
+ */
+public class ConversionJournal {
+
+    /**
+     * Types of journal entries.
+     */
+    enum EntryType {MODIFY, ADD, REMOVE}
+
+    /**
+     * A single journal entry, holding the values of a conversion before it was changed.
+     */
+    static class Entry {
+        EntryType type;
+        Conversion conv;
+        Integer id;
+        Node node1, node2;
+        double height;
+        String newickMetaDataBottom, newickMetaDataMiddle, newickMetaDataTop;
+
+        void record(EntryType type, Conversion conv) {
+            this.type = type;
+            this.conv = conv;
+            id = conv.id;
+            node1 = conv.node1;
+            node2 = conv.node2;
+            height = conv.height;
+            newickMetaDataBottom = conv.newickMetaDataBottom;
+            newickMetaDataMiddle = conv.newickMetaDataMiddle;
+            newickMetaDataTop = conv.newickMetaDataTop;
+        }
+
+        void revertValues() {
+            conv.id = id;
+            conv.node1 = node1;
+            conv.node2 = node2;
+            conv.height = height;
+            conv.newickMetaDataBottom = newickMetaDataBottom;
+            conv.newickMetaDataMiddle = newickMetaDataMiddle;
+            conv.newickMetaDataTop = newickMetaDataTop;
+        }
+
+        void clear() {
+            conv = null;
+            node1 = null;
+            node2 = null;
+            newickMetaDataBottom = null;
+            newickMetaDataMiddle = null;
+            newickMetaDataTop = null;
+        }
+    }
+
+    /**
+     * Journal entries (recycled between steps to avoid allocations).
+     */
+    private final List<Entry> entries = new ArrayList<>();
+    private int size = 0;
+
+    /**
+     * The epoch is incremented on every store(). A conversion is only
+     * journaled once per epoch, since only its values at the time of the
+     * last store() are relevant.
+     */
+    private int epoch = 1;
+
+    /**
+     * Conversions which were removed since the last store(). They are only
+     * handed to the trash-can of the ConversionList once the step is accepted,
+     * since a restore() may need to put them back.
+     */
+    private final List<Conversion> removed = new ArrayList<>();
+
+    private Entry nextEntry() {
+        if (size == entries.size())
+            entries.add(new Entry());
+        return entries.get(size++);
+    }
+
+    /**
+     * Record the values of the given conversion before it is changed (only
+     * the first change per epoch is recorded).
+     * @param conv The conversion which is about to be changed.
+     */
+    public void recordModification(Conversion conv) {
+        if (conv.journalEpoch == epoch)
+            return;
+
+        conv.journalEpoch = epoch;
+        nextEntry().record(EntryType.MODIFY, conv);
+    }
+
+    /**
+     * Record that the given conversion was added to the conversion list.
+     * @param conv The new conversion.
+     */
+    public void recordAddition(Conversion conv) {
+        // Changes to a new conversion don't need to be tracked, it is simply removed in a restore.
+        conv.journalEpoch = epoch;
+        nextEntry().record(EntryType.ADD, conv);
+    }
+
+    /**
+     * Record that the given conversion was removed from the conversion list.
+     * @param conv The removed conversion.
+     */
+    public void recordRemoval(Conversion conv) {
+        nextEntry().record(EntryType.REMOVE, conv);
+        removed.add(conv);
+    }
+
+    /**
+     * @return the number of entries in the journal.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Undo all journaled changes on the given conversion list (in reverse order).
+     * @param convList The conversion list to be reverted to the state at the last store().
+     */
+    public void undo(ConversionList convList) {
+        for (int i=size-1; i>=0; i--) {
+            Entry entry = entries.get(i);
+            switch (entry.type) {
+                case ADD:
+                    convList.convs.remove(entry.id);
+                    entry.revertValues();
+                    break;
+                case REMOVE:
+                    entry.revertValues();
+                    convList.convs.put(entry.id, entry.conv);
+                    break;
+                case MODIFY:
+                    entry.revertValues();
+                    break;
+            }
+        }
+
+        removed.clear();
+        reset();
+    }
+
+    /**
+     * Accept all journaled changes and start a new epoch. Removed
+     * conversions are moved to the trash-can of the conversion list.
+     * @param convList The conversion list of the current state.
+     */
+    public void commit(ConversionList convList) {
+        for (Conversion conv : removed)
+            convList.recycle(conv);
+        removed.clear();
+        reset();
+    }
+
+    private void reset() {
+        for (int i=0; i<size; i++)
+            entries.get(i).clear();
+        size = 0;
+        epoch++;
+    }
+
+}
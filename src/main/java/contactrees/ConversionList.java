@@ -93,6 +93,9 @@ public class ConversionList implements Iterable<Conversion> {
 
         convs.put(conv.id, conv);
         _lastAdded = conv;
+
+        if (acg != null && acg.journal != null)
+            acg.journal.recordAddition(conv);
     }
 
 
@@ -131,9 +134,23 @@ public class ConversionList implements Iterable<Conversion> {
 	 */
 	public void remove(Integer key) {
 		startEditing();
+		Conversion conv = convs.remove(key);
+
+		if (acg != null && acg.journal != null)
+		    // The conversion might be put back on restore -> only recycle it once the step is accepted
+		    acg.journal.recordRemoval(conv);
+		else
+		    recycle(conv);
+	}
+
+	/**
+	 * Put a conversion which is no longer used in the trash-can, so that it
+	 * can be reused for new conversions.
+	 * @param conv The unused conversion.
+	 */
+	void recycle(Conversion conv) {
 		if (trashCan.size() < MAX_TRASH_CAN_SIZE)
-		    trashCan.add(convs.get(key));
-		convs.remove(key);
+		    trashCan.add(conv);
 	}
 
 	/**
@@ -160,6 +177,18 @@ public class ConversionList implements Iterable<Conversion> {
 		return convs.values().iterator();
 	}
 
+	/**
+	 * Copy the conversions (in iteration order) into the given buffer. Only
+	 * allocates a new buffer (with some slack) if the given one is too small.
+	 * @param buffer Buffer for the conversions.
+	 * @return The buffer containing the conversions, followed by null.
+	 */
+	public Conversion[] toArray(Conversion[] buffer) {
+		if (buffer.length <= convs.size())
+			buffer = new Conversion[2*convs.size() + 1];
+		return convs.values().toArray(buffer);
+	}
+
 	/**
 	 * Obtain the conversions in the list as a collection (not indexed).
 	 * @return Conversions
@@ -181,10 +210,15 @@ public class ConversionList implements Iterable<Conversion> {
 	 */
 	public void clear() {
 		startEditing();
-		for (Conversion conv : convs.values()) {
-		    if (trashCan.size() >= MAX_TRASH_CAN_SIZE)
-		        break;
-		    trashCan.add(conv);
+		if (acg != null && acg.journal != null) {
+		    for (Conversion conv : convs.values())
+		        acg.journal.recordRemoval(conv);
+		} else {
+		    for (Conversion conv : convs.values()) {
+		        if (trashCan.size() >= MAX_TRASH_CAN_SIZE)
+		            break;
+		        trashCan.add(conv);
+		    }
 		}
 		convs.clear();
 	}
@@ -216,6 +250,31 @@ public class ConversionList implements Iterable<Conversion> {
         }
     }
 
+    /**
+     * Check whether the other list contains the same conversions (same IDs,
+     * node numbers and heights) as this list.
+     * @param other The conversion list to compare to.
+     * @return true iff both lists describe the same conversions.
+     */
+    public boolean hasSameConversions(ConversionList other) {
+        if (size() != other.size())
+            return false;
+
+        for (Conversion conv : convs.values()) {
+            Conversion otherConv = other.get(conv.getID());
+            if (otherConv == null)
+                return false;
+            if (conv.getNode1().getNr() != otherConv.getNode1().getNr())
+                return false;
+            if (conv.getNode2().getNr() != otherConv.getNode2().getNr())
+                return false;
+            if (conv.getHeight() != otherConv.getHeight())
+                return false;
+        }
+
+        return true;
+    }
+
 	/**
 	 * Choose a random conversion from the list (uniformly).
 	 * @return Random conversion.
@@ -230,7 +289,7 @@ public class ConversionList implements Iterable<Conversion> {
      */
     public void startEditing() {
         if (acg != null)
-            acg.startEditing(null);
+            acg.startEditingConversions();
     }
 
     /**
@@ -0,0 +1,380 @@
+package contactrees;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.StateNode;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.spec.evolution.likelihood.TreeLikelihood;
+import beast.base.util.Randomizer;
+import contactrees.util.Util;
+
+/**
+ * Initialises the ACG and the block moves from the data, to shorten the burn-in:
+ *  1. The clonal frame is built by UPGMA clustering of the (Jukes-Cantor corrected)
+ *     distances between the taxa, pooled over the alignments of all block likelihoods.
+ *  2. Conversions are added greedily: in every round a number of random candidate
+ *     conversions is proposed and each is borrowed by all blocks whose likelihood it
+ *     improves. The candidate with the largest total improvement is kept, as long as
+ *     the improvement exceeds minImprovement.
+ *
+ * @author Nico Neureiter
+ */
+@Description("Initialises the conversion graph with a distance-based clonal frame and greedily added conversions.")
+public class DistanceBasedACGInitialiser extends BEASTObject implements StateNodeInitialiser {
+
+    final public Input<ConversionGraph> networkInput = new Input<>(
+            "network",
+            "The conversion graph to initialise.",
+            Input.Validate.REQUIRED);
+
+    final public Input<BlockSet> blockSetInput = new Input<>(
+            "blockSet",
+            "The blocks whose moves are initialised.",
+            Input.Validate.REQUIRED);
+
+    final public Input<List<TreeLikelihood>> treeLHsInput = new Input<>(
+            "treeLikelihood",
+            "The likelihoods of the blocks (on marginal trees), providing the data.",
+            new ArrayList<>());
+
+    final public Input<Double> rootHeightInput = new Input<>(
+            "rootHeight",
+            "If specified, the clonal frame is scaled to this root height (otherwise distances are used as heights).");
+
+    final public Input<Integer> maxConversionsInput = new Input<>(
+            "maxConversions",
+            "Maximum number of conversions added in the greedy phase.",
+            20);
+
+    final public Input<Integer> candidatesInput = new Input<>(
+            "candidates",
+            "Number of random candidate conversions evaluated per greedy round.",
+            50);
+
+    final public Input<Double> minImprovementInput = new Input<>(
+            "minImprovement",
+            "Minimum increase of the total log-likelihood for a conversion to be added.",
+            2.0);
+
+    protected ConversionGraph acg;
+    protected BlockSet blockSet;
+
+    /** Tree likelihoods grouped by their block. */
+    protected Map<Block, List<TreeLikelihood>> treeLHsByBlock;
+
+    // Reusable buffer for the lineages at the attachment height
+    protected final List<Node> _lineages = new ArrayList<>();
+
+    @Override
+    public void initAndValidate() {
+        acg = networkInput.get();
+        blockSet = blockSetInput.get();
+
+        treeLHsByBlock = new LinkedHashMap<>();
+        for (TreeLikelihood treeLH : treeLHsInput.get()) {
+            if (!(treeLH.treeInput.get() instanceof MarginalTree))
+                throw new IllegalArgumentException("The tree of " + treeLH.getID() + " is not a MarginalTree.");
+            Block block = getMarginalTree(treeLH).block;
+            treeLHsByBlock.computeIfAbsent(block, b -> new ArrayList<>()).add(treeLH);
+        }
+
+        if (treeLHsByBlock.isEmpty())
+            throw new IllegalArgumentException("DistanceBasedACGInitialiser requires at least one tree likelihood.");
+    }
+
+    @Override
+    public void initStateNodes() {
+        acg.removeAllConversions();
+        for (Block block : blockSet.getBlocks())
+            block.removeAllMoves();
+
+        initClonalFrame();
+        addConversionsGreedily();
+    }
+
+    @Override
+    public void getInitialisedStateNodes(List<StateNode> stateNodes) {
+        stateNodes.add(acg);
+        stateNodes.addAll(blockSet.getBlocks());
+    }
+
+    /* ****
+     * Clonal frame
+     * ****/
+
+    /**
+     * Replace the clonal frame by a UPGMA tree of the pooled distances.
+     */
+    protected void initClonalFrame() {
+        int nLeaves = acg.getLeafNodeCount();
+        double[][] distances = getDistances();
+
+        // Leaves keep their numbers, IDs and (sampling) heights
+        Node[] clusters = new Node[nLeaves];
+        int[] clusterSizes = new int[nLeaves];
+        for (int i=0; i<nLeaves; i++) {
+            Node leaf = new Node();
+            leaf.setNr(i);
+            leaf.setID(acg.getNode(i).getID());
+            leaf.setHeight(acg.getNode(i).getHeight());
+            clusters[i] = leaf;
+            clusterSizes[i] = 1;
+        }
+
+        int nextNr = nLeaves;
+        int nActive = nLeaves;
+        while (nActive > 1) {
+            // Find the closest pair of active clusters
+            int bestI = -1, bestJ = -1;
+            double bestDist = Double.POSITIVE_INFINITY;
+            for (int i=0; i<nLeaves; i++) {
+                if (clusters[i] == null)
+                    continue;
+                for (int j=i+1; j<nLeaves; j++) {
+                    if (clusters[j] != null && distances[i][j] < bestDist) {
+                        bestDist = distances[i][j];
+                        bestI = i;
+                        bestJ = j;
+                    }
+                }
+            }
+
+            Node parent = new Node();
+            parent.setNr(nextNr++);
+            parent.addChild(clusters[bestI]);
+            parent.addChild(clusters[bestJ]);
+            double minHeight = Math.max(clusters[bestI].getHeight(), clusters[bestJ].getHeight());
+            parent.setHeight(Math.max(bestDist / 2, minHeight + 1e-6));
+
+            // Average linkage: merge cluster j into cluster i
+            for (int k=0; k<nLeaves; k++) {
+                if (clusters[k] == null || k == bestI || k == bestJ)
+                    continue;
+                double d = (distances[bestI][k] * clusterSizes[bestI] + distances[bestJ][k] * clusterSizes[bestJ])
+                        / (clusterSizes[bestI] + clusterSizes[bestJ]);
+                distances[bestI][k] = d;
+                distances[k][bestI] = d;
+            }
+            clusters[bestI] = parent;
+            clusterSizes[bestI] += clusterSizes[bestJ];
+            clusters[bestJ] = null;
+            nActive--;
+        }
+
+        Node root = clusters[0];
+        for (Node cluster : clusters) {
+            if (cluster != null)
+                root = cluster;
+        }
+
+        if (rootHeightInput.get() != null)
+            scaleToRootHeight(root, rootHeightInput.get() / root.getHeight());
+
+        acg.assignFromWithoutID(new Tree(root));
+        acg.makeDerivedStateDirty();
+    }
+
+    private void scaleToRootHeight(Node node, double scale) {
+        if (node.isLeaf())
+            return;
+
+        scaleToRootHeight(node.getLeft(), scale);
+        scaleToRootHeight(node.getRight(), scale);
+        double minHeight = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        node.setHeight(Math.max(node.getHeight() * scale, minHeight + 1e-6));
+    }
+
+    /**
+     * @return Jukes-Cantor corrected distances between all pairs of taxa (by node
+     * number), based on the differences pooled over the alignments of all blocks.
+     */
+    protected double[][] getDistances() {
+        int nLeaves = acg.getLeafNodeCount();
+        double[][] differences = new double[nLeaves][nLeaves];
+        double[][] comparisons = new double[nLeaves][nLeaves];
+        int maxStateCount = 2;
+
+        for (List<TreeLikelihood> treeLHs : treeLHsByBlock.values()) {
+            for (TreeLikelihood treeLH : treeLHs) {
+                Alignment data = treeLH.dataInput.get();
+                DataType dataType = data.getDataType();
+                maxStateCount = Math.max(maxStateCount, dataType.getStateCount());
+
+                int[] taxonIndices = new int[nLeaves];
+                for (int i=0; i<nLeaves; i++)
+                    taxonIndices[i] = data.getTaxonIndex(acg.getNode(i).getID());
+
+                for (int p=0; p<data.getPatternCount(); p++) {
+                    int weight = data.getPatternWeight(p);
+                    for (int i=0; i<nLeaves; i++) {
+                        if (taxonIndices[i] < 0)
+                            continue;
+                        int stateI = data.getPattern(taxonIndices[i], p);
+                        if (dataType.isAmbiguousCode(stateI))
+                            continue;
+
+                        for (int j=i+1; j<nLeaves; j++) {
+                            if (taxonIndices[j] < 0)
+                                continue;
+                            int stateJ = data.getPattern(taxonIndices[j], p);
+                            if (dataType.isAmbiguousCode(stateJ))
+                                continue;
+
+                            comparisons[i][j] += weight;
+                            if (stateI != stateJ)
+                                differences[i][j] += weight;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Jukes-Cantor correction (capped for saturated pairs)
+        double b = (maxStateCount - 1.0) / maxStateCount;
+        double[][] distances = new double[nLeaves][nLeaves];
+        for (int i=0; i<nLeaves; i++) {
+            for (int j=i+1; j<nLeaves; j++) {
+                double p = comparisons[i][j] > 0 ? differences[i][j] / comparisons[i][j] : b;
+                double d = -b * Math.log(Math.max(1 - p / b, 1e-3));
+                distances[i][j] = d;
+                distances[j][i] = d;
+            }
+        }
+
+        return distances;
+    }
+
+    /* ****
+     * Conversions
+     * ****/
+
+    /**
+     * Greedily add the conversions (and borrowings) which most improve the block likelihoods.
+     */
+    protected void addConversionsGreedily() {
+        List<Block> blocks = new ArrayList<>(treeLHsByBlock.keySet());
+        int nBlocks = blocks.size();
+
+        double[] currentLogLH = new double[nBlocks];
+        for (int b=0; b<nBlocks; b++)
+            currentLogLH[b] = calculateBlockLogLH(blocks.get(b));
+
+        // Block likelihoods of the current and the best candidate (reused across candidates)
+        double[] candidateLogLH = new double[nBlocks];
+        double[] bestLogLH = new double[nBlocks];
+
+        for (int round=0; round<maxConversionsInput.get(); round++) {
+            Conversion conv = acg.addNewConversion();
+
+            double bestImprovement = Double.NEGATIVE_INFINITY;
+            double bestHeight = 0.0;
+            Node bestNode1 = null, bestNode2 = null;
+            boolean found = false;
+
+            for (int c=0; c<candidatesInput.get(); c++) {
+                if (!attachRandomly(conv))
+                    continue;
+
+                double improvement = 0.0;
+                for (int b=0; b<nBlocks; b++) {
+                    Block block = blocks.get(b);
+                    block.addMove(conv);
+                    candidateLogLH[b] = calculateBlockLogLH(block);
+                    block.removeMove(conv);
+
+                    if (candidateLogLH[b] > currentLogLH[b])
+                        improvement += candidateLogLH[b] - currentLogLH[b];
+                }
+
+                if (improvement > bestImprovement) {
+                    bestImprovement = improvement;
+                    bestHeight = conv.getHeight();
+                    bestNode1 = conv.getNode1();
+                    bestNode2 = conv.getNode2();
+                    System.arraycopy(candidateLogLH, 0, bestLogLH, 0, nBlocks);
+                    found = true;
+                }
+            }
+
+            if (!found || bestImprovement < minImprovementInput.get()) {
+                acg.removeConversion(conv);
+                break;
+            }
+
+            // Keep the best candidate, borrowed by all blocks which it improves
+            conv.setHeight(bestHeight);
+            conv.setNode1(bestNode1);
+            conv.setNode2(bestNode2);
+            for (int b=0; b<nBlocks; b++) {
+                if (bestLogLH[b] > currentLogLH[b]) {
+                    blocks.get(b).addMove(conv);
+                    currentLogLH[b] = bestLogLH[b];
+                }
+            }
+        }
+
+        // Leave the marginal trees consistent with the final state
+        for (Block block : blocks)
+            calculateBlockLogLH(block);
+
+        Log.info.println("DistanceBasedACGInitialiser: added " + acg.getConvCount() + " conversions ("
+                + blockSet.countMoves() + " moves).");
+    }
+
+    /**
+     * Attach the conversion at a uniformly random point of the clonal frame
+     * (with respect to the paired length of the branches).
+     * @return false if the sampled height has less than two lineages.
+     */
+    protected boolean attachRandomly(Conversion conv) {
+        CFEventList cfEventList = acg.getCFEventList();
+        List<CFEventList.Event> cfEvents = cfEventList.getCFEvents();
+
+        int iEvent = cfEventList.sampleInterval(true);
+        double height = Randomizer.uniform(cfEvents.get(iEvent).getHeight(), cfEvents.get(iEvent+1).getHeight());
+
+        List<Node> activeLineages = acg.getLineagesAtHeight(height, _lineages);
+        if (activeLineages.size() <= 1)
+            return false;
+
+        Node node1 = Util.sampleFrom(activeLineages);
+        activeLineages.remove(node1);
+        Node node2 = Util.sampleFrom(activeLineages);
+
+        conv.setHeight(height);
+        conv.setNode1(node1);
+        conv.setNode2(node2);
+        return true;
+    }
+
+    /**
+     * Rebuild the marginal tree(s) of the block and recompute its likelihoods from scratch.
+     * @return the summed log-likelihood of the block.
+     */
+    protected double calculateBlockLogLH(Block block) {
+        double logLH = 0.0;
+        for (TreeLikelihood treeLH : treeLHsByBlock.get(block)) {
+            MarginalTree marginalTree = getMarginalTree(treeLH);
+            marginalTree.recalculate();
+            marginalTree.setEverythingDirty(true);
+            logLH += treeLH.calculateLogP();
+        }
+        return logLH;
+    }
+
+    MarginalTree getMarginalTree(TreeLikelihood treeLH) {
+        return (MarginalTree) treeLH.treeInput.get();
+    }
+
+}
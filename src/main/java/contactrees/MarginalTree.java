@@ -1,7 +1,10 @@
 package contactrees;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import beast.base.core.Input;
 import beast.base.inference.CalculationNode;
@@ -12,6 +15,8 @@ import beast.base.evolution.branchratemodel.BranchRateModel;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import contactrees.CFEventList.Event;
+import contactrees.util.ProfileTimer;
+import contactrees.util.Profiled;
 
 
 /**
@@ -22,7 +27,7 @@ import contactrees.CFEventList.Event;
  * @author Nico Neureiter
  */
 
-public class MarginalTree extends Tree {
+public class MarginalTree extends Tree implements Profiled {
 
     public Input<ConversionGraph> networkInput = new Input<>(
             "network",
@@ -40,6 +45,11 @@ public class MarginalTree extends Tree {
             "frozenTaxa",
             "Taxa for which the last branch should have a fixed branch rate of 0.",
             new ArrayList<>());
+    public Input<Boolean> compactInput = new Input<>(
+            "compact",
+            "Store the marginal tree in flat arrays and share the node objects between all compact marginal "
+            + "trees of the network (saves memory when there are many blocks).",
+            false);
 
     public ConversionGraph acg;
     public Block block;
@@ -57,6 +67,83 @@ public class MarginalTree extends Tree {
 
     protected boolean customdebug = false;
 
+    /**
+     * Time and number of rebuilds of the marginal tree (for monitoring).
+     */
+    protected final ProfileTimer profileTimer = new ProfileTimer();
+
+    /**
+     * Rough estimate of the heap size of a MarginalNode (object header, fields,
+     * child list and meta-data maps), used by getEstimatedHeapBytes().
+     */
+    static final int NODE_BYTES_ESTIMATE = 128;
+
+    /*
+     * Compact mode: the marginal tree is stored in flat arrays (indexed by node
+     * number) and only materialised in the shared node objects when it is
+     * accessed as a Tree (see materialise()).
+     */
+    protected boolean compact;
+    protected int[] flatLeft, flatRight;
+    protected double[] flatHeight;
+    protected byte[] flatDirty;
+    protected int flatRoot;
+    protected long flatVersion = 0;
+
+    /**
+     * Node objects and scratch arrays shared by all compact marginal trees of
+     * a network. One instance per thread, so that blocks can be evaluated in
+     * parallel.
+     */
+    static class SharedNodes {
+        final MarginalNode[] nodes;
+        final int[] active, left, right, parent, oldParent;
+        final double[] height, timeLength, lastEventHeight;
+        int[] convNode1 = new int[0], convNode2 = new int[0];
+        double[] convHeight = new double[0];
+
+        MarginalTree owner;
+        long ownerVersion;
+
+        SharedNodes(ConversionGraph acg) {
+            int n = acg.getNodeCount();
+            int nLeafs = acg.getLeafNodeCount();
+
+            nodes = new MarginalNode[n];
+            for (int i=0; i<nLeafs; i++) {
+                nodes[i] = new MarginalNode(acg, i, acg.getNode(i).getHeight());
+                nodes[i].setID(acg.getNode(i).getID());
+            }
+            for (int i=nLeafs; i<n; i++)
+                nodes[i] = new MarginalNode(acg, i, 0.0, nodes[0], nodes[1]);
+
+            active = new int[n];
+            left = new int[n];
+            right = new int[n];
+            parent = new int[n];
+            oldParent = new int[n];
+            height = new double[n];
+            timeLength = new double[n];
+            lastEventHeight = new double[n];
+        }
+
+        void ensureConvCapacity(int nConvs) {
+            if (convHeight.length < nConvs) {
+                int capacity = Math.max(nConvs, 2*convHeight.length);
+                convNode1 = new int[capacity];
+                convNode2 = new int[capacity];
+                convHeight = new double[capacity];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Map<ConversionGraph, SharedNodes>> sharedNodes =
+            ThreadLocal.withInitial(WeakHashMap::new);
+
+    protected SharedNodes getSharedNodes() {
+        return sharedNodes.get().computeIfAbsent(acg, SharedNodes::new);
+    }
+
     public void setManuallyUpdated() {
         manuallyUpdated = true;
     }
@@ -78,15 +165,33 @@ public class MarginalTree extends Tree {
 //        hasBranchRates = !(branchRateModel instanceof StrictClockModel);
         hasBranchRates = (branchRateModel != null);
 
-        // Initialize to clonal frame of acg
-        String beastID = ID;
-        assignFrom(acg);
-        setID(beastID);
-
-        super.initAndValidate();
-        activeCFlineages = new ArrayList<>();
-        for (int i=0; i<acg.getNodeCount(); i++)
-            activeCFlineages.add(null);
+        compact = compactInput.get();
+        if (compact) {
+            nodeCount = acg.getNodeCount();
+            leafNodeCount = acg.getLeafNodeCount();
+            internalNodeCount = acg.getInternalNodeCount();
+
+            flatLeft = new int[nodeCount];
+            flatRight = new int[nodeCount];
+            flatHeight = new double[nodeCount];
+            flatDirty = new byte[nodeCount];
+            Arrays.fill(flatLeft, -1);
+            Arrays.fill(flatRight, -1);
+
+            recalculateCompact();
+            materialise();
+            super.initAndValidate();
+        } else {
+            // Initialize to clonal frame of acg
+            String beastID = ID;
+            assignFrom(acg);
+            setID(beastID);
+
+            super.initAndValidate();
+            activeCFlineages = new ArrayList<>();
+            for (int i=0; i<acg.getNodeCount(); i++)
+                activeCFlineages.add(null);
+        }
 
         recalculate();
         makeOutdated();
@@ -157,9 +262,26 @@ public class MarginalTree extends Tree {
     }
 
     public void recalculate() {
+        long start = profileTimer.start();
         startEditing(null);
         if (customdebug) System.out.print("*");
 
+        if (compact) {
+            recalculateCompact();
+        } else {
+            recalculateNodes();
+        }
+
+        outdated = false;
+        profileTimer.stop(start);
+    }
+
+    /**
+     * Rebuild the MarginalNode objects of the tree by a sweep over the CF
+     * events and block conversions.
+     */
+    protected void recalculateNodes() {
+
         List<Event> cfEvents = acg.getCFEvents();
         activeCFlineages.replaceAll((oldNode) -> {
             return null;
@@ -229,7 +351,7 @@ public class MarginalTree extends Tree {
 
             // Process all conversion below the next CF-event
             while (iConv < convs.size() &&
-                    (event.node.isRoot() || convs.get(iConv).height < cfEvents.get(iEvent + 1).getHeight())) {
+                    (event.getNode().isRoot() || convs.get(iConv).height < cfEvents.get(iEvent + 1).getHeight())) {
 
                 Conversion conv = convs.get(iConv++);
                 Node node1 = conv.getNode1();
@@ -275,6 +397,69 @@ public class MarginalTree extends Tree {
 
     }
 
+    /**
+     * Check whether the marginal tree of this block is always identical to the one of
+     * the other block when both blocks have the same moves.
+     * @param other The marginal tree of another block.
+     * @return "true" iff the structure of other can be copied into this tree.
+     */
+    public boolean canShareStructureWith(MarginalTree other) {
+        return other.acg == acg
+                && other.compact == compact
+                && other.branchRateModel == branchRateModel
+                && other.frozenTaxa.equals(frozenTaxa)
+                && other.getNodeCount() == getNodeCount();
+    }
+
+    /**
+     * Set this marginal tree to the topology and heights of another marginal tree
+     * of a block with the same moves (see canShareStructureWith()). This is
+     * cheaper than recalculate() and, as in recalculate(), nodes are only marked
+     * dirty where they differ, so that the likelihood caches remain valid.
+     * @param other A marginal tree which is up to date.
+     */
+    public void copyStructureFrom(MarginalTree other) {
+        assert canShareStructureWith(other);
+        startEditing(null);
+
+        if (compact) {
+            commitCompact(getSharedNodes(), other.flatLeft, other.flatRight, other.flatHeight, other.flatRoot);
+            outdated = false;
+            return;
+        }
+
+        for (int i=0; i<nodeCount; i++) {
+            MarginalNode node = (MarginalNode) m_nodes[i];
+            MarginalNode otherNode = (MarginalNode) other.m_nodes[i];
+
+            if (node.getHeight() != otherNode.getHeight()) {
+                node.makeDirty(Tree.IS_FILTHY);
+                for (Node child : node.getChildren())
+                    child.makeDirty(Tree.IS_FILTHY);
+            }
+
+            if (otherNode.isLeaf()) {
+                node.setHeight(otherNode.getHeight());
+            } else {
+                MarginalNode left = (MarginalNode) m_nodes[otherNode.getLeft().getNr()];
+                MarginalNode right = (MarginalNode) m_nodes[otherNode.getRight().getNr()];
+
+                if (node.getLeft().getNr() != left.getNr() || node.getRight().getNr() != right.getNr())
+                    node.makeDirty(Tree.IS_FILTHY);
+
+                node.update(otherNode.getHeight(), left, right);
+            }
+
+            node.timeLength = otherNode.timeLength;
+            node.lastEventHeight = otherNode.lastEventHeight;
+        }
+
+        Node newRoot = m_nodes[other.getRoot().getNr()];
+        newRoot.setParent(null);
+        setRootOnly(newRoot);
+        outdated = false;
+    }
+
     public MarginalNode registerLeafNode(Node node) {
         MarginalNode marginalNode = (MarginalNode) m_nodes[node.getNr()];
 //        if (marginalNode.getHeight() != node.getHeight()) marginalNode.makeDirty(Tree.IS_FILTHY);
@@ -403,12 +588,294 @@ public class MarginalTree extends Tree {
 //        }
     }
 
+    /**
+     * Compute the marginal tree into flat arrays (compact mode). Follows the
+     * same sweep over the CF events and block conversions as recalculate(), but
+     * works on node numbers (reading the clonal frame from the arrays view of
+     * the ACG) and does not allocate.
+     */
+    protected void recalculateCompact() {
+        SharedNodes shared = getSharedNodes();
+        int[] active = shared.active;
+        Arrays.fill(active, -1);
+
+        // Collect the conversions of this block, sorted by height
+        int nConvs = collectBlockConversions(shared);
+        int[] convNode1 = shared.convNode1;
+        int[] convNode2 = shared.convNode2;
+        double[] convHeight = shared.convHeight;
+
+        CFEventList cfEvents = acg.getCFEventList();
+        ACGArrays arrays = acg.getArrays();
+        int nEvents = arrays.getNodeCount();
+        int iConv = 0;
+        int nextNr = arrays.getLeafNodeCount();
+
+        for (int iEvent = 0; iEvent < nEvents; iEvent++) {
+            int nr = cfEvents.getEventNodeNr(iEvent);
+            double eventHeight = cfEvents.getEventHeight(iEvent);
+
+            if (cfEvents.isSampleEvent(iEvent)) {
+                shared.left[nr] = -1;
+                shared.right[nr] = -1;
+                shared.height[nr] = eventHeight;
+                shared.timeLength[nr] = 0;
+                shared.lastEventHeight[nr] = eventHeight;
+                active[nr] = nr;
+            } else {
+                int leftNr = arrays.getLeft(nr);
+                int rightNr = arrays.getRight(nr);
+
+                if (active[leftNr] >= 0 && active[rightNr] >= 0) {
+                    int m = nextNr++;
+                    coalesceCompact(shared, m, eventHeight, leftNr, rightNr);
+                    active[leftNr] = -1;
+                    active[rightNr] = -1;
+                    active[nr] = m;
+                } else if (active[leftNr] >= 0) {
+                    passCompact(shared, active[leftNr], eventHeight, leftNr);
+                    active[nr] = active[leftNr];
+                    active[leftNr] = -1;
+                } else if (active[rightNr] >= 0) {
+                    passCompact(shared, active[rightNr], eventHeight, rightNr);
+                    active[nr] = active[rightNr];
+                    active[rightNr] = -1;
+                }
+            }
+
+            // Process all conversion below the next CF-event
+            while (iConv < nConvs &&
+                    (iEvent == nEvents - 1 || convHeight[iConv] < cfEvents.getEventHeight(iEvent + 1))) {
+                int nr1 = convNode1[iConv];
+                int nr2 = convNode2[iConv];
+                double height = convHeight[iConv];
+                iConv++;
+
+                if (active[nr1] >= 0 && active[nr2] >= 0) {
+                    int m = nextNr++;
+                    coalesceCompact(shared, m, height, nr1, nr2);
+                    active[nr1] = -1;
+                    active[nr2] = m;
+                } else if (active[nr1] >= 0) {
+                    passCompact(shared, active[nr1], height, nr1);
+                    active[nr2] = active[nr1];
+                    active[nr1] = -1;
+                }
+            }
+        }
+
+        int newRoot = active[arrays.getRootNr()];
+        fillParents(shared.left, shared.right, shared.parent);
+
+        if (hasBranchRates) {
+            // Parents are always created after their children, i.e. have higher numbers
+            for (int i=newRoot-1; i>=0; i--)
+                shared.height[i] = shared.height[shared.parent[i]] - shared.timeLength[i];
+        }
+
+        commitCompact(shared, shared.left, shared.right, shared.height, newRoot);
+    }
+
+    private void coalesceCompact(SharedNodes shared, int m, double height, int leftNr, int rightNr) {
+        int marginalLeft = shared.active[leftNr];
+        int marginalRight = shared.active[rightNr];
+
+        shared.left[m] = marginalLeft;
+        shared.right[m] = marginalRight;
+        shared.height[m] = height;
+        shared.timeLength[m] = 0;
+        shared.lastEventHeight[m] = height;
+
+        passCompact(shared, marginalLeft, height, leftNr);
+        passCompact(shared, marginalRight, height, rightNr);
+    }
+
+    private void passCompact(SharedNodes shared, int marginalNr, double height, int childNr) {
+        if (hasBranchRates) {
+            shared.timeLength[marginalNr] += (height - shared.lastEventHeight[marginalNr]) * branchRateModel.getRateForBranch(acg.getNode(childNr));
+            shared.lastEventHeight[marginalNr] = height;
+        }
+    }
+
+    /**
+     * Write the conversions of this block into the scratch arrays and sort
+     * them by height (insertion sort, blocks usually have few conversions).
+     * @return number of block conversions.
+     */
+    private int collectBlockConversions(SharedNodes shared) {
+        ConversionList convList = acg.getConversions();
+        List<Integer> cIDs = block.getConversionIDs();
+        int nConvs = cIDs.size();
+        shared.ensureConvCapacity(nConvs);
+
+        for (int i=0; i<nConvs; i++) {
+            Conversion c = convList.get(cIDs.get(i));
+            assert c != null;
+            double height = c.getHeight();
+            int nr1 = c.getNode1().getNr();
+            int nr2 = c.getNode2().getNr();
+
+            int j = i;
+            while (j > 0 && shared.convHeight[j-1] > height) {
+                shared.convHeight[j] = shared.convHeight[j-1];
+                shared.convNode1[j] = shared.convNode1[j-1];
+                shared.convNode2[j] = shared.convNode2[j-1];
+                j--;
+            }
+            shared.convHeight[j] = height;
+            shared.convNode1[j] = nr1;
+            shared.convNode2[j] = nr2;
+        }
+
+        return nConvs;
+    }
+
+    private void fillParents(int[] left, int[] right, int[] parent) {
+        Arrays.fill(parent, 0, nodeCount, -1);
+        for (int i=0; i<nodeCount; i++) {
+            if (left[i] >= 0) {
+                parent[left[i]] = i;
+                parent[right[i]] = i;
+            }
+        }
+    }
+
+    /**
+     * Replace the flat marginal tree by the given one. As in recalculate(),
+     * nodes are only marked dirty where the trees differ.
+     */
+    private void commitCompact(SharedNodes shared, int[] left, int[] right, double[] height, int newRoot) {
+        int[] parent = shared.parent;
+        fillParents(left, right, parent);
+        fillParents(flatLeft, flatRight, shared.oldParent);
+
+        for (int i=0; i<nodeCount; i++) {
+            boolean heightChanged = height[i] != flatHeight[i];
+            if (heightChanged || left[i] != flatLeft[i] || right[i] != flatRight[i]
+                    || parent[i] != shared.oldParent[i]) {
+                flatDirty[i] = Tree.IS_FILTHY;
+            }
+
+            // The branches of the children change with the height of their parent
+            if (heightChanged && left[i] >= 0) {
+                flatDirty[left[i]] = Tree.IS_FILTHY;
+                flatDirty[right[i]] = Tree.IS_FILTHY;
+            }
+        }
+
+        System.arraycopy(left, 0, flatLeft, 0, nodeCount);
+        System.arraycopy(right, 0, flatRight, 0, nodeCount);
+        System.arraycopy(height, 0, flatHeight, 0, nodeCount);
+        flatRoot = newRoot;
+        flatVersion++;
+    }
+
+    /**
+     * Write the flat marginal tree into the shared node objects of the current
+     * thread (compact mode), unless they already represent this tree.
+     */
+    protected void materialise() {
+        SharedNodes shared = getSharedNodes();
+        MarginalNode[] nodes = shared.nodes;
+
+        if (shared.owner != this || shared.ownerVersion != flatVersion) {
+            for (int i=0; i<nodeCount; i++) {
+                MarginalNode node = nodes[i];
+                node.setTree(this);
+                if (flatLeft[i] < 0)
+                    node.setHeight(flatHeight[i]);
+                else
+                    node.update(flatHeight[i], nodes[flatLeft[i]], nodes[flatRight[i]]);
+            }
+            nodes[flatRoot].setParent(null);
+
+            nodes[flatRoot].makeAllDirty(Tree.IS_CLEAN);
+            for (int i=0; i<nodeCount; i++) {
+                if (flatDirty[i] != Tree.IS_CLEAN)
+                    nodes[i].makeDirty(flatDirty[i]);
+            }
+
+            shared.owner = this;
+            shared.ownerVersion = flatVersion;
+        }
+
+        m_nodes = nodes;
+        root = nodes[flatRoot];
+    }
+
+    @Override
+    public Node getRoot() {
+        if (compact)
+            materialise();
+        return super.getRoot();
+    }
+
+    @Override
+    public Node getNode(final int nodeNr) {
+        if (compact)
+            materialise();
+        return super.getNode(nodeNr);
+    }
+
+    @Override
+    public Node[] getNodesAsArray() {
+        if (compact)
+            materialise();
+        return super.getNodesAsArray();
+    }
+
+    @Override
+    protected void initArrays() {
+        if (compact) {
+            // The node objects are shared, no (stored) copies are required
+            materialise();
+            return;
+        }
+        super.initArrays();
+    }
+
+    @Override
+    public void setEverythingDirty(final boolean isDirty) {
+        if (compact) {
+            setSomethingIsDirty(isDirty);
+            Arrays.fill(flatDirty, isDirty ? (byte) Tree.IS_FILTHY : (byte) Tree.IS_CLEAN);
+            flatVersion++;
+            return;
+        }
+        super.setEverythingDirty(isDirty);
+    }
+
     @Override
     protected void accept() {
         super.accept();
         setEverythingDirty(false);
     }
 
+    /**
+     * @return number of times this marginal tree was rebuilt.
+     */
+    public long getRebuildCount() {
+        return profileTimer.getCalls();
+    }
+
+    @Override
+    public ProfileTimer getProfileTimer() {
+        return profileTimer;
+    }
+
+    /**
+     * Rough estimate of the heap used by this marginal tree. In compact mode
+     * only the flat arrays are counted, since the node objects are shared by
+     * all compact marginal trees of the network.
+     * @return estimated size in bytes.
+     */
+    public long getEstimatedHeapBytes() {
+        if (compact)
+            return 4L * (flatLeft.length + flatRight.length) + 8L * flatHeight.length + flatDirty.length;
+
+        return (long) nodeCount * (NODE_BYTES_ESTIMATE + 8);
+    }
+
     @Override
     public void store() {}
 
@@ -497,7 +964,7 @@ public class MarginalTree extends Tree {
      */
     @Override
     public String toString() {
-        return root.toString();
+        return getRoot().toString();
     }
 
 
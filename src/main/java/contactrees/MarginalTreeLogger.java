@@ -0,0 +1,151 @@
+package contactrees;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.Node;
+
+/**
+ * Logs the marginal trees (in time units) of the blocks of a BlockSet, writing
+ * each distinct tree only once per sample. Blocks are first grouped by their
+ * moves, so that the marginal tree of each distinct set of moves is built only
+ * once. Move sets which result in the same marginal tree (topology and
+ * heights) are then merged. Every distinct tree is written as a separate tree
+ * (STATE_[sample]_[k]) annotated with the IDs of the blocks sharing it.
+ *
+ * @author Nico Neureiter
+ */
+@Description("Logs the distinct marginal trees of a set of blocks, each annotated with the blocks sharing it.")
+public class MarginalTreeLogger extends BEASTObject implements Loggable {
+
+    public Input<ConversionGraph> networkInput = new Input<>(
+            "network",
+            "The conversion graph containing the marginal trees.",
+            Input.Validate.REQUIRED);
+    public Input<BlockSet> blockSetInput = new Input<>(
+            "blockSet",
+            "The blocks whose marginal trees are logged.",
+            Input.Validate.REQUIRED);
+    public Input<List<Block>> blocksInput = new Input<>(
+            "block",
+            "Blocks to be logged (by default all blocks of the blockSet).",
+            new ArrayList<>());
+
+    protected ConversionGraph acg;
+    protected List<Block> blocks;
+
+    // Private marginal tree used to build the tree of each distinct set of moves
+    protected Block scratchBlock;
+    protected MarginalTree scratchTree;
+
+    @Override
+    public void initAndValidate() {
+        acg = networkInput.get();
+        blocks = blocksInput.get().isEmpty() ? blockSetInput.get().getBlocks() : blocksInput.get();
+
+        scratchBlock = new Block();
+        scratchBlock.initAndValidate();
+        scratchTree = new MarginalTree();
+        scratchTree.initByName("network", acg, "block", scratchBlock);
+
+        // The scratch tree is only updated when logging, it must not become
+        // part of the calculation graph of the ACG.
+        acg.getOutputs().remove(scratchTree);
+        scratchBlock.getOutputs().remove(scratchTree);
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        Node node = acg.getRoot();
+
+        out.println("#NEXUS\n");
+        out.println("Begin taxa;");
+        out.println("\tDimensions ntax=" + acg.getLeafNodeCount() + ";");
+        out.println("\t\tTaxlabels");
+        ConversionGraph.printTaxa(node, out, acg.getNodeCount() / 2);
+        out.println("\t\t\t;");
+        out.println("End;\n");
+
+        out.println("Begin trees;");
+        out.println("\tTranslate");
+        ConversionGraph.printTranslate(node, out, acg.getNodeCount() / 2);
+        out.print(";");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        int k = 0;
+        for (Map.Entry<String, List<Integer>> entry : groupBlocksByTree().entrySet()) {
+            if (k > 0)
+                out.println();
+            out.print("tree STATE_" + sample + "_" + k + " = [&R] [&blocks=" + formatBlocks(entry.getValue()) + "] ");
+            out.print(entry.getKey());
+            out.print(";");
+            k++;
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        acg.close(out);
+    }
+
+    /**
+     * Group the blocks by their marginal trees.
+     * @return Map from the Newick string of each distinct marginal tree to the
+     * (ascending) indices of the blocks sharing it.
+     */
+    public Map<String, List<Integer>> groupBlocksByTree() {
+        // Group the blocks by their (sorted) moves
+        Map<List<Integer>, List<Integer>> blocksByMoves = new LinkedHashMap<>();
+        for (int i=0; i<blocks.size(); i++) {
+            List<Integer> moves = new ArrayList<>(blocks.get(i).getConversionIDs());
+            Collections.sort(moves);
+            blocksByMoves.computeIfAbsent(moves, m -> new ArrayList<>()).add(i);
+        }
+
+        // Build the marginal tree once per move set and merge equal trees
+        Map<String, List<Integer>> blocksByTree = new LinkedHashMap<>();
+        for (Map.Entry<List<Integer>, List<Integer>> entry : blocksByMoves.entrySet()) {
+            String newick = getMarginalNewick(entry.getKey());
+            blocksByTree.computeIfAbsent(newick, t -> new ArrayList<>()).addAll(entry.getValue());
+        }
+
+        for (List<Integer> indices : blocksByTree.values())
+            Collections.sort(indices);
+        return blocksByTree;
+    }
+
+    /**
+     * @return the Newick string (with sorted children) of the marginal tree
+     * of a block moving over the given conversions.
+     */
+    protected String getMarginalNewick(List<Integer> moves) {
+        ConversionList convs = acg.getConversions();
+        scratchBlock.removeAllMoves();
+        for (int convID : moves)
+            scratchBlock.addMove(convs.get(convID));
+
+        scratchTree.recalculate();
+        return scratchTree.getRoot().toSortedNewick(new int[1], false);
+    }
+
+    protected String formatBlocks(List<Integer> indices) {
+        StringBuilder sb = new StringBuilder("\"{");
+        for (int i=0; i<indices.size(); i++) {
+            if (i > 0)
+                sb.append(",");
+            sb.append(blocks.get(indices.get(i)).getID());
+        }
+        return sb.append("}\"").toString();
+    }
+
+}
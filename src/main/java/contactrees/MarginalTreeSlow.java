@@ -206,7 +206,7 @@ public class MarginalTreeSlow extends Tree {
 
             // Process all conversion below the next CF-event
             while (iConv < convs.size() &&
-                    (event.node.isRoot() || convs.get(iConv).height < cfEvents.get(iEvent + 1).getHeight())) {
+                    (event.getNode().isRoot() || convs.get(iConv).height < cfEvents.get(iEvent + 1).getHeight())) {
 
                 nActive = activeCFlineages.size();
 
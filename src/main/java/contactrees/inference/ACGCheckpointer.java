@@ -0,0 +1,215 @@
+package contactrees.inference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.inference.StateNode;
+import beast.base.inference.StateNodeInitialiser;
+import contactrees.ACGSnapshot;
+import contactrees.BlockSet;
+import contactrees.ConversionGraph;
+
+/**
+ * Binary checkpoints of the ACG and the block moves, as a faster alternative
+ * to the XML state file for large ACGs.
+ *
+ * Writing: the checkpointer is added to a logger, which defines the checkpoint
+ * interval (logEvery). On every log an ACGSnapshot of the current state is
+ * captured on the MCMC thread and written to the file on a background thread
+ * (via a temporary file, which then replaces the checkpoint, so that the file
+ * is never left half-written). If the previous checkpoints are still being
+ * written, the checkpoint is skipped instead of stalling the chain. A final
+ * checkpoint is written synchronously when the logger is closed.
+ *
+ * Restoring (only with restore="true"): the checkpointer is also a state
+ * initialiser. Added as the last init of the MCMC, it sets the ACG and blocks
+ * to the checkpoint (if the file exists), after all other initialisers ran.
+ * Exactly the following is restored:
+ *  - the clonal frame (topology, node heights and node numbers),
+ *  - the conversions (including their IDs),
+ *  - the moves of the blocks.
+ * Nothing else is resumed: all other state nodes (e.g. rates, pMove) keep the
+ * values of their initialisers, the chain starts again at sample 0 (with its
+ * burn-in) and operators start untuned. The checkpoint must have been written
+ * for the same taxa and blocks (same IDs in the same order), otherwise the
+ * initialisation fails. Note that BEAST does not run the initialisers when
+ * resuming a chain (-resume), where the state file is used instead.
+ *
+ * @author Nico Neureiter
+ */
+@Description("Writes binary checkpoints of the ACG and block moves in the background and restores them at start-up.")
+public class ACGCheckpointer extends BEASTObject implements Loggable, StateNodeInitialiser {
+
+    final public Input<ConversionGraph> networkInput = new Input<>(
+            "network",
+            "The conversion graph to checkpoint.",
+            Input.Validate.REQUIRED);
+
+    final public Input<BlockSet> blockSetInput = new Input<>(
+            "blockSet",
+            "The blocks whose moves are checkpointed.");
+
+    final public Input<String> fileInput = new Input<>(
+            "file",
+            "Path of the checkpoint file.",
+            Input.Validate.REQUIRED);
+
+    final public Input<Boolean> restoreInput = new Input<>(
+            "restore",
+            "Restore the ACG and blocks from the checkpoint file (if it exists) when the state is initialised. "
+            + "Only the ACG and the block moves are restored (see class documentation).",
+            false);
+
+    /**
+     * Number of snapshots which can be written concurrently (one being
+     * written, one waiting).
+     */
+    static final int POOL_SIZE = 2;
+
+    protected ConversionGraph acg;
+    protected BlockSet blockSet;
+    protected Path path;
+
+    protected ExecutorService writer;
+    protected BlockingQueue<ACGSnapshot> freeSnapshots;
+    protected long skippedCheckpoints, lastSample;
+
+    @Override
+    public void initAndValidate() {
+        acg = networkInput.get();
+        blockSet = blockSetInput.get();
+        path = Paths.get(fileInput.get());
+    }
+
+    /*
+     * StateNodeInitialiser implementation
+     */
+
+    @Override
+    public void initStateNodes() {
+        if (!restoreInput.get() || !Files.exists(path))
+            return;
+
+        try {
+            long start = System.nanoTime();
+            ACGSnapshot snapshot = read(path);
+            snapshot.applyTo(acg, blockSet);
+            if (acg.isInvalid())
+                throw new IllegalArgumentException("Checkpoint " + path + " contains an invalid ACG.");
+
+            Log.warning.println("Restored the ACG" + (blockSet != null ? " and block moves" : "")
+                    + " from checkpoint " + path + " (sample " + snapshot.getSample() + ") in "
+                    + (System.nanoTime() - start) / 1000000 + " ms. "
+                    + "Other parameters, the sample number and operator tuning are not restored.");
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read checkpoint " + path + ".", e);
+        }
+    }
+
+    @Override
+    public void getInitialisedStateNodes(List<StateNode> stateNodes) {
+        stateNodes.add(acg);
+        if (blockSet != null)
+            stateNodes.addAll(blockSet.getBlocks());
+    }
+
+    /*
+     * Loggable implementation
+     */
+
+    @Override
+    public void init(PrintStream out) {
+        freeSnapshots = new ArrayBlockingQueue<>(POOL_SIZE);
+        for (int i=0; i<POOL_SIZE; i++)
+            freeSnapshots.add(new ACGSnapshot());
+
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ACGCheckpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        skippedCheckpoints = 0;
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        lastSample = sample;
+        ACGSnapshot snapshot = freeSnapshots.poll();
+        if (snapshot == null) {
+            skippedCheckpoints++;
+            return;
+        }
+
+        snapshot.capture(acg, blockSet, sample);
+        writer.execute(() -> {
+            try {
+                write(snapshot, path);
+            } catch (IOException e) {
+                Log.warning.println("ACGCheckpointer: could not write " + path + " (" + e.getMessage() + ").");
+            } finally {
+                freeSnapshots.add(snapshot);
+            }
+        });
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, TimeUnit.MINUTES))
+                Log.warning.println("ACGCheckpointer: timed out waiting for the checkpoint writer.");
+
+            // Final checkpoint of the last state
+            write(new ACGSnapshot().capture(acg, blockSet, lastSample), path);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.warning.println("ACGCheckpointer: could not write " + path + " (" + e.getMessage() + ").");
+        }
+
+        if (skippedCheckpoints > 0)
+            Log.info.println("ACGCheckpointer: skipped " + skippedCheckpoints + " checkpoints while the writer was busy.");
+    }
+
+    /*
+     * File I/O
+     */
+
+    /**
+     * Write a snapshot to a temporary file and move it to path, so that an
+     * interrupted write never corrupts an existing checkpoint.
+     */
+    public static void write(ACGSnapshot snapshot, Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            snapshot.write(out);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static ACGSnapshot read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            return new ACGSnapshot().read(in);
+        }
+    }
+
+}
@@ -0,0 +1,297 @@
+package contactrees.inference;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Logger;
+import beast.base.util.Randomizer;
+import contactrees.ACGWithMetaDataLogger;
+import contactrees.util.SnapshotLoggable;
+
+/**
+ * Logger which formats and writes its output on a background thread. On the
+ * MCMC thread, SnapshotLoggables (e.g. ACGWithMetaDataLogger, ACGStatsLogger)
+ * only capture a snapshot of the state; all other loggables are formatted
+ * directly, as in the standard Logger. The records are written by a single
+ * writer thread in sample order. If the writer falls behind by more than
+ * queueSize records, the chain waits for it. All pending records are written
+ * before the log is closed.
+ *
+ * The log is in tree mode (no sample column) if all loggables are
+ * ACGWithMetaDataLoggers or trees, otherwise in compound mode.
+ *
+ * The log file is opened like in the standard Logger (see Logger.FILE_MODE):
+ * an existing file is only replaced with -overwrite, and with -resume the
+ * log is appended to, continuing after the last logged sample.
+ *
+ * @author Nico Neureiter
+ */
+@Description("Logger which formats and writes ACG snapshots on a background thread.")
+public class AsyncLogger extends Logger {
+
+    final public Input<Integer> queueSizeInput = new Input<>(
+            "queueSize",
+            "Maximum number of records waiting to be written before the chain is blocked.",
+            16);
+
+    /**
+     * One line of the log: for each loggable either the formatted output or
+     * the snapshot to be formatted by the writer thread.
+     */
+    protected static class Record {
+        final long sample;
+        final Object[] parts;
+
+        Record(long sample, Object[] parts) {
+            this.sample = sample;
+            this.parts = parts;
+        }
+    }
+
+    protected static final Record END = new Record(-1, null);
+
+    protected List<Loggable> loggables;
+    protected boolean treeMode;
+    protected long every;
+
+    protected PrintStream out;
+    // Last sample of the resumed log (-1 if the log was not resumed)
+    protected long sampleOffset;
+    protected BlockingQueue<Record> queue;
+    protected Thread writer;
+    protected volatile Throwable writerError;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        loggables = new ArrayList<>();
+        treeMode = true;
+        for (BEASTObject obj : loggersInput.get()) {
+            loggables.add((Loggable) obj);
+            if (!(obj instanceof ACGWithMetaDataLogger || obj instanceof Tree))
+                treeMode = false;
+        }
+        every = everyInput.get();
+
+        if (queueSizeInput.get() < 1)
+            throw new IllegalArgumentException("queueSize must be at least 1.");
+    }
+
+    @Override
+    public void init() throws IOException {
+        // The header is written synchronously (not when resuming)
+        if (openLog()) {
+            if (!treeMode)
+                out.print("Sample\t");
+            for (Loggable loggable : loggables)
+                loggable.init(out);
+            out.println();
+        }
+        out.flush();
+
+        queue = new ArrayBlockingQueue<>(queueSizeInput.get());
+        writerError = null;
+        writer = new Thread(this::writeRecords, "AsyncLogger-" + getID());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void log(long sample) {
+        if (sample < 0 || sample % every > 0)
+            return;
+        if (sampleOffset >= 0) {
+            // The first sample of a resumed chain was already logged
+            if (sample == 0)
+                return;
+            sample += sampleOffset;
+        }
+        checkWriter();
+
+        Object[] parts = new Object[loggables.size()];
+        for (int i=0; i<parts.length; i++) {
+            Loggable loggable = loggables.get(i);
+            if (loggable instanceof SnapshotLoggable<?> snapshotLoggable) {
+                parts[i] = snapshotLoggable.takeSnapshot(sample);
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                PrintStream partOut = new PrintStream(bytes);
+                loggable.log(sample, partOut);
+                partOut.flush();
+                parts[i] = bytes.toString();
+            }
+        }
+
+        try {
+            // Blocks while the writer is queueSize records behind
+            queue.put(new Record(sample, parts));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the log writer.", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Loggable loggable : loggables)
+            loggable.close(out);
+        out.flush();
+        if (out != System.out)
+            out.close();
+
+        checkWriter();
+    }
+
+    /**
+     * Open the log file according to Logger.FILE_MODE, like the standard
+     * Logger: without -overwrite or -resume an existing log is not replaced,
+     * with -resume the existing log is continued.
+     * @return whether the log needs a header.
+     */
+    protected boolean openLog() throws IOException {
+        sampleOffset = -1;
+        String fileName = fileNameInput.get();
+        if (fileName == null || fileName.isEmpty()) {
+            out = System.out;
+            return true;
+        }
+
+        fileName = fileName.replace("$(seed)", String.valueOf(Randomizer.getSeed()));
+        if (System.getProperty("file.name.prefix") != null)
+            fileName = System.getProperty("file.name.prefix") + "/" + fileName;
+        File file = new File(fileName);
+
+        if (file.exists()) {
+            switch (FILE_MODE) {
+                case overwrite:
+                    break;
+                case resume:
+                    sampleOffset = prepareResume(file);
+                    out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                    return false;
+                default:
+                    throw new RuntimeException("Log file " + fileName + " already exists. "
+                            + "Use -overwrite to replace it or -resume to continue it.");
+            }
+        }
+
+        out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
+        return true;
+    }
+
+    /**
+     * Find the last logged sample of an existing log and remove the closing
+     * "End;" of a tree log, so that the log can be continued.
+     * @return the last logged sample.
+     */
+    protected long prepareResume(File file) throws IOException {
+        List<String> lines = new ArrayList<>(Files.readAllLines(file.toPath()));
+        long lastSample = -1;
+        int end = lines.size();
+        for (int i=0; i<lines.size(); i++) {
+            String line = lines.get(i).trim();
+            String sampleStr = null;
+            if (treeMode && line.startsWith("tree STATE_")) {
+                sampleStr = line.substring(11).split("[\\s=_]")[0];
+            } else if (!treeMode && !line.isEmpty() && !line.startsWith("#") && !line.startsWith("Sample")) {
+                sampleStr = line.split("\t")[0];
+            } else if (line.equals("End;") && end == lines.size()) {
+                end = i;
+            }
+
+            if (sampleStr != null) {
+                try {
+                    lastSample = Long.parseLong(sampleStr);
+                    end = lines.size();
+                } catch (NumberFormatException e) {
+                    // not a sample line
+                }
+            }
+        }
+
+        if (lastSample < 0)
+            throw new RuntimeException("Can not resume log " + file + ": no logged samples found.");
+
+        if (end < lines.size())
+            Files.write(file.toPath(), lines.subList(0, end));
+        return lastSample;
+    }
+
+    protected void checkWriter() {
+        if (writerError != null)
+            throw new RuntimeException("AsyncLogger " + getID() + " failed to write the log.", writerError);
+    }
+
+    /**
+     * Writer thread: format and write the records in the order of the queue.
+     * After an error the remaining records are discarded (so that the chain
+     * is not blocked), the error is reported on the MCMC thread.
+     */
+    protected void writeRecords() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream line = new PrintStream(bytes);
+
+        while (true) {
+            Record record;
+            try {
+                record = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (record == END)
+                break;
+
+            try {
+                if (writerError == null) {
+                    bytes.reset();
+                    if (!treeMode)
+                        line.print(record.sample + "\t");
+                    for (int i=0; i<record.parts.length; i++)
+                        writePart(loggables.get(i), record.parts[i], line);
+                    line.flush();
+                    out.println(bytes.toString().trim());
+
+                    // Keep the file up to date whenever the writer catches up
+                    if (queue.isEmpty())
+                        out.flush();
+                }
+            } catch (RuntimeException e) {
+                writerError = e;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S> void writePart(Loggable loggable, Object part, PrintStream line) {
+        if (loggable instanceof SnapshotLoggable<?>) {
+            SnapshotLoggable<S> snapshotLoggable = (SnapshotLoggable<S>) loggable;
+            snapshotLoggable.logSnapshot((S) part, line);
+            snapshotLoggable.releaseSnapshot((S) part);
+        } else {
+            line.print((String) part);
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+package contactrees.inference;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.inference.Distribution;
+import beast.base.inference.Operator;
+import beast.base.inference.OperatorSchedule;
+import contactrees.BlockSet;
+import contactrees.ConversionGraph;
+import contactrees.MarginalTree;
+import contactrees.model.likelihood.CTreeLikelihood;
+
+/**
+ * Exposes the state of a running chain as a JMX MBean (object name
+ * contactrees:type=ChainMonitor,name=[ID]), so that long runs can be watched
+ * with JConsole or a local scraper.
+ *
+ * The monitor is added to a logger (it does not write any columns). Every time
+ * the logger logs, the monitor takes a snapshot of the chain on the MCMC
+ * thread, which is then served to JMX clients. Rates are computed over the
+ * interval between two snapshots.
+ *
+ * @author Nico Neureiter
+ */
+@Description("Exposes conversion/move counts, operator statistics and likelihood/marginal tree throughput as a JMX MBean.")
+public class ChainMonitor extends BEASTObject implements Loggable, ChainMonitorMBean {
+
+    final public Input<ConversionGraph> networkInput = new Input<>(
+            "network",
+            "The conversion graph of the chain.",
+            Input.Validate.REQUIRED);
+
+    final public Input<BlockSet> blockSetInput = new Input<>(
+            "blockSet",
+            "The blocks of the chain (for the move count).");
+
+    final public Input<OperatorSchedule> operatorScheduleInput = new Input<>(
+            "operatorSchedule",
+            "The operator schedule of the MCMC (for the operator statistics).");
+
+    final public Input<Distribution> distributionInput = new Input<>(
+            "distribution",
+            "Distribution (usually the likelihood or posterior) containing the CTreeLikelihoods and marginal trees to monitor.");
+
+    protected ConversionGraph acg;
+    protected BlockSet blockSet;
+    protected List<CTreeLikelihood> likelihoods;
+    protected List<MarginalTree> marginalTrees;
+    protected ObjectName objectName;
+
+    /*
+     * Snapshot, written on the MCMC thread and read by JMX clients.
+     */
+    protected volatile long sample;
+    protected volatile int conversionCount, moveCount;
+    protected volatile String[] operatorNames = new String[0];
+    protected volatile double[] acceptanceRates = new double[0], millisPerStep = new double[0];
+    protected volatile double likelihoodEvaluationsPerSecond, marginalTreeRebuildsPerSecond, samplesPerSecond;
+    protected volatile long marginalTreeHeapBytes;
+
+    // Counters at the previous snapshot
+    protected long lastTime, lastSample, lastEvaluations, lastRebuilds;
+
+    @Override
+    public void initAndValidate() {
+        acg = networkInput.get();
+        blockSet = blockSetInput.get();
+
+        likelihoods = new ArrayList<>();
+        marginalTrees = new ArrayList<>();
+        if (distributionInput.get() != null)
+            collectComponents(distributionInput.get(), new HashSet<>());
+    }
+
+    /**
+     * Collect all CTreeLikelihoods and marginal trees upstream of obj.
+     */
+    private void collectComponents(BEASTInterface obj, Set<BEASTInterface> visited) {
+        if (!visited.add(obj))
+            return;
+
+        if (obj instanceof CTreeLikelihood likelihood)
+            likelihoods.add(likelihood);
+        if (obj instanceof MarginalTree marginalTree)
+            marginalTrees.add(marginalTree);
+
+        for (BEASTInterface input : obj.listActiveBEASTObjects())
+            collectComponents(input, visited);
+    }
+
+    /*
+     * Loggable implementation
+     */
+
+    @Override
+    public void init(PrintStream out) {
+        lastTime = System.nanoTime();
+        lastEvaluations = countEvaluations();
+        lastRebuilds = countRebuilds();
+        register();
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        long now = System.nanoTime();
+        double seconds = (now - lastTime) * 1E-9;
+
+        conversionCount = acg.getConvCount();
+        moveCount = (blockSet == null) ? 0 : blockSet.countMoves();
+        updateOperatorStatistics();
+
+        long evaluations = countEvaluations();
+        long rebuilds = countRebuilds();
+        long heapBytes = 0;
+        for (MarginalTree marginalTree : marginalTrees)
+            heapBytes += marginalTree.getEstimatedHeapBytes();
+        marginalTreeHeapBytes = heapBytes;
+
+        if (seconds > 0) {
+            likelihoodEvaluationsPerSecond = (evaluations - lastEvaluations) / seconds;
+            marginalTreeRebuildsPerSecond = (rebuilds - lastRebuilds) / seconds;
+            samplesPerSecond = (sample - lastSample) / seconds;
+        }
+
+        lastTime = now;
+        lastSample = sample;
+        lastEvaluations = evaluations;
+        lastRebuilds = rebuilds;
+        this.sample = sample;
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        unregister();
+    }
+
+    protected void updateOperatorStatistics() {
+        OperatorSchedule schedule = operatorScheduleInput.get();
+        if (schedule == null)
+            return;
+
+        List<Operator> operators = schedule.getOperators();
+        int n = operators.size();
+        String[] names = new String[n];
+        double[] acceptance = new double[n];
+        double[] millis = new double[n];
+        for (int i=0; i<n; i++) {
+            Operator op = operators.get(i);
+            int accepted = op.get_m_nNrAccepted();
+            int steps = accepted + op.get_m_nNrRejected();
+            names[i] = op.getID();
+            acceptance[i] = steps > 0 ? (double) accepted / steps : 0.0;
+            if (schedule instanceof CostAwareOperatorSchedule costAware && steps > 0)
+                millis[i] = costAware.getOperatorTime(i) / steps * 1E-6;
+        }
+
+        operatorNames = names;
+        acceptanceRates = acceptance;
+        millisPerStep = millis;
+    }
+
+    protected long countEvaluations() {
+        long count = 0;
+        for (CTreeLikelihood likelihood : likelihoods)
+            count += likelihood.getEvaluationCount();
+        return count;
+    }
+
+    protected long countRebuilds() {
+        long count = 0;
+        for (MarginalTree marginalTree : marginalTrees)
+            count += marginalTree.getRebuildCount();
+        return count;
+    }
+
+    /*
+     * JMX registration
+     */
+
+    protected void register() {
+        if (objectName != null)
+            return;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String name = (getID() == null) ? "chain" : getID();
+            objectName = new ObjectName("contactrees:type=ChainMonitor,name=" + ObjectName.quote(name));
+
+            // A monitor of a previous run in the same JVM may still be registered
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            Log.warning.println("ChainMonitor: could not register MBean (" + e.getMessage() + ").");
+            objectName = null;
+        }
+    }
+
+    protected void unregister() {
+        if (objectName == null)
+            return;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            Log.warning.println("ChainMonitor: could not unregister MBean (" + e.getMessage() + ").");
+        }
+        objectName = null;
+    }
+
+    /*
+     * ChainMonitorMBean implementation
+     */
+
+    @Override
+    public long getSample() {
+        return sample;
+    }
+
+    @Override
+    public int getConversionCount() {
+        return conversionCount;
+    }
+
+    @Override
+    public int getMoveCount() {
+        return moveCount;
+    }
+
+    @Override
+    public String[] getOperatorNames() {
+        return operatorNames.clone();
+    }
+
+    @Override
+    public double[] getOperatorAcceptanceRates() {
+        return acceptanceRates.clone();
+    }
+
+    @Override
+    public double[] getOperatorMillisPerStep() {
+        return millisPerStep.clone();
+    }
+
+    @Override
+    public double getLikelihoodEvaluationsPerSecond() {
+        return likelihoodEvaluationsPerSecond;
+    }
+
+    @Override
+    public double getMarginalTreeRebuildsPerSecond() {
+        return marginalTreeRebuildsPerSecond;
+    }
+
+    @Override
+    public long getMarginalTreeHeapBytes() {
+        return marginalTreeHeapBytes;
+    }
+
+    @Override
+    public double getSamplesPerSecond() {
+        return samplesPerSecond;
+    }
+
+}
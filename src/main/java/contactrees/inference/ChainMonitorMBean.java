@@ -0,0 +1,41 @@
+package contactrees.inference;
+
+/**
+ * JMX management interface of the ChainMonitor. All values are snapshots
+ * taken when the monitor was last logged.
+ *
+ * @author Nico Neureiter
+ */
+public interface ChainMonitorMBean {
+
+    /** @return the sample number of the last snapshot. */
+    long getSample();
+
+    /** @return the number of conversions in the ACG. */
+    int getConversionCount();
+
+    /** @return the total number of block moves. */
+    int getMoveCount();
+
+    /** @return the IDs of the operators. */
+    String[] getOperatorNames();
+
+    /** @return the acceptance rate of each operator. */
+    double[] getOperatorAcceptanceRates();
+
+    /** @return the mean time per step (in ms) of each operator (only with a CostAwareOperatorSchedule). */
+    double[] getOperatorMillisPerStep();
+
+    /** @return likelihood evaluations per second since the previous snapshot. */
+    double getLikelihoodEvaluationsPerSecond();
+
+    /** @return marginal tree rebuilds per second since the previous snapshot. */
+    double getMarginalTreeRebuildsPerSecond();
+
+    /** @return estimated heap used by the marginal trees (in bytes). */
+    long getMarginalTreeHeapBytes();
+
+    /** @return samples per second since the previous snapshot. */
+    double getSamplesPerSecond();
+
+}
@@ -0,0 +1,217 @@
+package contactrees.inference;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.inference.Distribution;
+import contactrees.Block;
+import contactrees.MarginalTree;
+import contactrees.model.ACGDistribution;
+import contactrees.model.BetaBinomialMovePrior;
+import contactrees.model.ConversionMovePrior;
+import contactrees.model.ConversionPrior;
+import contactrees.model.likelihood.CTreeLikelihood;
+import contactrees.util.ProfileTimer;
+import contactrees.util.Profiled;
+
+/**
+ * Logs how the run time of the chain is split between the contactrees model
+ * components: the ACG prior (ACGDistribution/ConversionPrior), the move
+ * priors, the marginal tree rebuilds and the CTreeLikelihoods. Each component
+ * keeps a cumulative ProfileTimer; at every log (i.e. every logEvery samples
+ * of the enclosing logger) the profiler writes the share of wall-clock time
+ * spent in each component since the previous log, the number of calls per
+ * sample, the time per sample and the IDs of the slowest blocks (likelihood
+ * plus marginal tree time).
+ *
+ * The shares are the summed component time divided by the wall-clock time.
+ * When the blocks are evaluated in parallel (threads > 1 in the borrowing
+ * operators), the likelihood and marginal tree times of the threads add up,
+ * so these shares (and their sum) can exceed 1. The "other" share is then
+ * reported as 0.
+ *
+ * @author Nico Neureiter
+ */
+@Description("Logs the share of run time spent in the ACG prior, move priors, marginal trees and tree likelihoods "
+        + "(shares can exceed 1 when blocks are evaluated in parallel).")
+public class ComponentProfiler extends BEASTObject implements Loggable {
+
+    final public Input<Distribution> distributionInput = new Input<>(
+            "distribution",
+            "Distribution (usually the posterior) containing the components to profile.",
+            Input.Validate.REQUIRED);
+
+    final public Input<Integer> slowestBlocksInput = new Input<>(
+            "slowestBlocks",
+            "Number of slowest blocks to report.",
+            3);
+
+    enum Component {
+        acgPrior, movePrior, marginalTrees, likelihood
+    }
+
+    protected List<Profiled> components;
+    protected List<Component> componentTypes;
+    protected List<Block> blocks;
+    protected int[] blockIndex;
+
+    // Timer state at the previous log
+    protected long[] lastNanos, lastCalls;
+    protected long lastTime, lastSample;
+
+    @Override
+    public void initAndValidate() {
+        components = new ArrayList<>();
+        componentTypes = new ArrayList<>();
+        collectComponents(distributionInput.get(), new HashSet<>());
+
+        // Map each likelihood and marginal tree to its block
+        blocks = new ArrayList<>();
+        Map<Block, Integer> blockIndices = new HashMap<>();
+        blockIndex = new int[components.size()];
+        for (int i=0; i<components.size(); i++) {
+            Block block = null;
+            if (components.get(i) instanceof CTreeLikelihood likelihood)
+                block = likelihood.getBlock();
+            else if (components.get(i) instanceof MarginalTree marginalTree)
+                block = marginalTree.block;
+
+            if (block == null) {
+                blockIndex[i] = -1;
+            } else {
+                blockIndex[i] = blockIndices.computeIfAbsent(block, b -> {
+                    blocks.add(b);
+                    return blocks.size() - 1;
+                });
+            }
+        }
+
+        lastNanos = new long[components.size()];
+        lastCalls = new long[components.size()];
+    }
+
+    /**
+     * Collect all profiled components upstream of obj.
+     */
+    private void collectComponents(BEASTInterface obj, Set<BEASTInterface> visited) {
+        if (!visited.add(obj))
+            return;
+
+        Component type = componentType(obj);
+        if (type != null) {
+            components.add((Profiled) obj);
+            componentTypes.add(type);
+        }
+
+        for (BEASTInterface input : obj.listActiveBEASTObjects())
+            collectComponents(input, visited);
+    }
+
+    static Component componentType(BEASTInterface obj) {
+        if (obj instanceof ACGDistribution || obj instanceof ConversionPrior)
+            return Component.acgPrior;
+        if (obj instanceof ConversionMovePrior || obj instanceof BetaBinomialMovePrior)
+            return Component.movePrior;
+        if (obj instanceof MarginalTree)
+            return Component.marginalTrees;
+        if (obj instanceof CTreeLikelihood)
+            return Component.likelihood;
+        return null;
+    }
+
+    /*
+     * Loggable implementation
+     */
+
+    @Override
+    public void init(PrintStream out) {
+        String prefix = (getID() == null) ? "profile" : getID();
+        for (Component c : Component.values())
+            out.print(prefix + "." + c + ".share\t" + prefix + "." + c + ".calls\t");
+        out.print(prefix + ".other.share\t");
+        out.print(prefix + ".msPerSample\t");
+        out.print(prefix + ".slowestBlocks\t");
+
+        resetInterval(System.nanoTime(), 0);
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        long now = System.nanoTime();
+        long wallNanos = Math.max(now - lastTime, 1);
+        long samples = Math.max(sample - lastSample, 1);
+
+        int nTypes = Component.values().length;
+        long[] nanosPerType = new long[nTypes];
+        long[] callsPerType = new long[nTypes];
+        long[] nanosPerBlock = new long[blocks.size()];
+        for (int i=0; i<components.size(); i++) {
+            ProfileTimer timer = components.get(i).getProfileTimer();
+            long dNanos = timer.getNanos() - lastNanos[i];
+            int type = componentTypes.get(i).ordinal();
+            nanosPerType[type] += dNanos;
+            callsPerType[type] += timer.getCalls() - lastCalls[i];
+            if (blockIndex[i] >= 0)
+                nanosPerBlock[blockIndex[i]] += dNanos;
+        }
+
+        long profiledNanos = 0;
+        for (int t=0; t<nTypes; t++) {
+            out.print((double) nanosPerType[t] / wallNanos + "\t");
+            out.print((double) callsPerType[t] / samples + "\t");
+            profiledNanos += nanosPerType[t];
+        }
+        out.print(Math.max(0.0, 1.0 - (double) profiledNanos / wallNanos) + "\t");
+        out.print(wallNanos * 1E-6 / samples + "\t");
+        out.print(slowestBlocks(nanosPerBlock) + "\t");
+
+        resetInterval(now, sample);
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+    /**
+     * @return comma separated IDs of the slowest blocks (slowest first).
+     */
+    protected String slowestBlocks(long[] nanosPerBlock) {
+        int k = Math.min(slowestBlocksInput.get(), blocks.size());
+        boolean[] used = new boolean[blocks.size()];
+        StringBuilder sb = new StringBuilder();
+        for (int j=0; j<k; j++) {
+            int slowest = -1;
+            for (int b=0; b<blocks.size(); b++) {
+                if (!used[b] && (slowest < 0 || nanosPerBlock[b] > nanosPerBlock[slowest]))
+                    slowest = b;
+            }
+            used[slowest] = true;
+            if (j > 0)
+                sb.append(",");
+            sb.append(blocks.get(slowest).getID());
+        }
+        return sb.toString();
+    }
+
+    protected void resetInterval(long time, long sample) {
+        for (int i=0; i<components.size(); i++) {
+            ProfileTimer timer = components.get(i).getProfileTimer();
+            lastNanos[i] = timer.getNanos();
+            lastCalls[i] = timer.getCalls();
+        }
+        lastTime = time;
+        lastSample = sample;
+    }
+
+}
@@ -0,0 +1,291 @@
+package contactrees.inference;
+
+import java.io.PrintStream;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.inference.Distribution;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.OperatorSchedule;
+import beast.base.util.Randomizer;
+
+/**
+ * OperatorSchedule which measures the wall time and the mixing of every
+ * operator during the run and adapts the operator weights towards a maximal
+ * mixing per CPU second.
+ *
+ * Mixing is measured by the squared jump distance of the log posterior, i.e.
+ * the squared change of the posterior in the steps of each operator (zero for
+ * rejected proposals). Unlike the acceptance rate, this does not reward
+ * operators which are (almost) always accepted but hardly change the state.
+ * The posterior is taken from the posterior input or, by default, from the
+ * MCMC using this schedule.
+ *
+ * The time of an MCMC step is measured between two consecutive calls of
+ * selectOperator(), i.e. it includes the proposal, the likelihood calculation
+ * and the accept/reject step of the previously selected operator.
+ *
+ * The weight of each operator stays within [minWeightFactor, maxWeightFactor]
+ * times its weight in the XML. The adapted weights can be logged by adding
+ * the schedule to a logger.
+ *
+ * @author Nico Neureiter
+ */
+@Description("OperatorSchedule adapting the operator weights to maximise the mixing of the posterior per CPU second.")
+public class CostAwareOperatorSchedule extends OperatorSchedule implements Loggable {
+
+    final public Input<Distribution> posteriorInput = new Input<>(
+            "posterior",
+            "Posterior whose squared jump distance measures the mixing of the operators (by default the posterior of the MCMC).");
+
+    final public Input<Integer> adaptIntervalInput = new Input<>(
+            "adaptInterval",
+            "Number of MCMC steps between two weight adaptations.",
+            10000);
+
+    final public Input<Long> adaptDelayInput = new Input<>(
+            "adaptDelay",
+            "Number of MCMC steps before the first weight adaptation.",
+            10000L);
+
+    final public Input<Double> minWeightFactorInput = new Input<>(
+            "minWeightFactor",
+            "Lower bound for the adapted weight, relative to the original operator weight.",
+            0.1);
+
+    final public Input<Double> maxWeightFactorInput = new Input<>(
+            "maxWeightFactor",
+            "Upper bound for the adapted weight, relative to the original operator weight.",
+            10.0);
+
+    final public Input<Double> learningRateInput = new Input<>(
+            "learningRate",
+            "Fraction by which the weights move towards the target weights in every adaptation (in (0,1]).",
+            0.5);
+
+    /** Original weights (as specified in the XML) and current adapted weights. */
+    double[] baseWeights, weights, cumulativeWeights;
+
+    /** Accumulated wall time (in ns), squared jumps of the log posterior and number of steps per operator. */
+    double[] time, sqJumps;
+    long[] steps;
+
+    Distribution posterior;
+    int lastOperator = -1;
+    long lastTime;
+    double lastLogP;
+    long step = 0;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        if (minWeightFactorInput.get() <= 0 || maxWeightFactorInput.get() < minWeightFactorInput.get())
+            throw new IllegalArgumentException("Weight bounds must satisfy 0 < minWeightFactor <= maxWeightFactor.");
+        if (learningRateInput.get() <= 0 || learningRateInput.get() > 1)
+            throw new IllegalArgumentException("learningRate must be in (0, 1].");
+    }
+
+    /**
+     * (Re-)build the weight arrays whenever the set of operators changed.
+     */
+    protected void initWeights() {
+        int n = operators.size();
+        baseWeights = new double[n];
+        weights = new double[n];
+        cumulativeWeights = new double[n];
+        time = new double[n];
+        sqJumps = new double[n];
+        steps = new long[n];
+
+        for (int i=0; i<n; i++) {
+            baseWeights[i] = operators.get(i).getWeight();
+            weights[i] = baseWeights[i];
+        }
+        updateCumulativeWeights();
+
+        lastOperator = -1;
+        posterior = findPosterior();
+        if (posterior == null)
+            Log.warning.println("CostAwareOperatorSchedule: no posterior found, the operator weights are not adapted.");
+    }
+
+    /**
+     * @return the posterior input, or else the posterior of the MCMC using
+     * this schedule (the MCMC is known once the schedule is connected to it).
+     */
+    protected Distribution findPosterior() {
+        if (posteriorInput.get() != null)
+            return posteriorInput.get();
+        for (BEASTInterface output : getOutputs()) {
+            if (output instanceof MCMC mcmc)
+                return mcmc.posteriorInput.get();
+        }
+        return null;
+    }
+
+    void updateCumulativeWeights() {
+        double sum = 0;
+        for (int i=0; i<weights.length; i++) {
+            sum += weights[i];
+            cumulativeWeights[i] = sum;
+        }
+    }
+
+    @Override
+    public Operator selectOperator() {
+        long now = System.nanoTime();
+
+        if (weights == null || weights.length != operators.size())
+            initWeights();
+
+        // Book-keeping for the previous step (the posterior is restored after a rejection)
+        double logP = (posterior != null) ? posterior.getCurrentLogP() : 0.0;
+        if (lastOperator >= 0) {
+            double jump = logP - lastLogP;
+            recordStep(lastOperator, now - lastTime, Double.isFinite(jump) ? jump*jump : 0.0);
+        }
+        lastLogP = logP;
+
+        step += 1;
+        if (step > adaptDelayInput.get() && step % adaptIntervalInput.get() == 0)
+            adaptWeights();
+
+        double u = Randomizer.nextDouble() * cumulativeWeights[cumulativeWeights.length-1];
+        int i = 0;
+        while (cumulativeWeights[i] <= u && i < cumulativeWeights.length-1)
+            i++;
+
+        lastOperator = i;
+        lastTime = System.nanoTime();
+        return operators.get(i);
+    }
+
+    /**
+     * Record one step of the i'th operator.
+     * @param i Index of the operator.
+     * @param nanos Wall time of the step.
+     * @param sqJump Squared change of the log posterior in the step.
+     */
+    protected void recordStep(int i, double nanos, double sqJump) {
+        time[i] += nanos;
+        sqJumps[i] += sqJump;
+        steps[i]++;
+    }
+
+    /**
+     * Move the weights towards target weights proportional to the
+     * (original weight) x (squared jump distance per second) of each operator.
+     * Every operator gets one pseudo-step with the mean squared jump of all
+     * steps, so that operators without any accepted move so far are not
+     * immediately pushed to the minimal weight.
+     */
+    protected void adaptWeights() {
+        int n = weights.length;
+
+        double totalSqJump = 0;
+        long totalSteps = 0;
+        for (int i=0; i<n; i++) {
+            totalSqJump += sqJumps[i];
+            totalSteps += steps[i];
+        }
+        if (totalSqJump <= 0)
+            // No information on the mixing (yet)
+            return;
+        double pseudoJump = totalSqJump / totalSteps;
+
+        double[] efficiency = new double[n];
+        double weightedEfficiency = 0, totalBaseWeight = 0;
+        for (int i=0; i<n; i++) {
+            if (time[i] <= 0) {
+                // No information yet, keep the operator at its original weight
+                efficiency[i] = Double.NaN;
+                continue;
+            }
+            efficiency[i] = (sqJumps[i] + pseudoJump) / time[i];
+            weightedEfficiency += baseWeights[i] * efficiency[i];
+            totalBaseWeight += baseWeights[i];
+        }
+
+        if (totalBaseWeight <= 0)
+            return;
+        double meanEfficiency = weightedEfficiency / totalBaseWeight;
+
+        double rate = learningRateInput.get();
+        for (int i=0; i<n; i++) {
+            double target;
+            if (Double.isNaN(efficiency[i]))
+                target = baseWeights[i];
+            else
+                target = baseWeights[i] * efficiency[i] / meanEfficiency;
+
+            target = Math.max(target, baseWeights[i] * minWeightFactorInput.get());
+            target = Math.min(target, baseWeights[i] * maxWeightFactorInput.get());
+            weights[i] = (1 - rate) * weights[i] + rate * target;
+        }
+        updateCumulativeWeights();
+    }
+
+    /**
+     * @return the accumulated wall time (in ns) of the steps of the i'th operator.
+     */
+    public double getOperatorTime(int i) {
+        return (time == null || i >= time.length) ? 0.0 : time[i];
+    }
+
+    /**
+     * @return the current (adapted) weight of the i'th operator.
+     */
+    public double getAdaptedWeight(int i) {
+        return weights[i];
+    }
+
+    @Override
+    public void showOperatorRates(final PrintStream out) {
+        super.showOperatorRates(out);
+
+        if (weights == null)
+            return;
+
+        out.println("Adapted operator weights:");
+        out.println(String.format("%-60s %-12s %-12s %-12s", "Operator", "Weight", "SqJump/s", "ms/step"));
+        for (int i=0; i<weights.length; i++) {
+            Operator op = operators.get(i);
+            out.println(String.format("%-60s %-12.4f %-12.4g %-12.4f",
+                    op.getID(), weights[i],
+                    time[i] > 0 ? sqJumps[i] / time[i] * 1E9 : 0.0,
+                    steps[i] > 0 ? time[i] / steps[i] * 1E-6 : 0.0));
+        }
+        out.println();
+        Log.info.println();
+    }
+
+    /*
+     * Loggable implementation: the (normalised) adapted weights
+     */
+
+    @Override
+    public void init(PrintStream out) {
+        if (weights == null || weights.length != operators.size())
+            initWeights();
+        for (Operator op : operators)
+            out.print("weight." + op.getID() + "\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        double total = cumulativeWeights[cumulativeWeights.length-1];
+        for (double w : weights)
+            out.print(w / total + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+}
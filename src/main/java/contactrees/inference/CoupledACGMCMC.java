@@ -0,0 +1,217 @@
+package contactrees.inference;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.MCMC;
+import beast.base.inference.Runnable;
+import beast.base.util.Randomizer;
+
+/**
+ * Metropolis-coupled MCMC (MC^3) for contacTrees models. Each chain is a complete
+ * MCMC object (typically generated with a plate), so that every chain has its own
+ * ConversionGraph, BlockSet, marginal trees and likelihoods. The chains are run
+ * in parallel for `swapInterval` steps, after which a swap of the full state between
+ * two neighbouring chains (in temperature) is proposed.
+ *
+ * The first chain is the cold chain, only its loggers are used.
+ *
+ * Note: all chains draw from the shared Randomizer, so runs with more than one
+ * thread are not exactly reproducible from the seed.
+ *
+ * @author Nico Neureiter
+ */
+@Description("Metropolis-coupled MCMC (MC^3) running heated contacTrees chains on separate threads.")
+public class CoupledACGMCMC extends Runnable {
+
+    public Input<List<MCMC>> chainsInput = new Input<>(
+            "chain",
+            "The MCMC chains (identical models with separate state). The first chain is the cold chain.",
+            new ArrayList<>());
+
+    public Input<Long> chainLengthInput = new Input<>(
+            "chainLength",
+            "Number of steps per chain.",
+            Input.Validate.REQUIRED);
+
+    public Input<Integer> swapIntervalInput = new Input<>(
+            "swapInterval",
+            "Number of steps of every chain between two swap proposals.",
+            100);
+
+    public Input<Double> deltaTemperatureInput = new Input<>(
+            "deltaTemperature",
+            "Temperature difference between neighbouring chains: beta_i = 1 / (1 + i*deltaTemperature).",
+            0.1);
+
+    public Input<Integer> threadsInput = new Input<>(
+            "threads",
+            "Number of threads used to run the chains (defaults to the number of chains).",
+            -1);
+
+    public Input<Integer> numInitializationAttemptsInput = new Input<>(
+            "numInitializationAttempts",
+            "Number of initialisation attempts per chain before failing.",
+            10);
+
+    public Input<String> swapLogFileInput = new Input<>(
+            "swapLog",
+            "Optional file to which every swap proposal is logged.");
+
+    protected List<HeatedACGChain> chains;
+    protected int nChains;
+
+    /** Number of proposed and accepted swaps between chain i and i+1. */
+    protected long[] swapsProposed, swapsAccepted;
+
+    @Override
+    public void initAndValidate() {
+        List<MCMC> mcmcs = chainsInput.get();
+        nChains = mcmcs.size();
+        if (nChains < 2)
+            throw new IllegalArgumentException("CoupledACGMCMC requires at least two chains.");
+        if (swapIntervalInput.get() < 1)
+            throw new IllegalArgumentException("swapInterval must be positive.");
+        if (deltaTemperatureInput.get() <= 0)
+            throw new IllegalArgumentException("deltaTemperature must be positive.");
+
+        chains = new ArrayList<>();
+        for (int i=0; i<nChains; i++) {
+            double beta = 1.0 / (1.0 + i*deltaTemperatureInput.get());
+            chains.add(new HeatedACGChain(mcmcs.get(i), beta));
+        }
+
+        for (int i=1; i<nChains; i++)
+            chains.get(0).checkCompatible(chains.get(i));
+
+        swapsProposed = new long[nChains - 1];
+        swapsAccepted = new long[nChains - 1];
+    }
+
+    @Override
+    public void run() throws Exception {
+        int nThreads = threadsInput.get() > 0 ? threadsInput.get() : nChains;
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+
+        PrintStream swapLog = null;
+        if (swapLogFileInput.get() != null) {
+            swapLog = openSwapLog(swapLogFileInput.get());
+            swapLog.println("Sample\tChain1\tChain2\tlogAlpha\tAccepted");
+        }
+
+        try {
+            for (HeatedACGChain chain : chains)
+                chain.initialise(numInitializationAttemptsInput.get());
+
+            HeatedACGChain coldChain = chains.get(0);
+            coldChain.initLoggers(chainsInput.get().get(0).loggersInput.get());
+
+            long chainLength = chainLengthInput.get();
+            long swapInterval = swapIntervalInput.get();
+            long startTime = System.currentTimeMillis();
+
+            for (long sample=0; sample<chainLength; sample+=swapInterval) {
+                long nSteps = Math.min(swapInterval, chainLength - sample);
+                runChains(executor, nSteps);
+
+                if (sample + nSteps < chainLength)
+                    proposeSwap(sample + nSteps, swapLog);
+            }
+
+            coldChain.closeLoggers();
+
+            long endTime = System.currentTimeMillis();
+            Log.info.println();
+            chainsInput.get().get(0).operatorScheduleInput.get().showOperatorRates(Log.info);
+            showSwapStatistics(Log.info);
+            Log.info.println("Total calculation time: " + (endTime - startTime)/1000.0 + " seconds");
+        } finally {
+            executor.shutdown();
+            if (swapLog != null)
+                swapLog.close();
+        }
+    }
+
+    /**
+     * Run all chains in parallel for the given number of steps.
+     */
+    protected void runChains(ExecutorService executor, long nSteps) throws InterruptedException, ExecutionException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (HeatedACGChain chain : chains) {
+            tasks.add(() -> {
+                chain.run(nSteps);
+                return null;
+            });
+        }
+
+        for (Future<Void> future : executor.invokeAll(tasks))
+            future.get();
+    }
+
+    /**
+     * Propose to swap the states of two randomly chosen neighbouring chains.
+     * The acceptance probability is
+     *    min(1, (P(x_j)/P(x_i))^(beta_i - beta_j)).
+     * @param sample The current sample number (for the swap log).
+     * @param swapLog Stream to log the swap to, or null.
+     * @return whether the swap was accepted.
+     */
+    protected boolean proposeSwap(long sample, PrintStream swapLog) {
+        int i = Randomizer.nextInt(nChains - 1);
+        HeatedACGChain chainI = chains.get(i);
+        HeatedACGChain chainJ = chains.get(i+1);
+
+        double logAlpha = (chainI.getBeta() - chainJ.getBeta()) * (chainJ.getLogP() - chainI.getLogP());
+        boolean accept = logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha);
+
+        swapsProposed[i] += 1;
+        if (accept) {
+            chainI.swapStateWith(chainJ);
+            swapsAccepted[i] += 1;
+        }
+
+        if (swapLog != null)
+            swapLog.println(sample + "\t" + i + "\t" + (i+1) + "\t" + logAlpha + "\t" + (accept ? 1 : 0));
+
+        return accept;
+    }
+
+    protected PrintStream openSwapLog(String fileName) throws FileNotFoundException {
+        return new PrintStream(fileName);
+    }
+
+    /**
+     * Print the temperatures and swap acceptance rates of all neighbouring chain pairs.
+     */
+    public void showSwapStatistics(PrintStream out) {
+        out.println("Swap statistics:");
+        out.println(String.format("%-8s %-10s %-10s %-10s %-10s %-10s", "Chains", "Beta1", "Beta2", "Proposed", "Accepted", "Rate"));
+        for (int i=0; i<nChains-1; i++) {
+            double rate = swapsProposed[i] > 0 ? (double) swapsAccepted[i] / swapsProposed[i] : 0.0;
+            out.println(String.format("%-8s %-10.4f %-10.4f %-10d %-10d %-10.4f",
+                    i + "<>" + (i+1),
+                    chains.get(i).getBeta(), chains.get(i+1).getBeta(),
+                    swapsProposed[i], swapsAccepted[i], rate));
+        }
+        out.println();
+    }
+
+    public long getSwapsProposed(int i) {
+        return swapsProposed[i];
+    }
+
+    public long getSwapsAccepted(int i) {
+        return swapsAccepted[i];
+    }
+
+}
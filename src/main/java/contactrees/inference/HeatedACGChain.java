@@ -0,0 +1,241 @@
+package contactrees.inference;
+
+import java.io.IOException;
+import java.util.List;
+
+import beast.base.inference.Distribution;
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.OperatorSchedule;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.util.Randomizer;
+import contactrees.operators.GibbsOperator;
+
+/**
+ * A single (possibly heated) chain of a CoupledACGMCMC run. The chain wraps
+ * the state, posterior and operator schedule of an MCMC object and performs
+ * Metropolis-Hastings steps on the tempered posterior P(x)^beta. Gibbs
+ * operators (see GibbsOperator) in heated chains must return a Hastings ratio
+ * (mcmcmc="true"), otherwise the chain is rejected.
+ *
+ * @author Nico Neureiter
+ */
+public class HeatedACGChain {
+
+    final MCMC mcmc;
+    final State state;
+    final Distribution posterior;
+    final OperatorSchedule operatorSchedule;
+    final List<StateNode> stateNodes;
+
+    /** Inverse temperature of this chain (1.0 for the cold chain). */
+    double beta;
+
+    /** Untempered log posterior of the current state. */
+    double logP;
+
+    /** Number of steps performed by this chain so far. */
+    long sample;
+
+    /** Loggers of this chain (only used for the cold chain). */
+    List<Logger> loggers = null;
+
+    public HeatedACGChain(MCMC mcmc, double beta) {
+        this.mcmc = mcmc;
+        this.beta = beta;
+
+        state = mcmc.startStateInput.get();
+        posterior = mcmc.posteriorInput.get();
+        operatorSchedule = mcmc.operatorScheduleInput.get();
+        stateNodes = state.stateNodeInput.get();
+
+        // Gibbs operators which are always accepted would sample from the
+        // cold posterior and break the swaps between the chains.
+        if (beta < 1.0) {
+            for (Operator operator : mcmc.operatorsInput.get()) {
+                if (operator instanceof GibbsOperator && !((GibbsOperator) operator).isTemperingAdjusted())
+                    throw new IllegalArgumentException(operator.getID() + " is used in the heated chain "
+                            + mcmc.getID() + " without mcmcmc=\"true\", so it would sample from the cold posterior.");
+            }
+        }
+    }
+
+    /**
+     * Initialise the state nodes (using the initialisers of the MCMC object)
+     * and compute the starting posterior.
+     * @param maxAttempts Maximum number of initialisation attempts.
+     */
+    public void initialise(int maxAttempts) {
+        state.initAndValidate();
+        state.setEverythingDirty(true);
+
+        int attempts = 0;
+        do {
+            for (StateNodeInitialiser initialiser : mcmc.initialisersInput.get())
+                initialiser.initStateNodes();
+            logP = state.robustlyCalcPosterior(posterior);
+            attempts += 1;
+        } while (Double.isInfinite(logP) && attempts < maxAttempts);
+
+        if (Double.isInfinite(logP) || Double.isNaN(logP))
+            throw new RuntimeException("Could not find a proper state to initialise chain "
+                    + mcmc.getID() + ". Perhaps try another seed.");
+
+        state.storeCalculationNodes();
+        sample = 0;
+    }
+
+    /**
+     * Restart the chain from the current values of the state nodes (e.g. after
+     * they were overwritten by a draw from the prior), without running the
+     * initialisers.
+     */
+    public void restartFromCurrentState() {
+        state.setEverythingDirty(true);
+        logP = state.robustlyCalcPosterior(posterior);
+        state.storeCalculationNodes();
+        sample = 0;
+    }
+
+    /**
+     * Attach loggers to this chain and write the log headers.
+     * @param loggers The loggers which should log the state of this chain.
+     */
+    public void initLoggers(List<Logger> loggers) throws IOException {
+        this.loggers = loggers;
+        for (Logger logger : loggers)
+            logger.init();
+    }
+
+    public void closeLoggers() {
+        if (loggers == null)
+            return;
+        for (Logger logger : loggers)
+            logger.close();
+    }
+
+    /**
+     * Run the chain for the given number of steps.
+     * @param nSteps Number of MCMC steps.
+     */
+    public void run(long nSteps) {
+        for (long i=0; i<nSteps; i++) {
+            step();
+            sample += 1;
+            if (loggers != null) {
+                for (Logger logger : loggers)
+                    logger.log(sample);
+            }
+        }
+    }
+
+    /**
+     * Perform a single Metropolis-Hastings step on the tempered posterior.
+     */
+    protected void step() {
+        state.store(sample);
+
+        Operator operator = operatorSchedule.selectOperator();
+        double logHastingsRatio = operator.proposal();
+        double logAlpha;
+
+        if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+            if (operator.requiresStateInitialisation()) {
+                state.storeCalculationNodes();
+                state.checkCalculationNodesDirtiness();
+            }
+
+            double newLogP = posterior.calculateLogP();
+            logAlpha = beta * (newLogP - logP) + logHastingsRatio;
+
+            if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+                // accept
+                logP = newLogP;
+                state.acceptCalculationNodes();
+                operator.accept();
+            } else {
+                // reject
+                operator.reject(newLogP == Double.NEGATIVE_INFINITY ? -1 : 0);
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+        } else {
+            // operation failed
+            logAlpha = Double.NEGATIVE_INFINITY;
+            operator.reject(-2);
+            state.restore();
+            if (!operator.requiresStateInitialisation()) {
+                state.setEverythingDirty(false);
+                state.restoreCalculationNodes();
+            }
+        }
+
+        operator.optimize(logAlpha);
+    }
+
+    /**
+     * Exchange the complete state (clonal frame, conversions, blocks and all
+     * other state nodes) between this chain and another one. Both chains are
+     * fully recalculated afterwards.
+     * @param other The chain to swap states with.
+     */
+    public void swapStateWith(HeatedACGChain other) {
+        for (int i=0; i<stateNodes.size(); i++) {
+            StateNode node = stateNodes.get(i);
+            StateNode otherNode = other.stateNodes.get(i);
+
+            StateNode tmp = node.copy();
+            assignKeepID(node, otherNode);
+            assignKeepID(otherNode, tmp);
+        }
+
+        logP = state.robustlyCalcPosterior(posterior);
+        other.logP = other.state.robustlyCalcPosterior(other.posterior);
+    }
+
+    /**
+     * Copy the value of `source` into `target` without taking over its ID
+     * (the chains are usually created from a plate, so IDs differ by chain).
+     */
+    static void assignKeepID(StateNode target, StateNode source) {
+        String id = target.getID();
+        target.assignFrom(source);
+        target.setID(id);
+    }
+
+    /**
+     * Check that the state of the other chain can be swapped with this one.
+     */
+    public void checkCompatible(HeatedACGChain other) {
+        if (stateNodes.size() != other.stateNodes.size())
+            throw new IllegalArgumentException("Chains " + mcmc.getID() + " and " + other.mcmc.getID()
+                    + " have different numbers of state nodes.");
+
+        for (int i=0; i<stateNodes.size(); i++) {
+            if (stateNodes.get(i).getClass() != other.stateNodes.get(i).getClass())
+                throw new IllegalArgumentException("State node " + i + " of chain " + mcmc.getID()
+                        + " does not match the corresponding state node of chain " + other.mcmc.getID() + ".");
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public double getBeta() {
+        return beta;
+    }
+
+    public double getLogP() {
+        return logP;
+    }
+
+    public long getSample() {
+        return sample;
+    }
+
+}
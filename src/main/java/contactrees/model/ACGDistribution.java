@@ -4,24 +4,25 @@
 package contactrees.model;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
 
 import org.apache.commons.statistics.distribution.PoissonDistribution;
 
-import beast.base.inference.Distribution;
 import beast.base.core.BEASTInterface;
 import beast.base.core.Input;
 import beast.base.inference.State;
+import beast.base.inference.StateNode;
 import beast.base.spec.domain.NonNegativeReal;
 import beast.base.spec.type.RealScalar;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TreeDistribution;
 import beast.base.util.Randomizer;
-import contactrees.CFEventList;
+import contactrees.ACGArrays;
 import contactrees.CFEventList.Event;
+import contactrees.CFEventList;
 import contactrees.Conversion;
 import contactrees.ConversionGraph;
 import contactrees.util.Util;
@@ -29,7 +30,7 @@ import contactrees.util.Util;
 /**
  * @author Nico Neureiter
  */
-public class ACGDistribution extends Distribution {
+public class ACGDistribution extends ProfiledDistribution {
 
     final public Input<ConversionGraph> networkInput = new Input<>(
             "network",
@@ -64,14 +65,48 @@ public class ACGDistribution extends Distribution {
     ConversionGraph acg;
     TreeDistribution cfModel;
 
-    PriorityQueue<Conversion> convQueue;
+    /*
+     * The logP is the sum of the clonal frame prior (cfModel) and the contact
+     * prior, which are cached separately. Each part is only recalculated if
+     * the state it depends on changed since it was computed: the clonal frame
+     * (and the other inputs of the cfModel) for cfLogP; the clonal frame, the
+     * conversions and the conversion rate for contactLogP.
+     */
+    double cfLogP, storedCFLogP;
+    double contactLogP, storedContactLogP;
+    long cfLogPVersion = -1, storedCFLogPVersion = -1;
+    long contactCFVersion = -1, storedContactCFVersion = -1;
+    long contactConvVersion = -1, storedContactConvVersion = -1;
+    double contactConvRate = Double.NaN, storedContactConvRate = Double.NaN;
+
+    /**
+     * State nodes (other than the ACG) on which the cfModel depends.
+     */
+    List<StateNode> cfModelStateNodes;
 
     @Override
     public void initAndValidate() {
         super.initAndValidate();
         acg = networkInput.get();
         cfModel = cfModelInput.get();
-        convQueue = new PriorityQueue<>();
+
+        cfModelStateNodes = new ArrayList<>();
+        collectStateNodes(cfModel, new HashSet<>());
+    }
+
+    /**
+     * Collect all state nodes (except for the ACG) upstream of obj.
+     */
+    private void collectStateNodes(BEASTInterface obj, Set<BEASTInterface> visited) {
+        for (BEASTInterface input : obj.listActiveBEASTObjects()) {
+            if (!visited.add(input) || input == acg)
+                continue;
+
+            if (input instanceof StateNode stateNode)
+                cfModelStateNodes.add(stateNode);
+            else
+                collectStateNodes(input, visited);
+        }
     }
 
     protected double getExpectedConversions() {
@@ -102,29 +137,75 @@ public class ACGDistribution extends Distribution {
     }
 
     @Override
-    public double calculateLogP() {
-        logP = cfModel.calculateLogP();
+    protected double computeLogP() {
+        if (cfModelOutdated()) {
+            cfLogP = cfModel.calculateLogP();
+            cfLogPVersion = acg.getClonalFrameVersion();
+        }
+
         double convRate = getConversionRate();
+        if (contactPriorOutdated(convRate)) {
+            contactLogP = calculateContactLogP(convRate);
+            contactCFVersion = acg.getClonalFrameVersion();
+            contactConvVersion = acg.getConversionsVersion();
+            contactConvRate = convRate;
+        }
+
+        logP = cfLogP + contactLogP;
+        return logP;
+    }
+
+    /**
+     * @return true if the clonal frame or any other input of the cfModel
+     * changed since cfLogP was computed.
+     */
+    boolean cfModelOutdated() {
+        if (acg.getClonalFrameVersion() != cfLogPVersion)
+            return true;
+
+        for (StateNode stateNode : cfModelStateNodes) {
+            if (stateNode.somethingIsDirty())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the clonal frame, the conversions or the conversion rate
+     * changed since contactLogP was computed.
+     */
+    boolean contactPriorOutdated(double convRate) {
+        return acg.getClonalFrameVersion() != contactCFVersion
+                || acg.getConversionsVersion() != contactConvVersion
+                || convRate != contactConvRate;
+    }
+
+    /**
+     * Calculate the log-density of the conversions given the clonal frame.
+     */
+    protected double calculateContactLogP(double convRate) {
+        double logP = 0.0;
 
         // Handle some corner cases
         assert convRate >= 0.0;
         if (convRate == 0.0) {
             if (acg.getConvCount() == 0)
-                logP += 0.0;
+                return 0.0;
             else
-                logP += Double.NEGATIVE_INFINITY;
-            return logP;
+                return Double.NEGATIVE_INFINITY;
         }
 
         // Check whether conversion count exceeds bounds.
         if (acg.getConvCount() < lowerCCBoundInput.get()
                 || acg.getConvCount() > upperCCBoundInput.get()) {
-            logP = Double.NEGATIVE_INFINITY;
-            return logP;
+            return Double.NEGATIVE_INFINITY;
         }
 
-        convQueue.clear();
-        convQueue.addAll(acg.getConversions().getConversions());
+        // Sweep over the conversion heights in increasing order (primitive view, no allocations)
+        ACGArrays arrays = acg.getArrays();
+        double[] convHeights = arrays.getSortedConvHeights();
+        int convCount = arrays.getConvCount();
+        int nextConv = 0;
 
         // Poisson prior on the number of conversions per event interval (between sampling/coalescent events)
         double localConvRate = convRate;
@@ -145,12 +226,12 @@ public class ACGDistribution extends Distribution {
             logP -= localConvRate * waitingtime;
 
             // Add event probabilities for the contact edges in this interval
-            while ((convQueue.peek() != null) && (convQueue.peek().getHeight() < eEnd.getHeight())) {
+            while ((nextConv < convCount) && (convHeights[nextConv] < eEnd.getHeight())) {
                 logP += Math.log(localConvRate);
-                convQueue.poll();
+                nextConv++;
             }
         }
-        assert convQueue.isEmpty();  // We iterated through all conversions end removed them from `convs`
+        assert nextConv == convCount;  // We iterated through all conversions
 
         // Correct for probability mass outside the specified bounds on number of conversions.
         if (lowerCCBoundInput.get()>0 || upperCCBoundInput.get()<Integer.MAX_VALUE) {
@@ -172,10 +253,30 @@ public class ACGDistribution extends Distribution {
 
     @Override
     protected boolean requiresRecalculation() {
-        // For now we use the safe version (always recalculate)
-        return true;
-        // TODO: Use the version below when sure that dirty logic is fine in ACG.
-        // return networkInput.get().somethingIsDirty();
+        // Moves which only change the blocks touch neither part
+        return cfModelOutdated() || contactPriorOutdated(getConversionRate());
+    }
+
+    @Override
+    public void store() {
+        storedCFLogP = cfLogP;
+        storedCFLogPVersion = cfLogPVersion;
+        storedContactLogP = contactLogP;
+        storedContactCFVersion = contactCFVersion;
+        storedContactConvVersion = contactConvVersion;
+        storedContactConvRate = contactConvRate;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        cfLogP = storedCFLogP;
+        cfLogPVersion = storedCFLogPVersion;
+        contactLogP = storedContactLogP;
+        contactCFVersion = storedContactCFVersion;
+        contactConvVersion = storedContactConvVersion;
+        contactConvRate = storedContactConvRate;
+        super.restore();
     }
 
     @Override
@@ -220,6 +321,10 @@ public class ACGDistribution extends Distribution {
         acg.assignFromFragile((ConversionGraph) cfModel.treeInput.get());
 
         generateConversions(getExpectedConversions());
+
+        // Parameters may have been sampled without being marked dirty
+        cfLogPVersion = -1;
+        contactCFVersion = -1;
     }
 
     /**
@@ -240,6 +345,11 @@ public class ACGDistribution extends Distribution {
         }
     }
 
+    /**
+     * Reusable buffer for the lineages at the attachment height.
+     */
+    protected final List<Node> _activeLineages = new ArrayList<>();
+
     /**
      * Attach the conversion edge at a random point in the clonal
      * frame, selecting points of departure and arrival.
@@ -252,17 +362,18 @@ public class ACGDistribution extends Distribution {
         CFEventList cfEventList = acg.getCFEventList();
         List<Event> cfEvents = cfEventList.getCFEvents();
 
-        // Choose event interval
-        double[] intervalVolumes = cfEventList.getIntervalVolumes(!linearContactGrowthInput.get());
-        int iEvent = Util.sampleCategorical(intervalVolumes);
+        // Choose event interval (binary search in the cached cumulative volumes)
+        boolean edgePairVolume = !linearContactGrowthInput.get();
+        int iEvent = cfEventList.sampleInterval(edgePairVolume);
         Event event = cfEvents.get(iEvent);
-        double pInterval = intervalVolumes[iEvent] / Util.sum(intervalVolumes);
+        double pInterval = cfEventList.getIntervalVolume(iEvent, edgePairVolume)
+                / cfEventList.getTotalIntervalVolume(edgePairVolume);
         logQ += Math.log(pInterval);
 
         // Choose height within interval
         double height = Randomizer.uniform(event.getHeight(), cfEvents.get(iEvent+1).getHeight());
         logQ -= Math.log(cfEvents.get(iEvent+1).getHeight() - event.getHeight());
-        Set<Node> activeLineages = acg.getLineagesAtHeight(height);
+        List<Node> activeLineages = acg.getLineagesAtHeight(height, _activeLineages);
         if (activeLineages.size() <= 1)
             return Double.POSITIVE_INFINITY;
         conv.setHeight(height);
@@ -294,38 +405,18 @@ public class ACGDistribution extends Distribution {
         if (linearContactGrowthInput.get()) {
             double logQ = 0.0;
             double height = conv.getHeight();
-            List<CFEventList.Event> events = acg.getCFEvents();
-
-            // Prob. of event interval
-            double totalVolume = 0.0;
-            double intervalVolume = 0.0;
-            double intervalLength = 0.0;
-            int hits = 0;
-            for (int i = 0; i<events.size()-1; i++) {
-                CFEventList.Event eStart = events.get(i);
-                CFEventList.Event eEnd = events.get(i+1);
-                double dt = eEnd.getHeight() - eStart.getHeight();
-                int k = eStart.getLineageCount();
-                if (k == 1) continue;
-                if (eStart.getHeight() <= height && height < eEnd.getHeight()) {
-                    // Probability of choosing this interval (normalization over intervals is done further down)
-                    intervalVolume = k * dt;
-                    // Probability density of height within interval
-                    intervalLength = dt;
-                    // Just to make sure we find one and only one active interval
-                    hits++;
-                }
-                totalVolume += (k * dt);
-            }
-            assert hits == 1;
+            CFEventList cfEventList = acg.getCFEventList();
 
-            double pInterval = intervalVolume / totalVolume;
+            // Prob. of event interval (binary search for the interval containing the height)
+            int i = cfEventList.getIntervalIndexAtHeight(height);
+            double pInterval = cfEventList.getIntervalVolume(i, false) / cfEventList.getTotalIntervalVolume(false);
             logQ += Math.log(pInterval);
 
             // Prob. of height within interval
+            double intervalLength = cfEventList.getEventHeight(i+1) - cfEventList.getEventHeight(i);
             logQ -= Math.log(intervalLength);
 
-            Set<Node> activeLineages = acg.getLineagesAtHeight(height);
+            List<Node> activeLineages = acg.getLineagesAtHeight(height, _activeLineages);
             if (activeLineages.size() <= 1)
                 return Double.POSITIVE_INFINITY;
 
@@ -20,9 +20,23 @@ package contactrees.model;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.inference.Logger;
+import beast.base.util.Randomizer;
+import contactrees.Block;
+import contactrees.BlockSet;
+import contactrees.ConversionGraph;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.rng.JumpableUniformRandomProvider;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.apache.commons.rng.simple.RandomSource;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -45,12 +59,31 @@ public class ACGSimulator extends beast.base.inference.Runnable {
             "logger",
             "Logger used to write results to screen or disk.",
             new ArrayList<>());
+
+    public Input<Integer> threadsInput = new Input<>(
+            "threads",
+            "Number of threads for simulating the replicates in parallel. With more than one "
+            + "thread, every replicate uses its own random number stream derived from the seed.",
+            1);
+
+    public Input<Long> seedInput = new Input<>(
+            "seed",
+            "Master seed for the random number streams of the parallel mode (defaults to the BEAST seed).");
+
+    public Input<Integer> bufferSizeInput = new Input<>(
+            "bufferSize",
+            "Number of simulated replicates buffered per thread before they are logged (parallel mode only).",
+            64);
     
     @Override
     public void initAndValidate() { }
 
     @Override
     public void run() throws Exception {
+        if (threadsInput.get() > 1) {
+            runParallel();
+            return;
+        }
 
         // Initialise loggers
         for (Logger logger : loggersInput.get()) {
@@ -73,5 +106,98 @@ public class ACGSimulator extends beast.base.inference.Runnable {
             logger.close();
         }
     }
-    
+
+    /**
+     * A simulated replicate, buffered until it is logged.
+     */
+    static class Replicate {
+        final ConversionGraph acg;
+        final List<Block> blocks;
+
+        Replicate(SimulatedACGWithBlocks simACG) {
+            acg = simACG.getACG().copy();
+            blocks = new ArrayList<>();
+            for (Block block : simACG.getBlockSet().getBlocks())
+                blocks.add(block.copy());
+        }
+    }
+
+    /**
+     * Simulate the replicates on several threads. Every worker owns its own
+     * SimulatedACGWithBlocks (with its own ConversionGraph and BlockSet), replicate i
+     * uses the i'th jump of the master random number stream. The finished replicates
+     * are buffered and logged through the configured loggers in replicate order,
+     * so the output does not depend on the number of threads.
+     */
+    protected void runParallel() throws Exception {
+        int nThreads = threadsInput.get();
+        int nSims = nSimsInput.get();
+        int bufferSize = nThreads * Math.max(1, bufferSizeInput.get());
+
+        SimulatedACGWithBlocks simACG = simACGInput.get();
+        ConversionGraph acg = simACG.getACG();
+        BlockSet blockSet = simACG.getBlockSet();
+
+        long seed = seedInput.get() != null ? seedInput.get() : Randomizer.getSeed();
+        JumpableUniformRandomProvider masterRNG =
+                (JumpableUniformRandomProvider) RandomSource.XO_RO_SHI_RO_128_PP.create(seed);
+
+        BlockingQueue<SimulatedACGWithBlocks> workers = new ArrayBlockingQueue<>(nThreads);
+        for (int t=0; t<nThreads; t++)
+            workers.add(simACG.createIndependentCopy());
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+
+        // Initialise loggers
+        for (Logger logger : loggersInput.get()) {
+            logger.init();
+        }
+
+        try {
+            for (int start=0; start<nSims; start+=bufferSize) {
+                int end = Math.min(nSims, start + bufferSize);
+
+                // Simulate a batch of replicates in parallel
+                List<Future<Replicate>> batch = new ArrayList<>();
+                for (int i=start; i<end; i++) {
+                    UniformRandomProvider rng = masterRNG.jump();
+                    batch.add(executor.submit(() -> {
+                        SimulatedACGWithBlocks worker = workers.take();
+                        try {
+                            worker.simulate(rng);
+                            return new Replicate(worker);
+                        } finally {
+                            workers.put(worker);
+                        }
+                    }));
+                }
+
+                // Log the batch in replicate order
+                for (int i=start; i<end; i++) {
+                    Replicate replicate;
+                    try {
+                        replicate = batch.get(i - start).get();
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException("Simulation of replicate " + i + " failed.", e.getCause());
+                    }
+
+                    acg.assignFrom(replicate.acg);
+                    for (int b=0; b<replicate.blocks.size(); b++)
+                        blockSet.getBlocks().get(b).assignFrom(replicate.blocks.get(b));
+
+                    for (Logger logger : loggersInput.get()) {
+                        logger.log(i);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Finalize loggers
+        for (Logger logger : loggersInput.get()) {
+            logger.close();
+        }
+    }
+
 }
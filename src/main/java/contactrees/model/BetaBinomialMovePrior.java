@@ -15,21 +15,23 @@ import org.apache.commons.statistics.distribution.ContinuousDistribution;
 
 import beast.base.core.BEASTInterface;
 import beast.base.core.Input;
-import beast.base.inference.Distribution;
+import beast.base.inference.CalculationNode;
 import beast.base.inference.State;
+import beast.base.inference.StateNode;
 import beast.base.spec.domain.PositiveReal;
 import beast.base.spec.type.RealScalar;
 import contactrees.Block;
 import contactrees.BlockSet;
 import contactrees.Conversion;
 import contactrees.ConversionGraph;
+import contactrees.util.IntCountMap;
 
 /**
  *
  *
  * @author Nico Neureiter
  */
-public class BetaBinomialMovePrior extends Distribution {
+public class BetaBinomialMovePrior extends ProfiledDistribution {
 
     final public Input<ConversionGraph> networkInput = new Input<>(
             "network",
@@ -55,29 +57,154 @@ public class BetaBinomialMovePrior extends Distribution {
     ConversionGraph acg;
     BlockSet blockSet;
 
+    /*
+     * Incremental state: the number of affected blocks per conversion ID and a
+     * histogram over these counts (convsByCount[k] conversions are affected by
+     * k>0 blocks, index 0 is not used). Each block is only re-counted when
+     * its version changed.
+     */
+    IntCountMap affectedCounts;
+    int[] convsByCount;
+    Block[] countedBlocks;
+    int[] countedVersions;
+    int[][] countedConvIDs;
+    int[] countedSizes;
+
+    /*
+     * logBetaBinomial[k] is the log-probability of k out of n blocks moving
+     * over a conversion (up to the binomial coefficient), for the current
+     * alpha and beta.
+     */
+    double[] logBetaBinomial;
+    double tableAlpha = Double.NaN, tableBeta = Double.NaN;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
         acg = networkInput.get();
         blockSet = blockSetInput.get();
+        affectedCounts = new IntCountMap();
+        resetCounts();
     }
 
     @Override
-    public double calculateLogP() {
-        logP = 0.0;
+    protected double computeLogP() {
+        updateTable();
+        updateCounts();
+
+        int n = blockSet.getBlockCount();
+        int unaffectedCount = acg.getConvCount() - affectedCounts.size();
+        logP = unaffectedCount * logBetaBinomial[0];
+        for (int k=1; k<=n; k++) {
+            if (convsByCount[k] > 0)
+                logP += convsByCount[k] * logBetaBinomial[k];
+        }
+        return logP;
+    }
+
+    /**
+     * Recompute the log-beta-binomial table if alpha, beta or the number of
+     * blocks changed.
+     */
+    void updateTable() {
         double alpha = alphaInput.get().get();
         double beta = betaInput.get().get();
         int n = blockSet.getBlockCount();
-        for (Conversion conv : acg.getConversions()) {
-            int k = blockSet.countAffectedBlocks(conv);
-            logP += LogBeta.value(alpha + k, beta + n - k) - LogBeta.value(alpha, beta);
+        if (alpha == tableAlpha && beta == tableBeta && logBetaBinomial.length == n+1)
+            return;
+
+        logBetaBinomial = new double[n+1];
+        double logBetaPrior = LogBeta.value(alpha, beta);
+        for (int k=0; k<=n; k++)
+            logBetaBinomial[k] = LogBeta.value(alpha + k, beta + n - k) - logBetaPrior;
+
+        tableAlpha = alpha;
+        tableBeta = beta;
+    }
+
+    /**
+     * Forget all counts (they are rebuilt on the next call of updateCounts()).
+     */
+    void resetCounts() {
+        int n = blockSet.getBlockCount();
+        affectedCounts.clear();
+        convsByCount = new int[n+1];
+        countedBlocks = new Block[n];
+        countedVersions = new int[n];
+        countedConvIDs = new int[n][];
+        countedSizes = new int[n];
+        for (int i=0; i<n; i++)
+            countedConvIDs[i] = new int[0];
+    }
+
+    /**
+     * Update the per-conversion counts for all blocks which changed since they
+     * were last counted, by removing their old moves and adding the current ones.
+     */
+    void updateCounts() {
+        if (countedBlocks.length != blockSet.getBlockCount())
+            resetCounts();
+
+        for (int i=0; i<countedBlocks.length; i++) {
+            Block block = blockSet.get(i);
+            if (block == countedBlocks[i] && block.getVersion() == countedVersions[i])
+                continue;
+
+            int[] oldConvIDs = countedConvIDs[i];
+            for (int j=0; j<countedSizes[i]; j++) {
+                int k = affectedCounts.decrement(oldConvIDs[j]);
+                convsByCount[k+1]--;
+                convsByCount[k]++;
+            }
+
+            List<Integer> convIDs = block.getConversionIDs();
+            int size = convIDs.size();
+            if (oldConvIDs.length < size)
+                countedConvIDs[i] = oldConvIDs = new int[Math.max(size, 2*oldConvIDs.length)];
+            for (int j=0; j<size; j++) {
+                int convID = convIDs.get(j);
+                oldConvIDs[j] = convID;
+                int k = affectedCounts.increment(convID);
+                convsByCount[k-1]--;
+                convsByCount[k]++;
+            }
+
+            countedSizes[i] = size;
+            countedBlocks[i] = block;
+            countedVersions[i] = block.getVersion();
         }
-        return logP;
     }
 
     @Override
     protected boolean requiresRecalculation() {
-        return true;
+        // The number of conversions (and thereby the number of unaffected conversions) may have changed
+        if (acg.somethingIsDirty())
+            return true;
+
+        if (isDirty(alphaInput) || isDirty(betaInput))
+            return true;
+
+        if (countedBlocks.length != blockSet.getBlockCount())
+            return true;
+
+        for (int i=0; i<countedBlocks.length; i++) {
+            Block block = blockSet.get(i);
+            if (block != countedBlocks[i] || block.getVersion() != countedVersions[i])
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Check whether a (potentially constant) parameter input changed.
+     */
+    boolean isDirty(Input<?> input) {
+        if (input.get() instanceof StateNode stateNode)
+            return stateNode.somethingIsDirty();
+        if (input.get() instanceof CalculationNode calculationNode)
+            return calculationNode.isDirtyCalculation();
+        return false;
     }
 
     @Override
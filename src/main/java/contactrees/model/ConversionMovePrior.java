@@ -7,7 +7,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
-import beast.base.inference.Distribution;
 import beast.base.core.BEASTInterface;
 import beast.base.core.Input;
 import beast.base.inference.State;
@@ -23,7 +22,7 @@ import contactrees.ConversionGraph;
  *
  * @author Nico Neureiter
  */
-public class ConversionMovePrior extends Distribution {
+public class ConversionMovePrior extends ProfiledDistribution {
 
     final public Input<ConversionGraph> networkInput = new Input<>(
             "network",
@@ -44,6 +43,16 @@ public class ConversionMovePrior extends Distribution {
     ConversionGraph acg;
     BlockSet blockSet;
 
+    /*
+     * The logP only depends on pMove, the number of moves and the number of
+     * possible moves. Their values at the last evaluation allow skipping the
+     * recalculation when none of them changed. They are stored and restored
+     * together with logP, so that they always describe the current logP.
+     */
+    double lastPMove = Double.NaN, storedPMove = Double.NaN;
+    int lastMoveCount = -1, lastPossibleMoves = -1;
+    int storedMoveCount = -1, storedPossibleMoves = -1;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
@@ -52,12 +61,18 @@ public class ConversionMovePrior extends Distribution {
     }
 
     @Override
-    public double calculateLogP() {
-        logP = 0.0;
+    protected double computeLogP() {
         double pMove = pMoveInput.get().get();
         int moveCount = blockSet.countMoves();
         int n = acg.getConvCount() * blockSet.getBlockCount();
 
+        if (pMove == lastPMove && moveCount == lastMoveCount && n == lastPossibleMoves)
+            return logP;
+        lastPMove = pMove;
+        lastMoveCount = moveCount;
+        lastPossibleMoves = n;
+
+        logP = 0.0;
         if (pMove == 0.) {
             assert moveCount == 0;
             return 0;
@@ -70,7 +85,26 @@ public class ConversionMovePrior extends Distribution {
 
     @Override
     protected boolean requiresRecalculation() {
-        return true;
+        // Running totals make this check O(1)
+        return pMoveInput.get().get() != lastPMove
+                || blockSet.countMoves() != lastMoveCount
+                || acg.getConvCount() * blockSet.getBlockCount() != lastPossibleMoves;
+    }
+
+    @Override
+    public void store() {
+        super.store();
+        storedPMove = lastPMove;
+        storedMoveCount = lastMoveCount;
+        storedPossibleMoves = lastPossibleMoves;
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+        lastPMove = storedPMove;
+        lastMoveCount = storedMoveCount;
+        lastPossibleMoves = storedPossibleMoves;
     }
 
     @Override
@@ -3,14 +3,12 @@
  */
 package contactrees.model;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Random;
-import java.util.Set;
 
 import org.apache.commons.statistics.distribution.PoissonDistribution;
 
-import beast.base.inference.Distribution;
 import beast.base.core.Input;
 import beast.base.core.Log;
 import beast.base.inference.State;
@@ -18,8 +16,9 @@ import beast.base.spec.domain.NonNegativeReal;
 import beast.base.spec.type.RealScalar;
 import beast.base.evolution.tree.Node;
 import beast.base.util.Randomizer;
-import contactrees.CFEventList;
+import contactrees.ACGArrays;
 import contactrees.CFEventList.Event;
+import contactrees.CFEventList;
 import contactrees.Conversion;
 import contactrees.ConversionGraph;
 import contactrees.util.Util;
@@ -29,7 +28,7 @@ import contactrees.util.Util;
  *
  * @author Nico Neureiter
  */
-public class ConversionPrior extends Distribution {
+public class ConversionPrior extends ProfiledDistribution {
 
     final public Input<ConversionGraph> networkInput = new Input<>(
             "network",
@@ -57,13 +56,11 @@ public class ConversionPrior extends Distribution {
             false);
 
     ConversionGraph acg;
-    PriorityQueue<Conversion> convQueue;
 
     @Override
     public void initAndValidate() {
         super.initAndValidate();
         acg = networkInput.get();
-        convQueue = new PriorityQueue<>();
         
         if (conversionRateInput.get() != null && conversionRateInput.get() instanceof ConversionRate) {
         	ConversionRate rate = (ConversionRate) conversionRateInput.get();
@@ -107,7 +104,7 @@ public class ConversionPrior extends Distribution {
     }
 
     @Override
-    public double calculateLogP() {
+    protected double computeLogP() {
         logP = 0;
         double convRate = getConversionRate();
 
@@ -128,8 +125,11 @@ public class ConversionPrior extends Distribution {
             return logP;
         }
 
-        convQueue.clear();
-        convQueue.addAll(acg.getConversions().getConversions());
+        // Sweep over the conversion heights in increasing order (primitive view, no allocations)
+        ACGArrays arrays = acg.getArrays();
+        double[] convHeights = arrays.getSortedConvHeights();
+        int convCount = arrays.getConvCount();
+        int nextConv = 0;
 
         // Poisson prior on the number of conversions per event interval (between sampling/coalescent events)
         double localConvRate = convRate;
@@ -150,12 +150,12 @@ public class ConversionPrior extends Distribution {
             logP -= localConvRate * waitingtime;
 
             // Add event probabilities for the contact edges in this interval
-            while ((convQueue.peek() != null) && (convQueue.peek().getHeight() < eEnd.getHeight())) {
+            while ((nextConv < convCount) && (convHeights[nextConv] < eEnd.getHeight())) {
                 logP += Math.log(localConvRate);
-                convQueue.poll();
+                nextConv++;
             }
         }
-        assert convQueue.isEmpty();  // We iterated through all conversions end removed them from `convs`
+        assert nextConv == convCount;  // We iterated through all conversions
 
         // Correct for probability mass outside the specified bounds on number of conversions.
         if (lowerCCBoundInput.get()>0 || upperCCBoundInput.get()<Integer.MAX_VALUE) {
@@ -216,6 +216,11 @@ public class ConversionPrior extends Distribution {
     //     }
     // }
 
+    /**
+     * Reusable buffer for the lineages at the attachment height.
+     */
+    protected final List<Node> _activeLineages = new ArrayList<>();
+
     /**
      * Attach the conversion edge at a random point in the clonal
      * frame, selecting points of departure and arrival.
@@ -228,17 +233,18 @@ public class ConversionPrior extends Distribution {
         CFEventList cfEventList = acg.getCFEventList();
         List<Event> cfEvents = cfEventList.getCFEvents();
 
-        // Choose event interval
-        double[] intervalVolumes = cfEventList.getIntervalVolumes(!linearContactGrowthInput.get());
-        int iEvent = Util.sampleCategorical(intervalVolumes);
+        // Choose event interval (binary search in the cached cumulative volumes)
+        boolean edgePairVolume = !linearContactGrowthInput.get();
+        int iEvent = cfEventList.sampleInterval(edgePairVolume);
         Event event = cfEvents.get(iEvent);
-        double pInterval = intervalVolumes[iEvent] / Util.sum(intervalVolumes);
+        double pInterval = cfEventList.getIntervalVolume(iEvent, edgePairVolume)
+                / cfEventList.getTotalIntervalVolume(edgePairVolume);
         logQ += Math.log(pInterval);
 
         // Choose height within interval
         double height = Randomizer.uniform(event.getHeight(), cfEvents.get(iEvent+1).getHeight());
         logQ -= Math.log(cfEvents.get(iEvent+1).getHeight() - event.getHeight());
-        Set<Node> activeLineages = acg.getLineagesAtHeight(height);
+        List<Node> activeLineages = acg.getLineagesAtHeight(height, _activeLineages);
         if (activeLineages.size() <= 1)
             return Double.POSITIVE_INFINITY;
         conv.setHeight(height);
@@ -270,38 +276,18 @@ public class ConversionPrior extends Distribution {
         if (linearContactGrowthInput.get()) {
             double logQ = 0.0;
             double height = conv.getHeight();
-            List<CFEventList.Event> events = acg.getCFEvents();
-
-            // Prob. of event interval
-            double totalVolume = 0.0;
-            double intervalVolume = 0.0;
-            double intervalLength = 0.0;
-            int hits = 0;
-            for (int i = 0; i<events.size()-1; i++) {
-                CFEventList.Event eStart = events.get(i);
-                CFEventList.Event eEnd = events.get(i+1);
-                double dt = eEnd.getHeight() - eStart.getHeight();
-                int k = eStart.getLineageCount();
-                if (k == 1) continue;
-                if (eStart.getHeight() <= height && height < eEnd.getHeight()) {
-                    // Probability of choosing this interval (normalization over intervals is done further down)
-                    intervalVolume = k * dt;
-                    // Probability density of height within interval
-                    intervalLength = dt;
-                    // Just to make sure we find one and only one active interval
-                    hits++;
-                }
-                totalVolume += (k * dt);
-            }
-            assert hits == 1;
+            CFEventList cfEventList = acg.getCFEventList();
 
-            double pInterval = intervalVolume / totalVolume;
+            // Prob. of event interval (binary search for the interval containing the height)
+            int i = cfEventList.getIntervalIndexAtHeight(height);
+            double pInterval = cfEventList.getIntervalVolume(i, false) / cfEventList.getTotalIntervalVolume(false);
             logQ += Math.log(pInterval);
 
             // Prob. of height within interval
+            double intervalLength = cfEventList.getEventHeight(i+1) - cfEventList.getEventHeight(i);
             logQ -= Math.log(intervalLength);
 
-            Set<Node> activeLineages = acg.getLineagesAtHeight(height);
+            List<Node> activeLineages = acg.getLineagesAtHeight(height, _activeLineages);
             if (activeLineages.size() <= 1)
                 return Double.POSITIVE_INFINITY;
 
@@ -0,0 +1,36 @@
+package contactrees.model;
+
+import beast.base.inference.Distribution;
+import contactrees.util.ProfileTimer;
+import contactrees.util.Profiled;
+
+/**
+ * Distribution which times its logP calculation for the ComponentProfiler.
+ * Subclasses implement computeLogP() instead of calculateLogP().
+ *
+ * @author Nico Neureiter
+ */
+public abstract class ProfiledDistribution extends Distribution implements Profiled {
+
+    // Time spent in calculateLogP() (see ComponentProfiler)
+    protected final ProfileTimer profileTimer = new ProfileTimer();
+
+    @Override
+    public final double calculateLogP() {
+        long start = profileTimer.start();
+        logP = computeLogP();
+        profileTimer.stop(start);
+        return logP;
+    }
+
+    /**
+     * @return the log probability of the current state.
+     */
+    protected abstract double computeLogP();
+
+    @Override
+    public ProfileTimer getProfileTimer() {
+        return profileTimer;
+    }
+
+}
@@ -24,7 +24,6 @@ import contactrees.CFEventList;
 import contactrees.Conversion;
 import contactrees.ConversionGraph;
 import contactrees.CFEventList.Event;
-import contactrees.util.Util;
 import contactrees.nexus.NexusBlock;
 import contactrees.nexus.NexusBuilder;
 import contactrees.nexus.TaxaBlock;
@@ -33,16 +32,21 @@ import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TraitSet;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.coalescent.PopulationFunction;
 import beast.base.util.Randomizer;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+
+import org.apache.commons.rng.UniformRandomProvider;
+import org.apache.commons.statistics.distribution.PoissonDistribution;
 
 
 @Description("Simulates an ARG under the full ClonalOrigin model - can be used"
@@ -88,6 +92,13 @@ public class SimulatedACGWithBlocks extends BEASTObject {
     private Double conversionRate, moveProb;
     private PopulationFunction popFunc;
 
+    /**
+     * Random number generator used for the simulation. If null, the global
+     * Randomizer is used. Simulations with a private generator are fully
+     * reproducible and can run in parallel with other simulators.
+     */
+    private UniformRandomProvider rng = null;
+
     
     @Override
     public void initAndValidate() {
@@ -97,23 +108,7 @@ public class SimulatedACGWithBlocks extends BEASTObject {
         moveProb = moveProbInput.get();
         popFunc = popFuncInput.get();
         
-        acg.initAndValidate();
-        blockSet.initAndValidate();
-        
-
-        if (clonalFrameInput.get() == null) {
-            simulateClonalFrame();
-        } else {
-            acg.assignFromWithoutID(clonalFrameInput.get());
-        }
-        
-        // Need to do this here as this sets the tree object that the nodes
-        // point to, so without it they point to the dummy tree created by
-        // super.initAndValidate().
-        acg.initTreeArrays();
-        
-        // Generate recombinations
-        generateConversions();
+        simulate();
         
         // Write output file
         if (outputFileNameInput.get() != null) {
@@ -128,6 +123,12 @@ public class SimulatedACGWithBlocks extends BEASTObject {
                 	ACGWithMetaDataLogger acgLogger = new ACGWithMetaDataLogger((ConversionGraph) tree, blockSet);
                     return acgLogger.getExtendedNewick();
                 }
+
+                @Override
+                public void writeTree(Tree tree, PrintStream out) {
+                    ACGWithMetaDataLogger acgLogger = new ACGWithMetaDataLogger((ConversionGraph) tree, blockSet);
+                    acgLogger.writeExtendedNewick(out, true);
+                }
             }).addTree(acg, "simulatedARG"));
             
             nexusBuilder.append(new NexusBlock() {
@@ -139,41 +140,139 @@ public class SimulatedACGWithBlocks extends BEASTObject {
 
                 @Override
                 public List<String> getBlockLines() {
-                    List<String> lines = new ArrayList<>();
+                    return collectWrittenLines();
+                }
 
-                    String blockSetLine = "blockSet";
-                    for (Block block: blockSet.getBlocks())
-                    	blockSetLine += " " + block.getID();
-                    lines.add(blockSetLine);
+                @Override
+                public void writeBlockLines(PrintStream out) {
+                    beginLine(out);
+                    out.print("blockSet");
+                    for (Block block: blockSet.getBlocks()) {
+                        out.print(' ');
+                        out.print(block.getID());
+                    }
+                    endLine(out);
 
-                    lines.add("clonalframe_labeled " + acg.getRoot().toNewick());
-                    lines.add("clonalframe_numbered " + acg.getRoot().toShortNewick(true));
+                    beginLine(out);
+                    out.print("clonalframe_labeled ");
+                    out.print(acg.getRoot().toNewick());
+                    endLine(out);
+
+                    beginLine(out);
+                    out.print("clonalframe_numbered ");
+                    out.print(acg.getRoot().toShortNewick(true));
+                    endLine(out);
+
+                    // Affected blocks of all conversions, collected in one pass over the blocks
+                    HashMap<Integer, List<Integer>> affectedBlocks = blockSet.getAffectedBlockIndicesByConvID();
                     for (Conversion conv : acg.getConversions()) {
-                        lines.add("conversion"
-                        		+ " node2=" + conv.getNode1().getNr()
-                                + " node3=" + conv.getNode2().getNr()
-                                + " affectedBlocks=" + blockSet.getAffectedBlockIDs(conv));
+                        beginLine(out);
+                        out.print("conversion node2=");
+                        out.print(conv.getNode1().getNr());
+                        out.print(" node3=");
+                        out.print(conv.getNode2().getNr());
+                        out.print(" affectedBlocks=");
+                        out.print(affectedBlocks.getOrDefault(conv.getID(), Collections.emptyList()));
+                        endLine(out);
                     }
-
-                    return lines;
                 }
             });
 
-            try (PrintStream pstream = new PrintStream(outputFileNameInput.get())) {
-                nexusBuilder.write(pstream);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+            try {
+                nexusBuilder.write(outputFileNameInput.get());
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write simulated ACG to " + outputFileNameInput.get(), e);
             }
         }
     }
 
     /**
-     * Use coalescent model to simulate clonal frame.
+     * Simulate a new ACG and block moves (overwriting the current state of
+     * the network and the block set).
+     */
+    public void simulate() {
+        acg.initAndValidate();
+        blockSet.initAndValidate();
+
+        if (clonalFrameInput.get() == null) {
+            simulateClonalFrame();
+        } else {
+            acg.assignFromWithoutID(clonalFrameInput.get());
+        }
+        
+        // Need to do this here as this sets the tree object that the nodes
+        // point to, so without it they point to the dummy tree created by
+        // super.initAndValidate().
+        acg.initTreeArrays();
+        
+        // Generate recombinations
+        generateConversions();
+    }
+
+    /**
+     * Simulate a new ACG using the given random number generator.
+     * @param rng The random number generator used for this simulation.
+     */
+    public void simulate(UniformRandomProvider rng) {
+        this.rng = rng;
+        try {
+            simulate();
+        } finally {
+            this.rng = null;
+        }
+    }
+
+    /**
+     * Create a simulator with its own ConversionGraph and BlockSet (with the same
+     * taxa and block IDs), sharing the (read-only) model inputs with this one.
+     * The copy does not write an output file.
+     * @return The independent simulator.
+     */
+    public SimulatedACGWithBlocks createIndependentCopy() {
+        ConversionGraph acgCopy = new ConversionGraph();
+        acgCopy.setID(acg.getID());
+        acgCopy.m_taxonset.setValue(acg.m_taxonset.get(), acgCopy);
+        for (TraitSet trait : acg.m_traitList.get())
+            acgCopy.m_traitList.setValue(trait, acgCopy);
+
+        BlockSet blockSetCopy = new BlockSet();
+        blockSetCopy.setID(blockSet.getID());
+        for (Block block : blockSet.getBlocks()) {
+            Block blockCopy = new Block();
+            blockCopy.setID(block.getID());
+            blockSetCopy.blocksInput.setValue(blockCopy, blockSetCopy);
+        }
+        blockSetCopy.networkInput.setValue(acgCopy, blockSetCopy);
+
+        SimulatedACGWithBlocks copy = new SimulatedACGWithBlocks();
+        copy.setID(getID());
+        copy.networkInput.setValue(acgCopy, copy);
+        copy.blockSetInput.setValue(blockSetCopy, copy);
+        copy.conversionRateInput.setValue(conversionRate, copy);
+        copy.moveProbInput.setValue(moveProb, copy);
+        copy.popFuncInput.setValue(popFunc, copy);
+        copy.clonalFrameInput.setValue(clonalFrameInput.get(), copy);
+
+        copy.acg = acgCopy;
+        copy.blockSet = blockSetCopy;
+        copy.conversionRate = conversionRate;
+        copy.moveProb = moveProb;
+        copy.popFunc = popFunc;
+
+        return copy;
+    }
+
+    /**
+     * Use coalescent model to simulate clonal frame. The active lineages are kept
+     * in an array (removal by swapping with the last element), so that every
+     * event takes constant time after sorting the samples by height.
      */
     private void simulateClonalFrame() {
+        int nLeaves = acg.m_taxonset.get().getTaxonCount();
+
         // Initialize leaf nodes
-        List<Node> leafNodes = new ArrayList<>();
-        for (int i=0; i<acg.m_taxonset.get().getTaxonCount(); i++) {
+        Node[] inactiveNodes = new Node[nLeaves];
+        for (int i=0; i<nLeaves; i++) {
             Node leaf = new Node();
             leaf.setNr(i);
             leaf.setID(acg.m_taxonset.get().getTaxonId(i));
@@ -183,34 +282,26 @@ public class SimulatedACGWithBlocks extends BEASTObject {
             else
                 leaf.setHeight(0.0);
             
-            leafNodes.add(leaf);
+            inactiveNodes[i] = leaf;
         }
         
-        // Create and sort list of inactive nodes
-        List<Node> inactiveNodes = new ArrayList<>(leafNodes);
-        Collections.sort(inactiveNodes, (Node n1, Node n2) -> {
-            if (n1.getHeight()<n2.getHeight())
-                return -1;
-            
-            if (n1.getHeight()>n2.getHeight())
-                return 1;
-            
-            return 0;
-        });
+        // Sort inactive nodes by height (stable, so ties keep the taxon order)
+        Arrays.sort(inactiveNodes, Comparator.comparingDouble(Node::getHeight));
+        int nextInactive = 0;
         
-        List<Node> activeNodes = new ArrayList<>();
+        Node[] activeNodes = new Node[nLeaves];
+        int k = 0;
         
         double tau = 0.0;
-        int nextNr = leafNodes.size();
+        int nextNr = nLeaves;
         while (true) {
             
             // Calculate coalescence propensity
-            int k = activeNodes.size();
             double chi = 0.5*k*(k-1);
             
             // Draw scaled coalescent time
             if (chi>0.0)
-                tau += Randomizer.nextExponential(chi);
+                tau += nextExponential(chi);
             else
                 tau = Double.POSITIVE_INFINITY;
             
@@ -218,16 +309,20 @@ public class SimulatedACGWithBlocks extends BEASTObject {
             double t = popFunc.getInverseIntensity(tau);
             
             // If new time takes us past next sample time, insert that sample
-            if (!inactiveNodes.isEmpty() && t>inactiveNodes.get(0).getHeight()) {
-                Node nextActive = inactiveNodes.remove(0);
-                activeNodes.add(nextActive);
+            if (nextInactive < nLeaves && t>inactiveNodes[nextInactive].getHeight()) {
+                Node nextActive = inactiveNodes[nextInactive++];
+                activeNodes[k++] = nextActive;
                 tau = popFunc.getIntensity(nextActive.getHeight());
                 continue;
             }
             
             // Coalesce random pair of active nodes.
-            Node node1 = activeNodes.remove(Randomizer.nextInt(k));
-            Node node2 = activeNodes.remove(Randomizer.nextInt(k-1));
+            int i1 = nextInt(k);
+            Node node1 = activeNodes[i1];
+            activeNodes[i1] = activeNodes[--k];
+            int i2 = nextInt(k);
+            Node node2 = activeNodes[i2];
+            activeNodes[i2] = activeNodes[--k];
             
             Node parent = new Node();
             parent.addChild(node1);
@@ -235,86 +330,188 @@ public class SimulatedACGWithBlocks extends BEASTObject {
             parent.setHeight(t);
             parent.setNr(nextNr++);
             
-            activeNodes.add(parent);
+            activeNodes[k++] = parent;
             
-            if (inactiveNodes.isEmpty() && activeNodes.size()<2)
+            if (nextInactive == nLeaves && k<2)
                 break;
         }
         
         // Remaining active node is root
-        acg.setRoot(activeNodes.get(0));
+        acg.setRoot(activeNodes[0]);
     }
     
+    /**
+     * Simulate the conversions and the blocks moving over them. All conversion
+     * heights are drawn first (choosing the CF interval by binary search over the
+     * cumulative interval volumes), then they are sorted and the attachment
+     * lineages are chosen in a single sweep over the CF events.
+     */
     private void generateConversions() {
 
         // Draw number of conversions:
     	double nConvMean = conversionRate * acg.getClonalFramePairedLength();
-        int nConv = (int) Randomizer.nextPoisson(nConvMean);
+        int nConv = nextPoisson(nConvMean);
+        if (nConv == 0)
+            return;
+
+        CFEventList cfEventList = acg.getCFEventList();
+        List<Event> cfEvents = cfEventList.getCFEvents();
 
-        // Generate conversions:
+        // Choose the event interval (from the cached cumulative volumes) and the height of every conversion
+        double totalVolume = cfEventList.getTotalIntervalVolume(true);
+        int[] intervals = new int[nConv];
+        double[] heights = new double[nConv];
         for (int i=0; i<nConv; i++) {
-        	
-            Conversion conv = acg.addNewConversion();
-            associateConversionWithCF(conv);
-            
-            // Choose affected blocks:
-            int nAffected = sampleBinomial(blockSet.getBlockCount(), moveProb);
+            int iEvent = cfEventList.getIntervalIndexAtVolume(totalVolume * nextDouble(), true);
+            intervals[i] = iEvent;
+            heights[i] = uniform(cfEvents.get(iEvent).getHeight(), cfEvents.get(iEvent+1).getHeight());
+        }
 
-            assert blockSet.getAffectedBlockIDs(conv).isEmpty();
-            
-            int[] shuffledBlockIdxs = Randomizer.shuffled(nAffected);
-            for (int j=0; j<nAffected; j++) {
-            	int blockIdx = shuffledBlockIdxs[j];
-            	blockSet.getBlocks().get(blockIdx).addMove(conv);
+        // Sort the conversions by height
+        Integer[] order = new Integer[nConv];
+        for (int i=0; i<nConv; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble((Integer i) -> heights[i]));
+
+        // Sweep over the CF events, keeping track of the active lineages
+        int nNodes = acg.getNodeCount();
+        Node[] activeLineages = new Node[nNodes];
+        int[] activeIndex = new int[nNodes];
+        int k = 0;
+        int iConv = 0;
+
+        for (int iEvent = 0; iEvent < cfEvents.size() && iConv < nConv; iEvent++) {
+            Node node = cfEvents.get(iEvent).getNode();
+
+            if (!node.isLeaf()) {
+                for (Node child : node.getChildren()) {
+                    int idx = activeIndex[child.getNr()];
+                    Node last = activeLineages[--k];
+                    activeLineages[idx] = last;
+                    activeIndex[last.getNr()] = idx;
+                }
+            }
+            activeLineages[k] = node;
+            activeIndex[node.getNr()] = k;
+            k++;
+
+            // Attach all conversions within the interval above this event
+            while (iConv < nConv && intervals[order[iConv]] == iEvent) {
+                int c = order[iConv++];
+                assert k >= 2;
+
+                // Choose source and destination lineage
+                int i1 = nextInt(k);
+                int i2 = nextInt(k-1);
+                if (i2 >= i1)
+                    i2 += 1;
+
+                Conversion conv;
+                if (rng == null) {
+                    conv = acg.addNewConversion();
+                } else {
+                    // Deterministic IDs, so that the simulation only depends on rng
+                    conv = new Conversion(iConv);
+                    acg.addConversion(conv);
+                }
+                conv.setHeight(heights[c]);
+                conv.setNode1(activeLineages[i1]);
+                conv.setNode2(activeLineages[i2]);
+
+                assert conv.getNode1().getHeight() < conv.getHeight();
+                assert conv.isValid();
+
+                // Choose affected blocks:
+                assert blockSet.getAffectedBlockIDs(conv).isEmpty();
+                addRandomMoves(conv);
             }
         }
+
+        assert iConv == nConv;
     }
-    
-    private int sampleBinomial(int n, double p) {
-    	int sum = 0;
-    	for (int i =0; i<n; i++) 
-    		if (Randomizer.nextDouble() < p) 
-    			sum += 1;
-    	return sum;
+
+    /**
+     * Let every block move over the given conversion independently with
+     * probability moveProb. Instead of drawing one Bernoulli variable per block,
+     * the gaps between consecutive affected blocks are drawn from a geometric
+     * distribution, so the cost is proportional to the number of affected
+     * blocks (or of unaffected blocks, if moveProb > 0.5).
+     *
+     * @param conv The new conversion.
+     */
+    private void addRandomMoves(Conversion conv) {
+        List<Block> blocks = blockSet.getBlocks();
+        int nBlocks = blocks.size();
+
+        if (moveProb <= 0.0)
+            return;
+
+        if (moveProb >= 1.0) {
+            for (Block block : blocks)
+                block.addMove(conv);
+            return;
+        }
+
+        boolean sampleComplement = moveProb > 0.5;
+        double logQ = Math.log(sampleComplement ? moveProb : 1.0 - moveProb);
+
+        int next = 0;
+        for (long i = nextGeometricSkip(logQ); i < nBlocks; i += 1 + nextGeometricSkip(logQ)) {
+            if (sampleComplement) {
+                // Block i is not affected, all blocks before it (since the last one) are
+                for (int j=next; j<i; j++)
+                    blocks.get(j).addMove(conv);
+            } else {
+                blocks.get((int) i).addMove(conv);
+            }
+            next = (int) i + 1;
+        }
+
+        if (sampleComplement) {
+            for (int j=next; j<nBlocks; j++)
+                blocks.get(j).addMove(conv);
+        }
     }
-    
+
     /**
-     * Associates recombination with the clonal frame, selecting points of
-     * departure and arrival.
-     * 
-     * @param conv recombination to associate
+     * Number of failures before the first success in Bernoulli trials with
+     * failure probability exp(logQ).
      */
-    private void associateConversionWithCF(Conversion conv) {
-    	CFEventList cfEventList = acg.getCFEventList();
-    	List<Event> cfEvents = cfEventList.getCFEvents();
-    	
-        // Choose event interval
-    	double[] intervalVolumes = cfEventList.getIntervalVolumes();
-    	int iEvent = Util.sampleCategorical(intervalVolumes);
-        Event event = cfEvents.get(iEvent);
-        
-    	// Choose height within interval
-        double height = Randomizer.uniform(event.getHeight(), cfEvents.get(iEvent+1).getHeight());
-    	conv.setHeight(height);
-    	
-    	// Choose source lineage (given the height)
-    	Set<Node> activeLineages = acg.getLineagesAtHeight(height);
-    	Node node1 = Util.sampleFrom(activeLineages);
-    	conv.setNode1(node1);
-    	assert node1.getHeight() < height;
-        
-        // Choose destination lineage (given the height and node1)
-        activeLineages.remove(node1);
-        Node node2 = Util.sampleFrom(activeLineages);
-        conv.setNode2(node2);
-        
-        // Some validity checks...
-        assert conv.getNode1() != null;
-        assert conv.getNode2() != null;
-        assert conv.getNode1() != conv.getNode2();
-        assert !conv.getNode1().isRoot();
-        assert !conv.getNode2().isRoot();
-        assert conv.isValid();
+    private long nextGeometricSkip(double logQ) {
+        double skip = Math.floor(Math.log(1.0 - nextDouble()) / logQ);
+        return skip >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (long) skip;
+    }
+
+    /*
+     * Random number generation (rng if set, Randomizer otherwise)
+     */
+
+    private double nextDouble() {
+        return rng == null ? Randomizer.nextDouble() : rng.nextDouble();
+    }
+
+    private int nextInt(int n) {
+        return rng == null ? Randomizer.nextInt(n) : rng.nextInt(n);
+    }
+
+    private double nextExponential(double rate) {
+        if (rng == null)
+            return Randomizer.nextExponential(rate);
+        return -Math.log(1.0 - rng.nextDouble()) / rate;
+    }
+
+    private int nextPoisson(double mean) {
+        if (rng == null)
+            return (int) Randomizer.nextPoisson(mean);
+        if (mean <= 0)
+            return 0;
+        return PoissonDistribution.of(mean).createSampler(rng).sample();
+    }
+
+    private double uniform(double lower, double upper) {
+        if (rng == null)
+            return Randomizer.uniform(lower, upper);
+        return lower + (upper - lower) * rng.nextDouble();
     }
 
     public void rescaleCF(ConversionGraph acg, double targetHeight) {
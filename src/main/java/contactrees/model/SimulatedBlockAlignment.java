@@ -0,0 +1,369 @@
+package contactrees.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.rng.JumpableUniformRandomProvider;
+import org.apache.commons.rng.UniformRandomProvider;
+import org.apache.commons.rng.simple.RandomSource;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.datatype.Aminoacid;
+import beast.base.evolution.datatype.Binary;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.datatype.Nucleotide;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.spec.evolution.branchratemodel.Base;
+import beast.base.spec.evolution.sitemodel.SiteModel;
+import beast.base.util.Randomizer;
+import contactrees.Block;
+import contactrees.BlockSet;
+import contactrees.ConversionGraph;
+import contactrees.MarginalTree;
+import contactrees.nexus.CharactersBlock;
+import contactrees.nexus.NexusBlock;
+import contactrees.nexus.NexusBuilder;
+import contactrees.nexus.TaxaBlock;
+
+/**
+ * Alignment simulated along the marginal trees of the blocks in a BlockSet.
+ * The sites of block i form the i'th contiguous range of the alignment
+ * (see getBlockFilter()), so that the alignment can directly be split into
+ * the blocks using FilteredAlignments.
+ *
+ * The blocks are simulated in parallel. Block i uses the i'th jump of a
+ * random number stream derived from the seed, so the simulated alignment
+ * does not depend on the number of threads.
+ *
+ * @author Nico Neureiter
+ */
+@Description("Alignment simulated block by block along the marginal trees of a conversion graph.")
+public class SimulatedBlockAlignment extends Alignment {
+
+    public Input<ConversionGraph> networkInput = new Input<>(
+            "network",
+            "The conversion graph along which the characters are simulated.",
+            Input.Validate.REQUIRED);
+
+    public Input<BlockSet> blockSetInput = new Input<>(
+            "blockSet",
+            "The blocks (and their moves) defining the marginal trees.",
+            Input.Validate.REQUIRED);
+
+    public Input<List<SiteModel>> siteModelsInput = new Input<>(
+            "siteModel",
+            "Site model for each block (in the order of the blocks in the block set), "
+            + "or a single site model shared by all blocks.",
+            new ArrayList<>());
+
+    public Input<Base> branchRateModelInput = new Input<>(
+            "branchRateModel",
+            "Branch rate model scaling the branch lengths of the marginal trees (strict clock with rate 1 if not given).");
+
+    public Input<Integer> sitesPerBlockInput = new Input<>(
+            "sitesPerBlock",
+            "Number of sites simulated for each block.",
+            100);
+
+    public Input<Alignment> dataInput = new Input<>(
+            "data",
+            "Optional alignment specifying the data type of the simulated alignment.");
+
+    public Input<Integer> threadsInput = new Input<>(
+            "threads",
+            "Number of threads for simulating the blocks in parallel.",
+            1);
+
+    public Input<Long> seedInput = new Input<>(
+            "seed",
+            "Master seed for the random number streams of the blocks (defaults to the BEAST seed).");
+
+    public Input<String> outputFileNameInput = new Input<>(
+            "outputFileName",
+            "If provided, the simulated alignment and the block partition are written to this Nexus file.");
+
+    protected ConversionGraph acg;
+    protected BlockSet blockSet;
+    protected DataType dataType;
+    protected int sitesPerBlock;
+
+    @Override
+    public void initAndValidate() {
+        acg = networkInput.get();
+        blockSet = blockSetInput.get();
+        sitesPerBlock = sitesPerBlockInput.get();
+
+        int nBlocks = blockSet.getBlockCount();
+        List<SiteModel> siteModels = siteModelsInput.get();
+        if (siteModels.size() != 1 && siteModels.size() != nBlocks)
+            throw new IllegalArgumentException("SimulatedBlockAlignment requires either one site model "
+                    + "or one site model per block (" + nBlocks + " blocks, " + siteModels.size() + " site models).");
+        if (sitesPerBlock < 1)
+            throw new IllegalArgumentException("sitesPerBlock must be positive.");
+
+        dataType = getSimulationDataType();
+        for (SiteModel siteModel : siteModels) {
+            if (siteModel.getSubstitutionModel().getStateCount() != dataType.getStateCount())
+                throw new IllegalArgumentException("The state count of the substitution model of "
+                        + siteModel.getID() + " does not match the data type " + dataType.getTypeDescription() + ".");
+        }
+
+        int[][] leafStates = simulate();
+
+        TaxonSet taxonSet = acg.getTaxonset();
+        sequenceInput.get().clear();
+        for (int i=0; i<taxonSet.getTaxonCount(); i++) {
+            sequenceInput.setValue(
+                    new Sequence(taxonSet.getTaxonId(i), dataType.encodingToString(leafStates[i])),
+                    this);
+        }
+        userDataTypeInput.setValue(dataType, this);
+
+        super.initAndValidate();
+
+        if (outputFileNameInput.get() != null)
+            writeNexus(outputFileNameInput.get());
+    }
+
+    /**
+     * @return the data type of the template alignment, the user data type or
+     * the standard data type named by the dataType input.
+     */
+    protected DataType getSimulationDataType() {
+        if (dataInput.get() != null)
+            return dataInput.get().getDataType();
+        if (userDataTypeInput.get() != null)
+            return userDataTypeInput.get();
+
+        switch (dataTypeInput.get()) {
+            case "nucleotide":
+                return new Nucleotide();
+            case "binary":
+                return new Binary();
+            case "aminoacid":
+                return new Aminoacid();
+            default:
+                throw new IllegalArgumentException("Data type " + dataTypeInput.get() + " is not supported "
+                        + "by SimulatedBlockAlignment. Specify it through the data or userDataType input.");
+        }
+    }
+
+    /**
+     * Simulate the characters of all blocks.
+     * @return the simulated states of every leaf (by node number) at every site.
+     */
+    protected int[][] simulate() {
+        int nBlocks = blockSet.getBlockCount();
+        int nLeaves = acg.getLeafNodeCount();
+        int[][] leafStates = new int[nLeaves][nBlocks * sitesPerBlock];
+
+        // The marginal trees are built on this thread, since they share the
+        // (lazily updated) clonal frame events of the ACG.
+        List<MarginalTree> marginalTrees = new ArrayList<>();
+        for (Block block : blockSet.getBlocks()) {
+            MarginalTree marginalTree = new MarginalTree();
+            if (branchRateModelInput.get() != null)
+                marginalTree.initByName("network", acg, "block", block, "branchRateModel", branchRateModelInput.get());
+            else
+                marginalTree.initByName("network", acg, "block", block);
+            marginalTrees.add(marginalTree);
+        }
+
+        long seed = seedInput.get() != null ? seedInput.get() : Randomizer.getSeed();
+        JumpableUniformRandomProvider masterRNG =
+                (JumpableUniformRandomProvider) RandomSource.XO_RO_SHI_RO_128_PP.create(seed);
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int b=0; b<nBlocks; b++) {
+            int blockIdx = b;
+            UniformRandomProvider rng = masterRNG.jump();
+            tasks.add(() -> {
+                simulateBlock(marginalTrees.get(blockIdx), getSiteModel(blockIdx), rng,
+                        leafStates, blockIdx * sitesPerBlock);
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threadsInput.get()));
+        try {
+            List<Future<Void>> futures = executor.invokeAll(tasks);
+            for (int b=0; b<nBlocks; b++) {
+                try {
+                    futures.get(b).get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Simulation of block "
+                            + blockSet.getBlocks().get(b).getID() + " failed.", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Simulation of the alignment was interrupted.", e);
+        } finally {
+            executor.shutdown();
+        }
+
+        return leafStates;
+    }
+
+    protected SiteModel getSiteModel(int blockIdx) {
+        List<SiteModel> siteModels = siteModelsInput.get();
+        return siteModels.size() == 1 ? siteModels.get(0) : siteModels.get(blockIdx);
+    }
+
+    /**
+     * Simulate the characters of one block along its marginal tree and write the
+     * states of the leaves to the columns [offset, offset+sitesPerBlock) of leafStates.
+     *
+     * The branch rates are applied by the marginal tree: its branch lengths are
+     * the clonal frame intervals scaled by the rate of the clonal frame branch
+     * they belong to (see MarginalTree.updateTimeLength()). A marginal branch can
+     * span several clonal frame branches, so the rates can not be applied per
+     * marginal branch here, and only the site rate categories are added.
+     */
+    protected void simulateBlock(MarginalTree tree, SiteModel siteModel, UniformRandomProvider rng,
+                                 int[][] leafStates, int offset) {
+        SubstitutionModel substModel = siteModel.getSubstitutionModel();
+        int nStates = substModel.getStateCount();
+        int nNodes = tree.getNodeCount();
+        Node root = tree.getRoot();
+
+        double[] categoryRates, categoryProportions, frequencies;
+        double[][][] cumTransitionProbs;
+
+        // Site and substitution models may be shared between blocks and are
+        // lazily updated, so they are only accessed by one thread at a time.
+        synchronized (siteModel) {
+            categoryRates = siteModel.getCategoryRates(root).clone();
+            categoryProportions = siteModel.getCategoryProportions(root).clone();
+        }
+        int nCategories = categoryRates.length;
+
+        synchronized (substModel) {
+            frequencies = substModel.getFrequencies().clone();
+
+            cumTransitionProbs = new double[nNodes][][];
+            double[] matrix = new double[nStates * nStates];
+            for (Node node : tree.getNodesAsArray()) {
+                if (node.isRoot())
+                    continue;
+
+                cumTransitionProbs[node.getNr()] = new double[nCategories][];
+                for (int c=0; c<nCategories; c++) {
+                    substModel.getTransitionProbabilities(node, node.getParent().getHeight(),
+                            node.getHeight(), categoryRates[c], matrix);
+                    cumTransitionProbs[node.getNr()][c] = cumulativeRows(matrix, nStates);
+                }
+            }
+        }
+
+        // Rate categories and root states of all sites
+        double[] cumProportions = cumulativeRows(categoryProportions, nCategories);
+        double[] cumFrequencies = cumulativeRows(frequencies, nStates);
+        int[] categories = new int[sitesPerBlock];
+        int[] rootStates = new int[sitesPerBlock];
+        for (int s=0; s<sitesPerBlock; s++) {
+            categories[s] = sampleRow(cumProportions, 0, nCategories, rng);
+            rootStates[s] = sampleRow(cumFrequencies, 0, nStates, rng);
+        }
+
+        simulateSubtree(root, rootStates, categories, cumTransitionProbs, nStates, rng, leafStates, offset);
+    }
+
+    /**
+     * Evolve the states of all sites from the given node down to the leaves (in pre-order).
+     */
+    private void simulateSubtree(Node node, int[] states, int[] categories, double[][][] cumTransitionProbs,
+                                 int nStates, UniformRandomProvider rng, int[][] leafStates, int offset) {
+        if (node.isLeaf()) {
+            System.arraycopy(states, 0, leafStates[node.getNr()], offset, states.length);
+            return;
+        }
+
+        for (Node child : node.getChildren()) {
+            double[][] childProbs = cumTransitionProbs[child.getNr()];
+            int[] childStates = new int[states.length];
+            for (int s=0; s<states.length; s++)
+                childStates[s] = sampleRow(childProbs[categories[s]], states[s] * nStates, nStates, rng);
+
+            simulateSubtree(child, childStates, categories, cumTransitionProbs, nStates, rng, leafStates, offset);
+        }
+    }
+
+    /**
+     * @return the cumulative sums of each row of the row-major matrix with the given row length.
+     */
+    private static double[] cumulativeRows(double[] matrix, int rowLength) {
+        double[] cumulative = new double[matrix.length];
+        for (int start=0; start<matrix.length; start+=rowLength) {
+            double sum = 0;
+            for (int j=0; j<rowLength; j++) {
+                sum += matrix[start + j];
+                cumulative[start + j] = sum;
+            }
+        }
+        return cumulative;
+    }
+
+    /**
+     * Sample an index from a row of cumulative probabilities.
+     */
+    private static int sampleRow(double[] cumulative, int start, int rowLength, UniformRandomProvider rng) {
+        double u = rng.nextDouble() * cumulative[start + rowLength - 1];
+        for (int j=0; j<rowLength-1; j++) {
+            if (u < cumulative[start + j])
+                return j;
+        }
+        return rowLength - 1;
+    }
+
+    /**
+     * @return the range of alignment sites of the given block, in the format
+     * of the filter input of FilteredAlignment (1-based, inclusive).
+     */
+    public String getBlockFilter(int blockIdx) {
+        return (blockIdx * sitesPerBlock + 1) + "-" + ((blockIdx + 1) * sitesPerBlock);
+    }
+
+    /**
+     * Write the taxa, the simulated characters and the block partition (as
+     * character sets named after the blocks) to a Nexus file.
+     */
+    protected void writeNexus(String fileName) {
+        NexusBuilder nexusBuilder = new NexusBuilder();
+        nexusBuilder.append(new TaxaBlock(acg.getTaxonset()));
+        nexusBuilder.append(new CharactersBlock(this));
+        nexusBuilder.append(new NexusBlock() {
+
+            @Override
+            public String getBlockName() {
+                return "assumptions";
+            }
+
+            @Override
+            public List<String> getBlockLines() {
+                List<String> lines = new ArrayList<>();
+                for (int b=0; b<blockSet.getBlockCount(); b++)
+                    lines.add("charset " + blockSet.getBlocks().get(b).getID() + " = " + getBlockFilter(b));
+                return lines;
+            }
+        });
+
+        try {
+            nexusBuilder.write(fileName);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write simulated alignment to " + fileName, e);
+        }
+    }
+
+}
@@ -6,16 +6,24 @@ import beast.base.core.ProgramStatus;
 import beast.base.spec.evolution.branchratemodel.Base;
 import beast.base.spec.evolution.branchratemodel.StrictClockModel;
 import beast.base.spec.evolution.likelihood.TreeLikelihood;
+import contactrees.Block;
 import contactrees.MarginalTree;
+import contactrees.util.ProfileTimer;
+import contactrees.util.Profiled;
 
 @Description("Calculates the probability of sequence data on a beast.tree given a site and substitution model using " +
         "a variant of the 'peeling algorithm'. For details, see" +
         "Felsenstein, Joseph (1981). Evolutionary trees from DNA sequences: a maximum likelihood approach. J Mol Evol 17 (6): 368-376.")
-public class CTreeLikelihood extends TreeLikelihood {
+public class CTreeLikelihood extends TreeLikelihood implements Profiled {
 	final public Input<MarginalTree> marginalTreeInput = new Input<>("marginalTree", "marginal tree based on actual tree");
 
     public Base marginalTreeClock;
 
+    /**
+     * Time and number of likelihood evaluations (for monitoring).
+     */
+    protected final ProfileTimer profileTimer = new ProfileTimer();
+
 //<<<<<<< Updated upstream
 //
 //    @Override
@@ -73,5 +81,33 @@ public class CTreeLikelihood extends TreeLikelihood {
         }
     }
 
+    @Override
+    public double calculateLogP() {
+        long start = profileTimer.start();
+        logP = super.calculateLogP();
+        profileTimer.stop(start);
+        return logP;
+    }
+
+    /**
+     * @return number of likelihood evaluations so far.
+     */
+    public long getEvaluationCount() {
+        return profileTimer.getCalls();
+    }
+
+    @Override
+    public ProfileTimer getProfileTimer() {
+        return profileTimer;
+    }
+
+    /**
+     * @return the block whose likelihood is computed (null if the tree is not a marginal tree).
+     */
+    public Block getBlock() {
+        if (treeInput.get() instanceof MarginalTree marginalTree)
+            return marginalTree.block;
+        return null;
+    }
 
 }
@@ -21,7 +21,7 @@ package contactrees.nexus;
 
 import beast.base.evolution.alignment.Alignment;
 
-import java.util.ArrayList;
+import java.io.PrintStream;
 import java.util.List;
 
 /**
@@ -45,24 +45,31 @@ public class CharactersBlock extends NexusBlock {
 
     @Override
     public List<String> getBlockLines() {
-        List<String> lines = new ArrayList<>();
-        
-        lines.add("dimensions nchar=" + alignment.getSiteCount());
-        
+        return collectWrittenLines();
+    }
+
+    @Override
+    public void writeBlockLines(PrintStream out) {
+        beginLine(out);
+        out.print("dimensions nchar=" + alignment.getSiteCount());
+        endLine(out);
+
         // Assumes BEAST sequence data types map directly
         // onto nexus data types.  No doubt a bad idea in general...
-        lines.add("format datatype=" + alignment.getDataType().getTypeDescription());
-        
-        StringBuilder matrix = new StringBuilder("matrix ");
+        beginLine(out);
+        out.print("format datatype=" + alignment.getDataType().getTypeDescription());
+        endLine(out);
+
+        // Write the matrix one sequence at a time
+        beginLine(out);
+        out.print("matrix ");
         for (int i=0; i<alignment.getTaxonCount(); i++) {
-            String taxonName = alignment.getTaxaNames().get(i);
-            String sequence = alignment.getDataType()
-                    .encodingToString(alignment.getCounts().get(i));
-            matrix.append("\n\t\t").append(taxonName).append(" ").append(sequence);
+            out.print("\n\t\t");
+            out.print(alignment.getTaxaNames().get(i));
+            out.print(" ");
+            out.print(alignment.getDataType().encodingToString(alignment.getCounts().get(i)));
         }
-        lines.add(matrix.toString());
-        
-        return lines;
+        endLine(out);
     }
     
 }
@@ -19,6 +19,9 @@
 
 package contactrees.nexus;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -36,6 +39,66 @@ public abstract class NexusBlock {
      */
     public abstract List<String> getBlockLines();
     
+    /**
+     * Write the lines of this block to the given stream (each line is
+     * indented by a tab and terminated by ";"). Blocks which are too large to
+     * be assembled in memory should override this method and write their
+     * lines directly, using beginLine() and endLine().
+     *
+     * @param out stream to write the block lines to
+     */
+    public void writeBlockLines(PrintStream out) {
+        for (String line : getBlockLines()) {
+            beginLine(out);
+            out.print(line);
+            endLine(out);
+        }
+    }
+
+    /**
+     * Collect the lines written by writeBlockLines(). Blocks which override
+     * writeBlockLines() can implement getBlockLines() with this method, so that
+     * the lines are only assembled in one place.
+     *
+     * @return list of strings containing lines in block
+     */
+    protected List<String> collectWrittenLines() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        writeBlockLines(out);
+        out.flush();
+
+        List<String> lines = new ArrayList<>();
+        for (String line : bytes.toString().split(";\n")) {
+            if (line.startsWith("\t"))
+                lines.add(line.substring(1));
+        }
+        return lines;
+    }
+
+    /**
+     * Write the complete block (including header and end statement) to the given stream.
+     *
+     * @param out stream to write the block to
+     */
+    public void write(PrintStream out) {
+        out.print("begin ");
+        out.print(getBlockName());
+        out.print(";\n");
+
+        writeBlockLines(out);
+
+        out.print("end;\n");
+    }
+
+    protected static void beginLine(PrintStream out) {
+        out.print('\t');
+    }
+
+    protected static void endLine(PrintStream out) {
+        out.print(";\n");
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
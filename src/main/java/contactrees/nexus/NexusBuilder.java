@@ -19,6 +19,9 @@
 
 package contactrees.nexus;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -54,14 +57,37 @@ public class NexusBuilder {
     }
 
     /**
-     * Write the assembled Nexus file to pstream.
+     * Write the assembled Nexus file to pstream. The blocks are streamed
+     * one after the other (see NexusBlock.write()), so large blocks never need
+     * to be assembled in memory.
      * 
      * @param pstream PrintStream to send Nexus to
      */
     public void write(PrintStream pstream) {
         pstream.println("#NEXUS");
         
-        for (NexusBlock block : blocks)
-            pstream.print("\n" + block);
+        for (NexusBlock block : blocks) {
+            pstream.print("\n");
+            block.write(pstream);
+        }
+    }
+
+    /**
+     * Write the assembled Nexus file to the given file (through a buffered stream).
+     * 
+     * @param fileName name of the output file
+     * @throws IOException if the file can not be opened or written (e.g. the disk is full)
+     */
+    public void write(String fileName) throws IOException {
+        PrintStream pstream = new PrintStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        try {
+            write(pstream);
+        } finally {
+            pstream.close();
+        }
+
+        // PrintStream swallows write errors, they are only reported by checkError()
+        if (pstream.checkError())
+            throw new IOException("Error while writing Nexus file " + fileName + ".");
     }
 }
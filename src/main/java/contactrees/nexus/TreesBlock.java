@@ -22,6 +22,7 @@ package contactrees.nexus;
 import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.tree.Tree;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -93,18 +94,44 @@ public class TreesBlock extends NexusBlock {
         return tree.toString();
     }
     
+    /**
+     * Write the representation of the tree (without trailing ";") to the given
+     * stream.  Override this instead of getTreeString() to stream large trees.
+     * 
+     * @param tree tree to represent
+     * @param out stream to write the tree to
+     */
+    public void writeTree(Tree tree, PrintStream out) {
+        // Remove trailing ";" if present (as it should be!)
+        String newick = getTreeString(tree);
+        if (newick.endsWith(";"))
+            newick = newick.substring(0, newick.length()-1);
+        out.print(newick);
+    }
+    
     @Override
     public String getBlockName() {
         return "trees";
     }
 
     @Override
-    public List<String> getBlockLines() {
-        List<String> lines = new ArrayList<>();
-        
+    public void writeBlockLines(PrintStream out) {
         if (trees.isEmpty())
-            return lines;
+            return;
+        
+        beginLine(out);
+        out.print(getTranslateLine());
+        endLine(out);
         
+        for (int i=0; i<trees.size(); i++) {
+            beginLine(out);
+            out.print("tree " + names.get(i) + " = [&R] ");
+            writeTree(trees.get(i), out);
+            endLine(out);
+        }
+    }
+    
+    private String getTranslateLine() {
         StringBuilder translate = new StringBuilder("translate");
         TaxonSet taxonSet = trees.get(0).getTaxonset();
         int translationOffset = trees.get(0).taxaTranslationOffset;
@@ -115,7 +142,17 @@ public class TreesBlock extends NexusBlock {
             if (i<taxonSet.getTaxonCount()-1)
                 translate.append(",");
         }
-        lines.add(translate.toString());
+        return translate.toString();
+    }
+
+    @Override
+    public List<String> getBlockLines() {
+        List<String> lines = new ArrayList<>();
+        
+        if (trees.isEmpty())
+            return lines;
+        
+        lines.add(getTranslateLine());
         
         for (int i=0; i<trees.size(); i++) {
             
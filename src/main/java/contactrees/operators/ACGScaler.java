@@ -81,7 +81,9 @@ public class ACGScaler extends ACGOperator {
             acg.getRoot().setHeight(acg.getRoot().getHeight()*f);
             count += 1;
         } else {
-            for (Node node : acg.getInternalNodes()) {
+            // Internal nodes follow the leaves in the node array
+            for (int i=acg.getLeafNodeCount(); i<acg.getNodeCount(); i++) {
+                Node node = acg.getNode(i);
                 node.setHeight(node.getHeight()*f);
                 count += 1;
             }
@@ -121,7 +123,8 @@ public class ACGScaler extends ACGOperator {
             }
         } else {
         	// For non-ultrametric trees the fixed leave height could lead negative edges:
-            for (Node node : acg.getExternalNodes()) {
+            for (int i=0; i<acg.getLeafNodeCount(); i++) {
+                Node node = acg.getNode(i);
                 if (node.getHeight()>node.getParent().getHeight()) {
                     return Double.NEGATIVE_INFINITY;
                 }
@@ -1,6 +1,7 @@
 package contactrees.operators;
 
 import beast.base.core.Description;
+import beast.base.core.Input;
 import beast.base.util.Randomizer;
 import contactrees.Conversion;
 
@@ -10,6 +11,11 @@ import contactrees.Conversion;
 @Description("Operator which adds and removes conversions to/from an ACG.")
 public class AddRemoveConversionGibbs extends ConversionCreationOperator {
 
+    public Input<Boolean> batchedInput = new Input<>(
+            "batched",
+            "Build the marginal trees of blocks with identical moves only once and evaluate the block likelihoods as one batch.",
+            true);
+
     public AddRemoveConversionGibbs() { }
 
     boolean activateSanityChecks = false;
@@ -55,7 +61,11 @@ public class AddRemoveConversionGibbs extends ConversionCreationOperator {
 
         double logP = attachEdge(newConversion);
 
-        double logPBlocks = drawBorrowingsGibbs(newConversion, false);
+        double logPBlocks;
+        if (batchedInput.get())
+            logPBlocks = drawBorrowingsGibbsBatched(newConversion);
+        else
+            logPBlocks = drawBorrowingsGibbs(newConversion, false);
         if (activateSanityChecks) {
             double err = Math.abs(logPBlocks - getBorrowingsProbGibbs(newConversion, true));
             assert err < 1E-7;
@@ -76,7 +86,11 @@ public class AddRemoveConversionGibbs extends ConversionCreationOperator {
         double logP = 0;
         logP = getEdgeAttachmentProb(conv);
 
-        double logPBlocks = getBorrowingsProbGibbs(conv, false);
+        double logPBlocks;
+        if (batchedInput.get())
+            logPBlocks = getBorrowingsProbGibbsBatched(conv);
+        else
+            logPBlocks = getBorrowingsProbGibbs(conv, false);
         if (activateSanityChecks) {
             double err = Math.abs(logPBlocks - getBorrowingsProbGibbs(conv, true));
             assert err < 1E-7;
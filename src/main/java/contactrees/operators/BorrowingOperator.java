@@ -1,7 +1,14 @@
 package contactrees.operators;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import beast.base.core.Input;
 import beast.base.inference.StateNode;
@@ -38,14 +45,43 @@ public abstract class BorrowingOperator extends ACGOperator {
             "BEASTObject computing the tree likelihood.",
             new ArrayList<TreeLikelihood>());
 
+    public Input<Integer> threadsInput = new Input<>(
+            "threads",
+            "Number of threads used to evaluate the Gibbs borrowing posteriors of the blocks in parallel.",
+            1);
+
     protected BlockSet blockSet;
     protected List<TreeLikelihood> treeLHs;
 
+    /**
+     * Seconds after which idle worker threads terminate, so that no threads
+     * are left behind when the chain stops.
+     */
+    static final long WORKER_KEEP_ALIVE = 10;
+
+    protected int nThreads;
+    protected ThreadPoolExecutor executor = null;
+
+    /*
+     * Scratch buffers of the batched Gibbs evaluation (reused between proposals).
+     * _sortedMoves[i] holds the first _moveCounts[i] (sorted) conversion IDs of
+     * block i, _movesKeys the (hash of the moves, block index) pairs, which are
+     * sorted to group blocks with equal moves.
+     */
+    protected double[] _logPosteriorOld = new double[0], _logPriorNew = new double[0];
+    protected double[] _logLHNew = new double[0], _logPRevert = new double[0];
+    protected int[][] _sortedMoves = new int[0][];
+    protected int[] _moveCounts = new int[0], _builtBlocks = new int[0];
+    protected long[] _movesKeys = new long[0];
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
         blockSet = blockSetInput.get();
         treeLHs = treeLHsInput.get();
+
+        shutdownExecutor();
+        nThreads = Math.max(1, threadsInput.get());
     }
 
     /**
@@ -59,7 +95,7 @@ public abstract class BorrowingOperator extends ACGOperator {
         double logP = 0;
 
         if (pMove == 0.) {
-            assert blockSet.getAffectedBlockIDs(conv).isEmpty();
+            assert blockSet.countAffectedBlocks(conv) == 0;
             return 0;
         }
 
@@ -83,11 +119,11 @@ public abstract class BorrowingOperator extends ACGOperator {
      */
     public double getBorrowingsProb(Conversion conv) {
         double pMove = pMoveInput.get().get();
-        int affectedBlockCount = blockSet.getAffectedBlockIDs(conv).size();
+        int affectedBlockCount = blockSet.countAffectedBlocks(conv);
         int unaffectedBlockCount = blockSet.getBlockCount() - affectedBlockCount;
 
         if (pMove == 0.) {
-            assert blockSet.getAffectedBlockIDs(conv).isEmpty();
+            assert blockSet.countAffectedBlocks(conv) == 0;
             return 0;
         }
 
@@ -133,6 +169,20 @@ public abstract class BorrowingOperator extends ACGOperator {
     public double drawBorrowingsGibbs(Conversion conv, boolean mtreesChanged) {
         double logP = 0;
         assert treeLHs.size() > 0;
+
+        if (useParallelEvaluation()) {
+            // Draw the random numbers up-front (in block order), so that the
+            // result does not depend on the number of threads.
+            double[] u = new double[treeLHs.size()];
+            for (int i=0; i<u.length; i++)
+                u[i] = Randomizer.nextDouble();
+
+            double[] logPs = evaluateBlocksInParallel((i, treeLH) -> sampleBlockMove(conv, treeLH, mtreesChanged, u[i]));
+            for (double logPBlock : logPs)
+                logP += logPBlock;
+            return logP;
+        }
+
         for (TreeLikelihood treeLH : treeLHs) {
             logP += sampleBlockMove(conv, treeLH, mtreesChanged);
         }
@@ -147,6 +197,19 @@ public abstract class BorrowingOperator extends ACGOperator {
      * @return log-prob. difference between state before and after the move.
      */
     public double sampleBlockMove(Conversion conv, TreeLikelihood treeLH, boolean mtreeChanged) {
+        return sampleBlockMove(conv, treeLH, mtreeChanged, Randomizer.nextDouble());
+    }
+
+    /**
+     * Sample the borrowing of a specific block over a specific conversion,
+     * using the given uniform random number.
+     * @param conv
+     * @param treeLH
+     * @param mtreeChanged
+     * @param u Uniform random number in [0, 1) deciding whether the flip is reverted.
+     * @return log-prob. difference between state before and after the move.
+     */
+    public double sampleBlockMove(Conversion conv, TreeLikelihood treeLH, boolean mtreeChanged, double u) {
         Block block = getBlock(treeLH);
         double logP;
 
@@ -167,7 +230,7 @@ public abstract class BorrowingOperator extends ACGOperator {
 
         // Compute the hastings ratio, to remove effect of block move from acceptance-ratio
         // (We can't just return positive infinity, because of combined moves)
-        if (Randomizer.nextDouble() < pRevert) {
+        if (u < pRevert) {
             flipBorrowing(block, conv);
             logP = logPRevert;
         } else {
@@ -194,36 +257,349 @@ public abstract class BorrowingOperator extends ACGOperator {
 
         assert treeLHs.size() > 0;
 
+        if (useParallelEvaluation()) {
+            double[] logPs = evaluateBlocksInParallel((i, treeLH) -> getBlockMoveProbGibbs(conv, treeLH, mtreesChanged));
+            for (double logPBlock : logPs)
+                logP += logPBlock;
+            return logP;
+        }
+
         for (TreeLikelihood treeLH : treeLHs) {
-            // Get block corresponding to treeLH
-            MarginalTree marginalTree = getMarginalTree(treeLH);
-            Block block = marginalTree.block;
+            logP += getBlockMoveProbGibbs(conv, treeLH, mtreesChanged);
+        }
 
-            // Store fat calculation nodes, so that we can restore the old state
-            // before state.storeCalculationNodes() is called in the MCMC object.
-            treeLH.store();
+        return logP;
+    }
+
+    /**
+     * Calculate the Gibbs probability of the current borrowing of a
+     * specific block over a specific conversion.
+     * @param conv
+     * @param treeLH
+     * @param mtreeChanged
+     * @return log probability of the current borrowing.
+     */
+    public double getBlockMoveProbGibbs(Conversion conv, TreeLikelihood treeLH, boolean mtreeChanged) {
+        // Get block corresponding to treeLH
+        MarginalTree marginalTree = getMarginalTree(treeLH);
+        Block block = marginalTree.block;
 
-            // Get prior and likelihood for current block move
-            double logPosteriorOld = calcLogBorrowingPosterior(conv, treeLH, mtreesChanged);
+        // Store fat calculation nodes, so that we can restore the old state
+        // before state.storeCalculationNodes() is called in the MCMC object.
+        treeLH.store();
 
-            // Compute prior and likelihood for flipped block move
-            flipBorrowing(block, conv);
-            double logPosteriorNew = calcLogBorrowingPosterior(conv, treeLH, true);
+        // Get prior and likelihood for current block move
+        double logPosteriorOld = calcLogBorrowingPosterior(conv, treeLH, mtreeChanged);
+
+        // Compute prior and likelihood for flipped block move
+        flipBorrowing(block, conv);
+        double logPosteriorNew = calcLogBorrowingPosterior(conv, treeLH, true);
+
+        // Revert flip with probability $p_old / (p_old + p_new)$
+        double logPRevert = logPosteriorOld - Util.logAddExp(logPosteriorOld, logPosteriorNew);
+
+        // Flip the block-move back to its original state
+        flipBorrowing(block, conv);
+
+        // Store fat calculation nodes, so that we can restore the old state
+        // before state.storeCalculationNodes() is called in the MCMC object.
+        treeLH.restore();
+
+        return logPRevert;
+    }
+
+    /* ****
+     * Batched Gibbs sampling for borrowing
+     * ****/
+
+    /**
+     * Batched version of drawBorrowingsGibbs(conv, false): the flipped marginal
+     * trees of all blocks are built first (blocks with identical moves share the
+     * construction of their marginal tree) and then all block likelihoods are
+     * evaluated as one batch. Requires that the marginal trees and likelihoods
+     * are up to date for the current borrowings.
+     * @param conv Conversion edge to evaluate.
+     * @return Log probability of the sampled borrowings.
+     */
+    public double drawBorrowingsGibbsBatched(Conversion conv) {
+        double[] logPRevert = calcLogPRevertBatched(conv);
+
+        double logP = 0;
+        for (int i=0; i<treeLHs.size(); i++) {
+            double pRevert = Math.exp(logPRevert[i]);
+            if (Randomizer.nextDouble() < pRevert) {
+                flipBorrowing(getBlock(treeLHs.get(i)), conv);
+                logP += logPRevert[i];
+            } else {
+                logP += Math.log(1 - pRevert);
+            }
+        }
+
+        return logP;
+    }
+
+    /**
+     * Batched version of getBorrowingsProbGibbs(conv, false) (see drawBorrowingsGibbsBatched()).
+     * @param conv Conversion edge to evaluate.
+     * @return Log probability of the current borrowings.
+     */
+    public double getBorrowingsProbGibbsBatched(Conversion conv) {
+        double[] logPRevert = calcLogPRevertBatched(conv);
+
+        double logP = 0;
+        for (int i=0; i<treeLHs.size(); i++) {
+            flipBorrowing(getBlock(treeLHs.get(i)), conv);
+            logP += logPRevert[i];
+        }
+
+        return logP;
+    }
+
+    /**
+     * Flip the borrowing of all blocks at the given conversion and compute the
+     * probability of reverting each flip. The blocks are left in the flipped state.
+     * @param conv Conversion edge to evaluate.
+     * @return Array of log probabilities for reverting the flips (in the order
+     * of treeLHs). The array is reused, it is only valid until the next call.
+     */
+    protected double[] calcLogPRevertBatched(Conversion conv) {
+        int nBlocks = treeLHs.size();
+        ensureBatchCapacity(nBlocks);
+        double pMove = pMoveInput.get().get();
+        double[] logPosteriorOld = _logPosteriorOld;
+        double[] logPriorNew = _logPriorNew;
+
+        for (int i=0; i<nBlocks; i++) {
+            TreeLikelihood treeLH = treeLHs.get(i);
+            Block block = getBlock(treeLH);
+            boolean affected = block.isAffected(conv);
 
-            // Revert flip with probability $p_old / (p_old + p_new)$
-            double logPRevert = logPosteriorOld - Util.logAddExp(logPosteriorOld, logPosteriorNew);
-            logP += logPRevert;
+            logPosteriorOld[i] = Math.log(affected ? pMove : (1 - pMove)) + treeLH.getCurrentLogP();
+            logPriorNew[i] = Math.log(affected ? (1 - pMove) : pMove);
 
-            // Flip the block-move back to its original state
             flipBorrowing(block, conv);
+        }
+
+        buildMarginalTreesBatched();
 
-            // Store fat calculation nodes, so that we can restore the old state
-            // before state.storeCalculationNodes() is called in the MCMC object.
+        BlockEvaluation evaluation = (i, treeLH) -> {
+            // Store and restore fat calculation nodes, so that state.storeCalculationNodes()
+            // (in the MCMC object) stores the correct (old) likelihood.
+            treeLH.store();
+            double logLH = treeLH.calculateLogP();
             treeLH.restore();
-//            marginalTree.restore();
+            return logLH;
+        };
+
+        double[] logLHNew = _logLHNew;
+        if (useParallelEvaluation()) {
+            evaluateBlocksInParallel(evaluation, logLHNew);
+        } else {
+            for (int i=0; i<nBlocks; i++)
+                logLHNew[i] = evaluation.evaluate(i, treeLHs.get(i));
         }
 
-        return logP;
+        // Revert flip with probability $p_old / (p_old + p_new)$
+        double[] logPRevert = _logPRevert;
+        for (int i=0; i<nBlocks; i++) {
+            double logPosteriorNew = logPriorNew[i] + logLHNew[i];
+            logPRevert[i] = logPosteriorOld[i] - Util.logAddExp(logPosteriorOld[i], logPosteriorNew);
+        }
+
+        return logPRevert;
+    }
+
+    /**
+     * Update the marginal trees of all blocks. Each distinct set of moves is
+     * only processed once, blocks with the same moves copy the marginal tree.
+     */
+    protected void buildMarginalTreesBatched() {
+        int nBlocks = treeLHs.size();
+        ensureBatchCapacity(nBlocks);
+
+        // Sort the moves of every block and group the blocks by the hash of their moves
+        for (int i=0; i<nBlocks; i++) {
+            List<Integer> convIDs = getBlock(treeLHs.get(i)).getConversionIDs();
+            int size = convIDs.size();
+            if (_sortedMoves[i].length < size)
+                _sortedMoves[i] = new int[Math.max(size, 2*_sortedMoves[i].length)];
+            int[] moves = _sortedMoves[i];
+            for (int j=0; j<size; j++)
+                moves[j] = convIDs.get(j);
+            Arrays.sort(moves, 0, size);
+            _moveCounts[i] = size;
+
+            int hash = 1;
+            for (int j=0; j<size; j++)
+                hash = 31*hash + moves[j];
+            _movesKeys[i] = ((long) hash << 32) | i;
+        }
+        Arrays.sort(_movesKeys, 0, nBlocks);
+
+        // Within each group of equal hashes, build one tree per distinct set of moves
+        int nBuilt = 0;
+        for (int k=0; k<nBlocks; k++) {
+            if (k == 0 || (_movesKeys[k] >>> 32) != (_movesKeys[k-1] >>> 32))
+                nBuilt = 0;
+            int i = (int) _movesKeys[k];
+            MarginalTree marginalTree = getMarginalTree(treeLHs.get(i));
+
+            MarginalTree builtTree = null;
+            for (int b=0; b<nBuilt; b++) {
+                if (haveEqualMoves(i, _builtBlocks[b])) {
+                    builtTree = getMarginalTree(treeLHs.get(_builtBlocks[b]));
+                    break;
+                }
+            }
+
+            if (builtTree != null && marginalTree.canShareStructureWith(builtTree)) {
+                marginalTree.copyStructureFrom(builtTree);
+            } else {
+                marginalTree.recalculate();
+                if (builtTree == null)
+                    _builtBlocks[nBuilt++] = i;
+            }
+        }
+    }
+
+    private boolean haveEqualMoves(int i, int j) {
+        int size = _moveCounts[i];
+        return size == _moveCounts[j] && Arrays.equals(_sortedMoves[i], 0, size, _sortedMoves[j], 0, size);
+    }
+
+    /**
+     * Grow the scratch buffers of the batched evaluation to nBlocks blocks.
+     */
+    protected void ensureBatchCapacity(int nBlocks) {
+        if (_movesKeys.length >= nBlocks)
+            return;
+
+        _logPosteriorOld = new double[nBlocks];
+        _logPriorNew = new double[nBlocks];
+        _logLHNew = new double[nBlocks];
+        _logPRevert = new double[nBlocks];
+        _moveCounts = new int[nBlocks];
+        _builtBlocks = new int[nBlocks];
+        _movesKeys = new long[nBlocks];
+        int[][] sortedMoves = Arrays.copyOf(_sortedMoves, nBlocks);
+        for (int i=_sortedMoves.length; i<nBlocks; i++)
+            sortedMoves[i] = new int[0];
+        _sortedMoves = sortedMoves;
+    }
+
+    /* ****
+     * Parallel evaluation of blocks
+     * ****/
+
+    /**
+     * Evaluation of a single block (identified by its index and TreeLikelihood).
+     */
+    @FunctionalInterface
+    protected interface BlockEvaluation {
+        double evaluate(int i, TreeLikelihood treeLH);
+    }
+
+    protected boolean useParallelEvaluation() {
+        return nThreads > 1 && treeLHs.size() > 1;
+    }
+
+    /**
+     * @return the pool of worker threads (created on first use).
+     */
+    protected ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(nThreads, nThreads, WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, getID() + "-worker");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Shut down the worker threads. A new pool is created if the operator is
+     * used again.
+     */
+    public void shutdownExecutor() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Evaluate all blocks in parallel. Every block has its own MarginalTree and
+     * TreeLikelihood, which serve as private workspace of the thread evaluating
+     * the block. The blocks are split in contiguous chunks (one per thread) and
+     * the results are returned in block order, so that any reduction over them
+     * is deterministic.
+     * @param evaluation The evaluation performed for each block.
+     * @return Array of the evaluation results (in the order of treeLHs).
+     */
+    protected double[] evaluateBlocksInParallel(BlockEvaluation evaluation) {
+        return evaluateBlocksInParallel(evaluation, new double[treeLHs.size()]);
+    }
+
+    /**
+     * Evaluate all blocks in parallel (see evaluateBlocksInParallel(evaluation)),
+     * writing the results to the given array.
+     * @param evaluation The evaluation performed for each block.
+     * @param results Array for the results (at least of the size of treeLHs).
+     * @return The results array.
+     */
+    protected double[] evaluateBlocksInParallel(BlockEvaluation evaluation, double[] results) {
+        int nBlocks = treeLHs.size();
+
+        // Everything shared between the blocks is brought up to date on this
+        // thread, so that the workers only read shared state.
+        prepareParallelEvaluation();
+
+        int chunkSize = (nBlocks + nThreads - 1) / nThreads;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start=0; start<nBlocks; start+=chunkSize) {
+            final int from = start;
+            final int to = Math.min(nBlocks, start + chunkSize);
+            tasks.add(() -> {
+                for (int i=from; i<to; i++)
+                    results[i] = evaluation.evaluate(i, treeLHs.get(i));
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> future : getExecutor().invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Parallel block evaluation failed in " + getID(), e.getCause());
+        }
+
+        return results;
+    }
+
+    /**
+     * Update all lazily computed shared state (CF events, arrays view, conversion
+     * nodes) and start editing all blocks and marginal trees before the parallel
+     * evaluation. The workers only read this state, so it must be up to date
+     * before the first of them is submitted.
+     */
+    protected void prepareParallelEvaluation() {
+        acg.getCFEvents();
+        acg.getArrays();
+        for (Conversion c : acg.getConversions()) {
+            c.getNode1();
+            c.getNode2();
+        }
+
+        for (TreeLikelihood treeLH : treeLHs) {
+            getBlock(treeLH).startEditing(null);
+            getMarginalTree(treeLH).startEditing(null);
+        }
     }
 
     /**
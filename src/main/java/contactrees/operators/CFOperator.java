@@ -1,6 +1,6 @@
 package contactrees.operators;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 import beast.base.core.Input;
@@ -17,6 +17,10 @@ public abstract class CFOperator extends ConversionCreationOperator {
             "Sample block-moves via added conversions using Gibbs sampling ().",
             Boolean.FALSE);
 
+    // Reusable buffers, to avoid allocations in every proposal
+    protected final List<Conversion> _toRemove = new ArrayList<>();
+    protected Conversion[] _convs = new Conversion[0];
+
 
     /**
      * Take conversions which connect to edge above srcNode at times greater than
@@ -39,9 +43,12 @@ public abstract class CFOperator extends ConversionCreationOperator {
         double maxChildHeight = getMaxRootChildHeight();
 
         // Conversions which degenerate to point back to their source node are removed
-        List<Conversion> toRemove = new LinkedList<>();
+        List<Conversion> toRemove = _toRemove;
+        toRemove.clear();
 
         // Collapse non-root conversions
+        _convs = acg.getConversions().toArray(_convs);
+        int nConvs = acg.getConvCount();
 
         Node node = destNode;
         while (!node.isRoot() && node.getHeight() < srcNodeP.getHeight()) {
@@ -50,9 +57,11 @@ public abstract class CFOperator extends ConversionCreationOperator {
             double upperBound = Math.min(node.getParent().getHeight(),
                     srcNodeP.getHeight());
 
-            for (Conversion conv : acg.getConversions())
+            for (int i=0; i<nConvs; i++) {
+                Conversion conv = _convs[i];
                 if (conv.getHeight() > lowerBound && conv.getHeight() < upperBound)
                     logP += collapseConversion(conv, node, srcNode, toRemove);
+            }
 
             node = node.getParent();
         }
@@ -69,7 +78,8 @@ public abstract class CFOperator extends ConversionCreationOperator {
         }
 
         // Add probability for borrowings at each removed conversion
-        for (Conversion conv : toRemove) {
+        for (int i=0; i<toRemove.size(); i++) {
+            Conversion conv = toRemove.get(i);
             logP += Math.log(1.0/L);
             if (gibbsSampleBlockMovesInput.get()) {
                 logP += getBorrowingsProbGibbs(conv, true);
@@ -114,11 +124,16 @@ public abstract class CFOperator extends ConversionCreationOperator {
         double parentHeight = srcNode.getParent().getHeight();
         Node sibling = getSibling(srcNode);
 
+        _convs = acg.getConversions().toArray(_convs);
+        int nConvs = acg.getConvCount();
+
         Node node = srcNode.getParent();
         while (!node.isRoot()) {
-            for (Conversion conv : acg.getConversions())
+            for (int i=0; i<nConvs; i++) {
+                Conversion conv = _convs[i];
                 if (conv.getHeight() < destTime)
                     logP += maybeMoveConversion(conv, node, srcNode);
+            }
             node = node.getParent();
         }
 
@@ -1,7 +1,7 @@
 package contactrees.operators;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import beast.base.core.Input;
 import beast.base.inference.StateNode;
@@ -36,6 +36,9 @@ public abstract class ConversionCreationOperator extends BorrowingOperator {
             "The conversion prior (or network prior) defines how new edges should be sampled.",
             Input.Validate.XOR, networkPriorInput);
 
+    // Reusable buffer, to avoid allocations in every proposal
+    protected final List<Node> _lineages = new ArrayList<>();
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
@@ -102,19 +105,12 @@ public abstract class ConversionCreationOperator extends BorrowingOperator {
         double logP = 0.0;
 
         // Find the other lineages at the same height as node2.
-        Set<Node> activeLineages = acg.getLineagesAtHeight(height);
+        List<Node> activeLineages = acg.getLineagesAtHeight(height, _lineages);
         activeLineages.remove(conv.getNode1());
 
         // Sample a second node uniformly at random
         int choice = Randomizer.nextInt(activeLineages.size());
-        int i = 0;
-        for (Node node : activeLineages) {
-            if (i == choice) {
-                conv.setNode2(node);
-                break;
-            }
-            i++;
-        }
+        conv.setNode2(activeLineages.get(choice));
 
         // The only random choice was the lineage
         logP -= Math.log(activeLineages.size());
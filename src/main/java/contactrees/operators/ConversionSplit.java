@@ -1,7 +1,6 @@
 package contactrees.operators;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 import beast.base.core.Description;
@@ -28,6 +27,10 @@ public class ConversionSplit extends ConversionCreationOperator {
             false
             );
 
+    // Reusable buffers, to avoid allocations in every proposal
+    protected final List<Block> _affectedBlocks = new ArrayList<>();
+    protected final List<Block> _blocksToRemove = new ArrayList<>();
+
     @Override
     public double proposal() {
 
@@ -76,8 +79,11 @@ public class ConversionSplit extends ConversionCreationOperator {
 
         // Choose which blocks-moves stay on conv and which are moved to convNew
         double pDoubleMove = pMoveInput.get().get();
-        List<Block> blocksToRemove = new LinkedList<Block>();
-        for (Block block : blockSet.getAffectedBlocks(conv)) {
+        List<Block> blocksToRemove = _blocksToRemove;
+        blocksToRemove.clear();
+        List<Block> affectedBlocks = blockSet.getAffectedBlocks(conv, _affectedBlocks);
+        for (int i=0; i<affectedBlocks.size(); i++) {
+            Block block = affectedBlocks.get(i);
             if (Randomizer.nextDouble() < pDoubleMove) {
                 // Put ´block´ on both edges with probability ´pDoubleMove´
                 blockSet.addBlockMove(convNew, block);
@@ -96,8 +102,8 @@ public class ConversionSplit extends ConversionCreationOperator {
             }
         }
 
-        for (Block block : blocksToRemove)
-            blockSet.removeBlockMove(conv, block);
+        for (int i=0; i<blocksToRemove.size(); i++)
+            blockSet.removeBlockMove(conv, blocksToRemove.get(i));
 
         assert acg.getConvCount() == nConv + 1;
         assert !acg.isInvalid();
@@ -160,7 +166,9 @@ public class ConversionSplit extends ConversionCreationOperator {
         // Update Hastings ratio with back-probability for sampled block moves
         double pDoubleMove = pMoveInput.get().get();
 
-        for (Block block : blockSet.getAffectedBlocks(conv1)) {
+        List<Block> affectedBlocks1 = blockSet.getAffectedBlocks(conv1, _affectedBlocks);
+        for (int i=0; i<affectedBlocks1.size(); i++) {
+            Block block = affectedBlocks1.get(i);
             if (block.isAffected(conv2)) {
                 // Blocks affected by conv1 and conv2  ->  reverse move is a duplication move
                 logHGF += Math.log(pDoubleMove);
@@ -171,7 +179,9 @@ public class ConversionSplit extends ConversionCreationOperator {
             }
         }
 
-        for (Block block : blockSet.getAffectedBlocks(conv2)) {
+        List<Block> affectedBlocks2 = blockSet.getAffectedBlocks(conv2, _affectedBlocks);
+        for (int i=0; i<affectedBlocks2.size(); i++) {
+            Block block = affectedBlocks2.get(i);
             if (!block.isAffected(conv1)) {
                 // Blocks affected by conv1 but not conv2  ->  reverse move is no duplication
                 logHGF += Math.log(1 - pDoubleMove);
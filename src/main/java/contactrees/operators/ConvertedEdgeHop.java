@@ -1,6 +1,7 @@
 package contactrees.operators;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 
 import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
@@ -14,6 +15,9 @@ import contactrees.util.Util;
 @Description("Cause recombinant edge to hop between clonal frame edges.")
 public class ConvertedEdgeHop extends ACGOperator {
 
+    // Reusable buffer, to avoid allocations in every proposal
+    protected final List<Node> _activeLineages = new ArrayList<>();
+
     public ConvertedEdgeHop() { }
 
     @Override
@@ -26,7 +30,7 @@ public class ConvertedEdgeHop extends ACGOperator {
         Conversion conv = chooseConversion();
 
         // Find list of CF edges alive at pointHeight
-        HashSet<Node> activeLineages = acg.getLineagesAtHeight(conv.getHeight());
+        List<Node> activeLineages = acg.getLineagesAtHeight(conv.getHeight(), _activeLineages);
         activeLineages.remove(conv.getNode1());
         activeLineages.remove(conv.getNode2());
 
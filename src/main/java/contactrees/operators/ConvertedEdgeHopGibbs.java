@@ -1,6 +1,9 @@
 package contactrees.operators;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -29,6 +32,9 @@ public class ConvertedEdgeHopGibbs extends ConversionCreationOperator {
             "The maximum distance from the original attachment point to the new one, measured in time to their MRCA.",
             Double.MAX_VALUE);
 
+    // Reusable buffer for the candidate lineages (if not restricted to the closest relatives)
+    protected final List<Node> _candidates = new ArrayList<>();
+
     public ConvertedEdgeHopGibbs() { }
 
     @Override
@@ -59,7 +65,7 @@ public class ConvertedEdgeHopGibbs extends ConversionCreationOperator {
         Node nodeToStay = moveDeparture ? conv.getNode2() : conv.getNode1();
 
         // Find list of CF edges alive at pointHeight
-        HashSet<Node> candidates;
+        Collection<Node> candidates;
         int nClosest = nClosestRelativesInput.get();
         if (nClosest > 0) {
             candidates = Util.getClosestRelatives(nodeToMove, height, nClosest+1);
@@ -68,7 +74,7 @@ public class ConvertedEdgeHopGibbs extends ConversionCreationOperator {
 
         } else {
             // Non-positive numbers are interpreted as no constraint on the candidate lineages
-            candidates = acg.getLineagesAtHeight(conv.getHeight());
+            candidates = acg.getLineagesAtHeight(conv.getHeight(), _candidates);
         }
 
         candidates.remove(conv.getNode1());
@@ -0,0 +1,18 @@
+package contactrees.operators;
+
+/**
+ * Operators which resample part of the state from its full conditional
+ * distribution under the (cold) posterior. By default they are always
+ * accepted, which is only correct in a chain sampling the unheated posterior.
+ *
+ * @author Nico Neureiter
+ */
+public interface GibbsOperator {
+
+    /**
+     * @return whether the operator returns a proper Hastings ratio (instead of
+     * positive infinity), so that it can be used in a heated chain.
+     */
+    boolean isTemperingAdjusted();
+
+}
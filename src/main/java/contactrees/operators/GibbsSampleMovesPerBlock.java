@@ -14,13 +14,18 @@ import contactrees.MarginalTree;
  *
  * @author Nico Neureiter
  */
-public class GibbsSampleMovesPerBlock extends BorrowingOperator {
+public class GibbsSampleMovesPerBlock extends BorrowingOperator implements GibbsOperator {
 
     public Input<TreeLikelihood> treeLHInput = new Input<>(
             "treeLikelihood",
             "BEASTObject computing the tree likelihood.",
             Input.Validate.REQUIRED);
 
+    public Input<Boolean> mcmcmcInput = new Input<>(
+            "mcmcmc",
+            "Set this to `true` when using the operator in MCMCMC (otherwise the operator samples from the cold/unheated likelihood).",
+            Boolean.FALSE);
+
     protected Block block;
     protected TreeLikelihood treeLH;
     protected MarginalTree marginalTree;
@@ -33,11 +38,20 @@ public class GibbsSampleMovesPerBlock extends BorrowingOperator {
 
     @Override
     public double proposal() {
+        double logHGF = 0;
         for (Conversion conv : acg.getConversions()) {
-            sampleBlockMove(conv, treeLH, false);
+            logHGF -= sampleBlockMove(conv, treeLH, false);
         }
 
-        return Double.POSITIVE_INFINITY;
+        if (mcmcmcInput.get())
+            return logHGF;
+        else
+            return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public boolean isTemperingAdjusted() {
+        return mcmcmcInput.get();
     }
 
 
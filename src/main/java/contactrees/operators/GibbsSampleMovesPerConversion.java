@@ -13,7 +13,7 @@ import contactrees.MarginalTree;
  * @author Nico Neureiter
  */
 @Description("Gibbs operator to resample borrowings at a random conversion (contact edge).")
-public class GibbsSampleMovesPerConversion extends BorrowingOperator {
+public class GibbsSampleMovesPerConversion extends BorrowingOperator implements GibbsOperator {
 
     public Input<Boolean> mcmcmcInput = new Input<>(
             "mcmcmc",
@@ -42,4 +42,9 @@ public class GibbsSampleMovesPerConversion extends BorrowingOperator {
             return Double.POSITIVE_INFINITY;
     }
 
+    @Override
+    public boolean isTemperingAdjusted() {
+        return mcmcmcInput.get();
+    }
+
 }
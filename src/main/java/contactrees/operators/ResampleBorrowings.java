@@ -65,7 +65,7 @@ public class ResampleBorrowings extends ACGOperator {
         double logP = 0;
 
         if (pMove == 0.) {
-            assert blockSet.getAffectedBlockIDs(conv).isEmpty();
+            assert blockSet.countAffectedBlocks(conv) == 0;
             return 0;
         }
 
@@ -94,11 +94,11 @@ public class ResampleBorrowings extends ACGOperator {
      */
     public double getBorrowingsProb(Conversion conv) {
         double pMove = pMoveInput.get().get();
-        int borrowedCount = blockSet.getAffectedBlockIDs(conv).size();
+        int borrowedCount = blockSet.countAffectedBlocks(conv);
         int nonborrowedCount = blockSet.getBlockCount() - borrowedCount;
 
         if (pMove == 0.) {
-            assert blockSet.getAffectedBlockIDs(conv).isEmpty();
+            assert blockSet.countAffectedBlocks(conv) == 0;
             return 0;
         }
 
@@ -0,0 +1,127 @@
+package contactrees.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Distribution;
+import beast.base.inference.MCMC;
+import beast.base.inference.StateNode;
+import contactrees.Block;
+import contactrees.ConversionGraph;
+import contactrees.inference.HeatedACGChain;
+import contactrees.model.SimulatedBlockAlignment;
+
+/**
+ * One worker of a SimulationBasedCalibration run: an MCMC object together with
+ * the prior from which the true state is drawn and (optionally) the simulated
+ * data. The same worker is reused for many replicates.
+ *
+ * @author Nico Neureiter
+ */
+@Description("MCMC, prior and simulated data of one worker in a simulation-based calibration run.")
+public class SBCChain extends BEASTObject {
+
+    final public Input<MCMC> mcmcInput = new Input<>(
+            "mcmc",
+            "The MCMC object (model, state and operators) of this worker.",
+            Input.Validate.REQUIRED);
+
+    final public Input<Distribution> priorInput = new Input<>(
+            "prior",
+            "The prior of the MCMC, which is used to draw the true state of each replicate.",
+            Input.Validate.REQUIRED);
+
+    final public Input<SimulatedBlockAlignment> dataInput = new Input<>(
+            "data",
+            "Alignment which is re-simulated on the true state of each replicate (if not given, "
+            + "the chains sample from the prior).");
+
+    final public Input<List<BEASTInterface>> reinitialiseInput = new Input<>(
+            "reinitialise",
+            "Objects depending on the simulated data (e.g. filtered alignments and tree likelihoods), "
+            + "which are re-initialised in the given order after the data was simulated.",
+            new ArrayList<>());
+
+    /** Names of the summary statistics returned by summarise(). */
+    public static final String[] SUMMARY_NAMES = {"convCount", "moveCount", "rootHeight"};
+
+    protected HeatedACGChain chain;
+    protected ConversionGraph acg;
+    protected List<Block> blocks;
+
+    @Override
+    public void initAndValidate() {
+        chain = new HeatedACGChain(mcmcInput.get(), 1.0);
+
+        acg = null;
+        blocks = new ArrayList<>();
+        for (StateNode stateNode : mcmcInput.get().startStateInput.get().stateNodeInput.get()) {
+            if (stateNode instanceof ConversionGraph)
+                acg = (ConversionGraph) stateNode;
+            else if (stateNode instanceof Block)
+                blocks.add((Block) stateNode);
+        }
+
+        if (acg == null)
+            throw new IllegalArgumentException("The state of " + mcmcInput.get().getID()
+                    + " does not contain a ConversionGraph.");
+    }
+
+    /**
+     * Initialise the state of the chain (only required once, before the first replicate).
+     */
+    public void initialise(int maxAttempts) {
+        chain.initialise(maxAttempts);
+    }
+
+    /**
+     * Draw a new true state from the prior, simulate the data on it and
+     * restart the chain from the true state.
+     * @param random Random number generator of the replicate.
+     * @return the summary statistics of the true state.
+     */
+    public double[] drawTruth(Random random) {
+        Distribution prior = priorInput.get();
+        SimulatorOperator.clearSampledFlags(prior);
+        prior.sample(chain.getState(), random);
+
+        if (dataInput.get() != null) {
+            SimulatedBlockAlignment data = dataInput.get();
+            data.seedInput.setValue(random.nextLong(), data);
+            data.initAndValidate();
+            for (BEASTInterface obj : reinitialiseInput.get())
+                obj.initAndValidate();
+        }
+
+        chain.restartFromCurrentState();
+        return summarise();
+    }
+
+    /**
+     * Run the chain for the given number of steps.
+     */
+    public void run(long nSteps) {
+        chain.run(nSteps);
+    }
+
+    /**
+     * @return the summary statistics (see SUMMARY_NAMES) of the current state.
+     */
+    public double[] summarise() {
+        int moveCount = 0;
+        for (Block block : blocks)
+            moveCount += block.countMoves();
+
+        return new double[] {
+                acg.getConvCount(),
+                moveCount,
+                acg.getRoot().getHeight()
+        };
+    }
+
+}
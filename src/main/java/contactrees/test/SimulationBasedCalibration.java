@@ -0,0 +1,268 @@
+package contactrees.test;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.statistics.distribution.ChiSquaredDistribution;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.Runnable;
+import beast.base.util.Randomizer;
+
+/**
+ * Simulation-based calibration (SBC) of contacTrees models and operators.
+ * For every replicate, a true state is drawn from the prior (and data is
+ * simulated on it), a short chain is started from the true state and the rank
+ * of the true value of each summary statistic among the thinned samples of the
+ * chain is recorded. For a correct sampler, the ranks are uniformly distributed.
+ *
+ * The replicates are distributed over the chains (one per thread), which are
+ * reused for many replicates. Note that parts of the model draw from the shared
+ * Randomizer, so runs with more than one chain are not exactly reproducible
+ * from the seed.
+ *
+ * @author Nico Neureiter
+ */
+@Description("Runs many short contacTrees chains in parallel to compute simulation-based calibration rank statistics.")
+public class SimulationBasedCalibration extends Runnable {
+
+    final public Input<List<SBCChain>> chainsInput = new Input<>(
+            "chain",
+            "Identical models with separate state, one per thread.",
+            new ArrayList<>());
+
+    final public Input<Integer> replicatesInput = new Input<>(
+            "replicates",
+            "Number of simulated replicates.",
+            Input.Validate.REQUIRED);
+
+    final public Input<Long> chainLengthInput = new Input<>(
+            "chainLength",
+            "Number of MCMC steps per replicate.",
+            Input.Validate.REQUIRED);
+
+    final public Input<Integer> thinInput = new Input<>(
+            "thin",
+            "Number of MCMC steps between two samples used for the rank statistics.",
+            100);
+
+    final public Input<Integer> binsInput = new Input<>(
+            "bins",
+            "Number of bins of the rank histograms used in the uniformity test.",
+            10);
+
+    final public Input<Long> seedInput = new Input<>(
+            "seed",
+            "Master seed for the replicate seeds (defaults to the BEAST seed).");
+
+    final public Input<Integer> numInitializationAttemptsInput = new Input<>(
+            "numInitializationAttempts",
+            "Number of initialisation attempts per chain before failing.",
+            10);
+
+    final public Input<String> rankLogFileInput = new Input<>(
+            "rankLog",
+            "Optional file to which the ranks of every replicate are written.");
+
+    final public Input<Double> minPValueInput = new Input<>(
+            "minPValue",
+            "Fail if the uniformity test of any summary statistic has a lower p-value (0 to disable).",
+            0.0);
+
+    protected int[][] ranks;
+    protected int maxRank;
+
+    @Override
+    public void initAndValidate() {
+        if (chainsInput.get().isEmpty())
+            throw new IllegalArgumentException("SimulationBasedCalibration requires at least one chain.");
+        if (thinInput.get() < 1 || chainLengthInput.get() < thinInput.get())
+            throw new IllegalArgumentException("thin must be positive and at most chainLength.");
+        if (binsInput.get() < 2)
+            throw new IllegalArgumentException("bins must be at least 2.");
+    }
+
+    @Override
+    public void run() throws Exception {
+        List<SBCChain> chains = chainsInput.get();
+        int nReplicates = replicatesInput.get();
+        int nSamples = (int) (chainLengthInput.get() / thinInput.get());
+        maxRank = nSamples;
+
+        // Replicate seeds are drawn up front, so that replicate i always uses the same seed
+        long seed = seedInput.get() != null ? seedInput.get() : Randomizer.getSeed();
+        Random masterRandom = new Random(seed);
+        long[] replicateSeeds = new long[nReplicates];
+        for (int i=0; i<nReplicates; i++)
+            replicateSeeds[i] = masterRandom.nextLong();
+
+        BlockingQueue<SBCChain> workers = new ArrayBlockingQueue<>(chains.size());
+        for (SBCChain chain : chains) {
+            chain.initialise(numInitializationAttemptsInput.get());
+            workers.add(chain);
+        }
+
+        PrintStream rankLog = null;
+        if (rankLogFileInput.get() != null) {
+            rankLog = openRankLog(rankLogFileInput.get());
+            rankLog.print("Replicate");
+            for (String name : SBCChain.SUMMARY_NAMES)
+                rankLog.print("\t" + name);
+            rankLog.println();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(chains.size());
+        long startTime = System.currentTimeMillis();
+        ranks = new int[nReplicates][];
+
+        try {
+            List<Future<int[]>> futures = new ArrayList<>();
+            for (int i=0; i<nReplicates; i++) {
+                long replicateSeed = replicateSeeds[i];
+                futures.add(executor.submit(() -> {
+                    SBCChain worker = workers.take();
+                    try {
+                        return runReplicate(worker, replicateSeed, nSamples);
+                    } finally {
+                        workers.put(worker);
+                    }
+                }));
+            }
+
+            for (int i=0; i<nReplicates; i++) {
+                try {
+                    ranks[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Replicate " + i + " failed.", e.getCause());
+                }
+
+                if (rankLog != null) {
+                    rankLog.print(i);
+                    for (int rank : ranks[i])
+                        rankLog.print("\t" + rank);
+                    rankLog.println();
+                }
+            }
+        } finally {
+            executor.shutdown();
+            if (rankLog != null)
+                rankLog.close();
+        }
+
+        long endTime = System.currentTimeMillis();
+        Log.info.println();
+        boolean passed = showRankStatistics(Log.info);
+        Log.info.println("Total calculation time: " + (endTime - startTime)/1000.0 + " seconds");
+
+        if (!passed)
+            throw new RuntimeException("Rank statistics are not uniform (p < " + minPValueInput.get() + ").");
+    }
+
+    /**
+     * Draw the true state, run the chain and compute the rank of the true
+     * value of every summary statistic among the thinned samples.
+     */
+    protected int[] runReplicate(SBCChain worker, long seed, int nSamples) {
+        Random random = new Random(seed);
+        double[] truth = worker.drawTruth(random);
+
+        double[][] samples = new double[truth.length][nSamples];
+        for (int j=0; j<nSamples; j++) {
+            worker.run(thinInput.get());
+            double[] summaries = worker.summarise();
+            for (int s=0; s<truth.length; s++)
+                samples[s][j] = summaries[s];
+        }
+
+        int[] replicateRanks = new int[truth.length];
+        for (int s=0; s<truth.length; s++)
+            replicateRanks[s] = rank(truth[s], samples[s], random);
+        return replicateRanks;
+    }
+
+    /**
+     * Rank of the true value among the samples, i.e. the number of samples
+     * smaller than the true value. Ties are broken uniformly at random, so
+     * the rank of a correct sampler is uniform on {0, ..., samples.length}
+     * also for discrete statistics.
+     */
+    public static int rank(double truth, double[] samples, Random random) {
+        int smaller = 0, equal = 0;
+        for (double x : samples) {
+            if (x < truth)
+                smaller++;
+            else if (x == truth)
+                equal++;
+        }
+        return smaller + (equal > 0 ? random.nextInt(equal + 1) : 0);
+    }
+
+    /**
+     * Chi-squared test of uniformity of the ranks (values in {0, ..., maxRank})
+     * binned into the given number of bins.
+     * @return the chi-squared statistic and its p-value.
+     */
+    public static double[] uniformityTest(int[] ranks, int maxRank, int bins) {
+        bins = Math.min(bins, maxRank + 1);
+        double[] observed = new double[bins];
+        double[] nValues = new double[bins];
+        for (int r=0; r<=maxRank; r++)
+            nValues[getBin(r, maxRank, bins)] += 1;
+        for (int rank : ranks)
+            observed[getBin(rank, maxRank, bins)] += 1;
+
+        double chi2 = 0;
+        for (int b=0; b<bins; b++) {
+            double expected = ranks.length * nValues[b] / (maxRank + 1);
+            chi2 += (observed[b] - expected) * (observed[b] - expected) / expected;
+        }
+
+        double pValue = ChiSquaredDistribution.of(bins - 1).survivalProbability(chi2);
+        return new double[] {chi2, pValue};
+    }
+
+    static int getBin(int rank, int maxRank, int bins) {
+        return (int) ((long) rank * bins / (maxRank + 1));
+    }
+
+    protected PrintStream openRankLog(String fileName) throws FileNotFoundException {
+        return new PrintStream(fileName);
+    }
+
+    /**
+     * Print the uniformity test of every summary statistic.
+     * @return false if any p-value is below minPValue.
+     */
+    public boolean showRankStatistics(PrintStream out) {
+        boolean passed = true;
+
+        out.println("SBC rank statistics (" + ranks.length + " replicates, ranks 0-" + maxRank + "):");
+        out.println(String.format("%-14s %-12s %-12s", "Summary", "Chi2", "p-value"));
+        for (int s=0; s<SBCChain.SUMMARY_NAMES.length; s++) {
+            int[] summaryRanks = new int[ranks.length];
+            for (int i=0; i<ranks.length; i++)
+                summaryRanks[i] = ranks[i][s];
+
+            double[] test = uniformityTest(summaryRanks, maxRank, binsInput.get());
+            out.println(String.format("%-14s %-12.4f %-12.4f", SBCChain.SUMMARY_NAMES[s], test[0], test[1]));
+
+            if (test[1] < minPValueInput.get())
+                passed = false;
+        }
+        out.println();
+
+        return passed;
+    }
+
+}
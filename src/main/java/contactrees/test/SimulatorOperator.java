@@ -43,7 +43,7 @@ public class SimulatorOperator extends Operator {
 		return Double.POSITIVE_INFINITY;
 	}
 
-    public void clearSampledFlags(BEASTInterface obj) {
+    public static void clearSampledFlags(BEASTInterface obj) {
         if (obj instanceof Distribution)
             ((Distribution) obj).sampledFlag = false;
 
@@ -0,0 +1,136 @@
+package contactrees.util;
+
+import java.util.Arrays;
+
+/**
+ * Map from int keys (e.g. conversion IDs) to positive int counts, backed by
+ * primitive arrays with open addressing (linear probing). Keys whose count
+ * drops to zero are removed. Unlike a HashMap<Integer, Integer>, increments
+ * and decrements neither box keys nor allocate entries.
+ *
+ * @author Nico Neureiter
+ */
+public class IntCountMap {
+
+    private int[] keys;
+    private int[] counts;
+    private int size;
+    private int mask;
+
+    public IntCountMap() {
+        this(16);
+    }
+
+    public IntCountMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, 2*expectedSize - 1)) << 1;
+        keys = new int[capacity];
+        counts = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return the count of key (0 if the key is not contained in the map).
+     */
+    public int get(int key) {
+        int slot = find(key);
+        return counts[slot];
+    }
+
+    /**
+     * Increase the count of key by one.
+     * @return the new count.
+     */
+    public int increment(int key) {
+        int slot = find(key);
+        if (counts[slot] == 0) {
+            if (2*(size+1) > keys.length) {
+                grow();
+                slot = find(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        return ++counts[slot];
+    }
+
+    /**
+     * Decrease the count of key by one (the key must be contained in the map).
+     * @return the new count.
+     */
+    public int decrement(int key) {
+        int slot = find(key);
+        assert counts[slot] > 0;
+        int count = --counts[slot];
+        if (count == 0) {
+            size--;
+            shiftBack(slot);
+        }
+        return count;
+    }
+
+    /**
+     * @return number of keys with a positive count.
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    /**
+     * Slot of key, or the empty slot where it would be inserted.
+     */
+    private int find(int key) {
+        int slot = mix(key) & mask;
+        while (counts[slot] != 0 && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Close the gap left by a removed entry, so that probing sequences stay intact.
+     */
+    private void shiftBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (counts[slot] == 0)
+                return;
+
+            int home = mix(keys[slot]) & mask;
+            // Move the entry into the gap, unless its home lies cyclically in (gap, slot]
+            boolean movable = (gap <= slot) ? (home <= gap || home > slot)
+                                            : (home <= gap && home > slot);
+            if (movable) {
+                keys[gap] = keys[slot];
+                counts[gap] = counts[slot];
+                counts[slot] = 0;
+                gap = slot;
+            }
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new int[2*oldKeys.length];
+        counts = new int[2*oldKeys.length];
+        mask = keys.length - 1;
+        for (int i=0; i<oldKeys.length; i++) {
+            if (oldCounts[i] != 0) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,47 @@
+package contactrees.util;
+
+/**
+ * Cumulative wall-clock timer and call counter for a model component, e.g.
+ * the logP calculation of a distribution or the rebuild of a marginal tree.
+ * Usage:
+ *     long start = timer.start();
+ *     ...
+ *     timer.stop(start);
+ *
+ * @author Nico Neureiter
+ */
+public class ProfileTimer {
+
+    private long nanos = 0;
+    private long calls = 0;
+
+    /**
+     * @return the start time, to be passed on to stop().
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time since start to the total and count the call.
+     */
+    public void stop(long start) {
+        nanos += System.nanoTime() - start;
+        calls++;
+    }
+
+    /**
+     * @return total time spent in the component (in nanoseconds).
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return number of timed calls.
+     */
+    public long getCalls() {
+        return calls;
+    }
+
+}
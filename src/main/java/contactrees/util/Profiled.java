@@ -0,0 +1,13 @@
+package contactrees.util;
+
+/**
+ * A model component which keeps a ProfileTimer of its main computation (see
+ * ComponentProfiler).
+ *
+ * @author Nico Neureiter
+ */
+public interface Profiled {
+
+    ProfileTimer getProfileTimer();
+
+}
@@ -0,0 +1,32 @@
+package contactrees.util;
+
+import java.io.PrintStream;
+
+import beast.base.core.Loggable;
+
+/**
+ * A Loggable whose log() can be split into capturing a snapshot of the state
+ * (on the MCMC thread) and formatting the snapshot (on any thread), as used
+ * by the AsyncLogger. Snapshots must not reference mutable model objects and
+ * are returned to the loggable (e.g. to a pool) after they were written.
+ *
+ * @author Nico Neureiter
+ */
+public interface SnapshotLoggable<S> extends Loggable {
+
+    /**
+     * Capture the state to be logged for the given sample.
+     */
+    S takeSnapshot(long sample);
+
+    /**
+     * Write a snapshot in the format of log().
+     */
+    void logSnapshot(S snapshot, PrintStream out);
+
+    /**
+     * Hand back a snapshot after it was written.
+     */
+    void releaseSnapshot(S snapshot);
+
+}
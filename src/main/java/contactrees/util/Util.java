@@ -30,6 +30,15 @@ public class Util {
 	    return copy;
 	}
 
+	/**
+	 * Sample uniformly from an indexed population (without iterating).
+	 */
+	static public <T> T sampleFrom(List<T> population) {
+		if (population.isEmpty())
+			throw new RuntimeException("Can not sample from empty set.");
+		return population.get(Randomizer.nextInt(population.size()));
+	}
+
 	static public <T> T sampleFrom(Collection<T> population) {
 		int z = Randomizer.nextInt(population.size());
 		for (T candidate : population) {
@@ -17,6 +17,7 @@ open module contactrees {
 
     exports contactrees;
     exports contactrees.acgannotator;
+    exports contactrees.inference;
     exports contactrees.model;
     exports contactrees.model.likelihood;
     exports contactrees.operators;
@@ -30,9 +31,17 @@ open module contactrees {
         contactrees.Block,
         contactrees.BlockSet,
         contactrees.ConversionGraph,
+        contactrees.DistanceBasedACGInitialiser,
+        contactrees.inference.ACGCheckpointer,
+        contactrees.inference.AsyncLogger,
+        contactrees.inference.ChainMonitor,
+        contactrees.inference.ComponentProfiler,
+        contactrees.inference.CostAwareOperatorSchedule,
+        contactrees.inference.CoupledACGMCMC,
         contactrees.MarginalNode,
         contactrees.MarginalNodeSlow,
         contactrees.MarginalTree,
+        contactrees.MarginalTreeLogger,
         contactrees.MarginalTreeSlow,
         contactrees.model.ACGDistribution,
         contactrees.model.ACGSimulator,
@@ -43,6 +52,7 @@ open module contactrees {
         contactrees.model.FreezableClock,
         contactrees.model.likelihood.CTreeLikelihood,
         contactrees.model.SimulatedACGWithBlocks,
+        contactrees.model.SimulatedBlockAlignment,
         contactrees.operators.ACGScaler,
         contactrees.operators.AddRemoveConversion,
         contactrees.operators.AddRemoveConversionGibbs,
@@ -60,6 +70,8 @@ open module contactrees {
         contactrees.operators.GibbsSampleMovesPerConversion,
         contactrees.operators.ResampleBorrowings,
         contactrees.RandomACG,
+        contactrees.test.SBCChain,
+        contactrees.test.SimulationBasedCalibration,
         contactrees.test.SimulatorOperator,
         contactrees.test.StationarityTestSchedule;
 }
\ No newline at end of file
@@ -0,0 +1,62 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import contactrees.ACGSnapshot;
+import contactrees.inference.ACGCheckpointer;
+
+/**
+ * Test the round trip of the ACG and the block moves through a binary checkpoint.
+ *
+ * @author Nico Neureiter
+ */
+public class ACGCheckpointerTest extends ContactreesTest {
+
+    @Test
+    public void testRestore() throws Exception {
+        blockSet.get(0).addMove(conv1);
+        blockSet.get(2).addMove(conv1);
+        blockSet.get(2).addMove(conv2);
+        String newick = acg.getExtendedNewick();
+
+        Path path = Files.createTempFile("contactrees", ".ckpt");
+        ACGCheckpointer.write(new ACGSnapshot().capture(acg, blockSet, 1000), path);
+
+        // Change the ACG and the blocks
+        acg.removeAllConversions();
+        blockSet.get(0).removeAllMoves();
+        blockSet.get(2).removeAllMoves();
+        root.setHeight(4.0);
+        acg.makeDerivedStateDirty();
+        assertFalse(newick.equals(acg.getExtendedNewick()));
+
+        // By default an existing checkpoint is ignored
+        String changedNewick = acg.getExtendedNewick();
+        ACGCheckpointer checkpointer = new ACGCheckpointer();
+        checkpointer.initByName("network", acg, "blockSet", blockSet, "file", path.toString());
+        checkpointer.initStateNodes();
+        assertEquals(changedNewick, acg.getExtendedNewick());
+        assertEquals(0, blockSet.countMoves());
+
+        checkpointer = new ACGCheckpointer();
+        checkpointer.initByName("network", acg, "blockSet", blockSet, "file", path.toString(), "restore", true);
+        checkpointer.initStateNodes();
+
+        assertEquals(1000, ACGCheckpointer.read(path).getSample());
+        assertEquals(newick, acg.getExtendedNewick());
+        assertEquals(3, blockSet.countMoves());
+        assertTrue(blockSet.get(0).isAffected(acg.getConversions().get(1)));
+        assertTrue(blockSet.get(2).isAffected(acg.getConversions().get(2)));
+        assertAllValid();
+
+        Files.delete(path);
+    }
+
+}
@@ -0,0 +1,67 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+import org.junit.Test;
+
+import contactrees.ACGStatsLogger;
+import contactrees.Conversion;
+
+/**
+ * Test the gene flow counts of the ACGStatsLogger.
+ *
+ * @author Nico Neureiter
+ */
+public class ACGStatsLoggerTest extends ContactreesTest {
+
+    @Test
+    public void testGeneFlow() {
+        // Second conversion from the branch of node2, above conv1
+        Conversion conv3 = new Conversion(node2, node3, 0.8, acg, 3);
+        acg.addConversion(conv3);
+
+        blockSet.get(0).addMove(conv1);
+        blockSet.get(1).addMove(conv1);
+        blockSet.get(1).addMove(conv2);
+        blockSet.get(2).addMove(conv3);
+        blockSet.get(2).addMove(conv1);
+        blockSet.get(3).addMove(conv3);
+
+        ACGStatsLogger logger = new ACGStatsLogger();
+        logger.initByName("network", acg, "blockSet", blockSet, "logGeneFlow", true);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        logger.init(new PrintStream(bytes));
+        assertTrue(bytes.toString().endsWith("geneFlow\t"));
+
+        // Block 2 only counts the lower conversion (conv1) from node2
+        String flow3to2 = "flow_" + node3.getNr() + "_to_" + node2.getNr();
+        String flow4to3 = "flow_" + node4.getNr() + "_to_" + node3.getNr();
+        Map<String, Integer> geneFlow = logger.getGeneFlow();
+        assertEquals(2, geneFlow.size());
+        assertEquals(4, (int) geneFlow.get(flow3to2));
+        assertEquals(1, (int) geneFlow.get(flow4to3));
+
+        bytes.reset();
+        logger.log(0, new PrintStream(bytes));
+        String[] columns = bytes.toString().split("\t");
+        String sparse = columns[columns.length - 1];
+        assertTrue(sparse.contains(flow3to2 + "=4"));
+        assertTrue(sparse.contains(flow4to3 + "=1"));
+        assertEquals(2, sparse.split(",").length);
+
+        // Blocks without moves do not create any entries
+        for (int i=0; i<N_BLOCKS; i++)
+            blockSet.get(i).removeAllMoves();
+        assertTrue(logger.getGeneFlow().isEmpty());
+        bytes.reset();
+        logger.log(1, new PrintStream(bytes));
+        assertTrue(bytes.toString().endsWith("\t{}\t"));
+    }
+
+}
@@ -0,0 +1,152 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.spec.domain.NonNegativeReal;
+import beast.base.spec.domain.UnitInterval;
+import beast.base.spec.inference.parameter.RealScalarParam;
+import contactrees.Block;
+import contactrees.Conversion;
+import contactrees.model.ConversionPrior;
+import contactrees.operators.ACGScaler;
+import contactrees.operators.CFUniform;
+import contactrees.operators.ConvertedEdgeHop;
+import contactrees.operators.ConvertedEdgeSlide;
+import contactrees.operators.ResampleBorrowings;
+
+/**
+ * Regression tests asserting that the reusable-buffer paths and the proposals
+ * of each operator family do not allocate once they are warmed up. Proposals
+ * which add conversions (e.g. AddRemoveConversion, ConversionSplit) allocate
+ * the new Conversion and are not covered.
+ *
+ * @author Nico Neureiter
+ */
+public class AllocationTest extends ContactreesTest {
+
+    static final int WARMUP = 20000;
+    static final int REPEATS = 1000;
+
+    final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Run the task WARMUP times, then measure the bytes allocated by the
+     * current thread during REPEATS further runs.
+     */
+    long allocatedBytes(Runnable task) {
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i=0; i<WARMUP; i++)
+            task.run();
+
+        long before = threadBean.getCurrentThreadAllocatedBytes();
+        for (int i=0; i<REPEATS; i++)
+            task.run();
+        return threadBean.getCurrentThreadAllocatedBytes() - before;
+    }
+
+    @Test
+    public void testLineagesAtHeight() {
+        List<Node> lineages = new ArrayList<>();
+        assertEquals(0, allocatedBytes(() -> {
+            acg.getLineagesAtHeight(0.5, lineages);
+            acg.getLineagesAtHeight(1.5, lineages);
+        }));
+        assertEquals(2, lineages.size());
+    }
+
+    @Test
+    public void testAffectedBlocks() {
+        List<Block> affected = new ArrayList<>();
+        blockSet.getBlocks().get(1).addMove(conv1);
+        blockSet.getBlocks().get(3).addMove(conv1);
+
+        assertEquals(0, allocatedBytes(() -> {
+            blockSet.getAffectedBlocks(conv1, affected);
+            blockSet.countAffectedBlocks(conv1);
+        }));
+        assertEquals(2, affected.size());
+        assertEquals(2, blockSet.countAffectedBlocks(conv1));
+    }
+
+    @Test
+    public void testScale() {
+        double rootHeight = acg.getRoot().getHeight();
+        assertEquals(0, allocatedBytes(() -> {
+            acg.scale(2.0);
+            acg.scale(0.5);
+        }));
+        assertEquals(rootHeight, acg.getRoot().getHeight(), EPS);
+    }
+
+    @Test
+    public void testConversionBuffer() {
+        Conversion[] buffer = acg.getConversions().toArray(new Conversion[0]);
+        assertEquals(0, allocatedBytes(() -> acg.getConversions().toArray(buffer)));
+    }
+
+    @Test
+    public void testConversionProposals() {
+        ConvertedEdgeSlide slide = new ConvertedEdgeSlide();
+        slide.initByName("acg", acg2, "weight", 1.0);
+        ConvertedEdgeHop hop = new ConvertedEdgeHop();
+        hop.initByName("acg", acg2, "weight", 1.0);
+
+        assertEquals(0, allocatedBytes(() -> {
+            slide.proposal();
+            hop.proposal();
+        }));
+        assertEquals(3, acg2.getConvCount());
+        assertFalse(acg2.isInvalid());
+    }
+
+    @Test
+    public void testCFProposal() {
+        // Without conversions (and a zero rate) no conversions are added or removed
+        acg.removeConversion(conv1);
+        acg.removeConversion(conv2);
+        RealScalarParam<NonNegativeReal> cRate = new RealScalarParam<>(0.0, NonNegativeReal.INSTANCE);
+        RealScalarParam<UnitInterval> pMove = new RealScalarParam<>(0.4, UnitInterval.INSTANCE);
+        ConversionPrior prior = new ConversionPrior();
+        prior.initByName("network", acg, "conversionRate", cRate);
+
+        CFUniform cfUniform = new CFUniform();
+        cfUniform.initByName("acg", acg, "conversionRate", cRate, "pMove", pMove,
+                "blockSet", blockSet, "conversionPrior", prior, "weight", 1.0);
+
+        assertEquals(0, allocatedBytes(() -> cfUniform.proposal()));
+        assertFalse(acg.isInvalid());
+    }
+
+    @Test
+    public void testScaleProposal() {
+        ACGScaler scaler = new ACGScaler();
+        scaler.initByName("acg", acg2, "scaleFactor", 0.9, "weight", 1.0);
+
+        assertEquals(0, allocatedBytes(() -> scaler.proposal()));
+        assertFalse(acg2.isInvalid());
+    }
+
+    @Test
+    public void testBorrowingProposal() {
+        RealScalarParam<UnitInterval> pMove = new RealScalarParam<>(0.3, UnitInterval.INSTANCE);
+        ResampleBorrowings resample = new ResampleBorrowings();
+        resample.initByName("acg", acg2, "blockSet", blockSet2, "pMove", pMove, "weight", 1.0);
+
+        assertEquals(0, allocatedBytes(() -> resample.proposal()));
+        assertTrue(blockSet2.countMoves() <= 3 * N_BLOCKS);
+    }
+
+}
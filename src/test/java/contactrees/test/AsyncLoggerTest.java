@@ -0,0 +1,108 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Test;
+
+import beast.base.inference.Logger;
+import contactrees.Block;
+import contactrees.inference.AsyncLogger;
+
+/**
+ * Test that the AsyncLogger writes the same ACG log as the synchronous
+ * ACGWithMetaDataLogger, in sample order.
+ *
+ * @author Nico Neureiter
+ */
+public class AsyncLoggerTest extends ContactreesTest {
+
+    @After
+    public void resetFileMode() {
+        Logger.FILE_MODE = Logger.LogFileMode.only_new;
+    }
+
+    @Test
+    public void testACGLog() throws Exception {
+        Path path = Files.createTempFile("contactrees", ".trees");
+        Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+        AsyncLogger logger = new AsyncLogger();
+        logger.initByName("fileName", path.toString(), "logEvery", 10, "log", acgLogger, "queueSize", 1);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream expectedOut = new PrintStream(expected);
+        acgLogger.init(expectedOut);
+        expectedOut.println();
+
+        logger.init();
+        for (long sample=0; sample<=30; sample++) {
+            if (sample % 10 == 0) {
+                acgLogger.log(sample, expectedOut);
+                expectedOut.println();
+            }
+            logger.log(sample);
+
+            // Change the state after it was logged
+            Block block = blockSet.get((int) (sample % N_BLOCKS));
+            if (block.isAffected(conv1))
+                block.removeMove(conv1);
+            else
+                block.addMove(conv1);
+        }
+        logger.close();
+        acgLogger.close(expectedOut);
+        expectedOut.flush();
+
+        assertEquals(expected.toString(), Files.readString(path));
+        Files.delete(path);
+    }
+
+    @Test
+    public void testFileModes() throws Exception {
+        Path path = Files.createTempFile("contactrees", ".log");
+
+        // An existing log is only replaced with -overwrite
+        AsyncLogger logger = new AsyncLogger();
+        logger.initByName("fileName", path.toString(), "logEvery", 10, "log", acg);
+        try {
+            logger.init();
+            fail("Existing log was replaced without -overwrite.");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        // Compound log of the ACG and a block
+        Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+        logger = new AsyncLogger();
+        logger.initByName("fileName", path.toString(), "logEvery", 10, "log", blockSet.get(0), "log", blockSet.get(1));
+        logger.init();
+        for (long sample=0; sample<=20; sample++)
+            logger.log(sample);
+        logger.close();
+
+        // -resume continues after the last sample, without a second header
+        Logger.FILE_MODE = Logger.LogFileMode.resume;
+        logger = new AsyncLogger();
+        logger.initByName("fileName", path.toString(), "logEvery", 10, "log", blockSet.get(0), "log", blockSet.get(1));
+        logger.init();
+        for (long sample=0; sample<=20; sample++)
+            logger.log(sample);
+        logger.close();
+
+        String[] lines = Files.readString(path).trim().split("\n");
+        assertEquals(6, lines.length);
+        assertTrue(lines[0].startsWith("Sample\t"));
+        for (int i=1; i<lines.length; i++)
+            assertTrue(lines[i].startsWith(((i-1) * 10) + "\t"));
+
+        Files.delete(path);
+    }
+
+}
@@ -1,9 +1,11 @@
 package contactrees.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Random;
 
+import org.apache.commons.numbers.gamma.LogBeta;
 import org.apache.commons.rng.UniformRandomProvider;
 import org.apache.commons.rng.simple.RandomSource;
 import org.apache.commons.statistics.distribution.BetaDistribution;
@@ -12,6 +14,8 @@ import org.junit.Test;
 
 import beast.base.spec.domain.PositiveReal;
 import beast.base.spec.inference.parameter.RealScalarParam;
+import contactrees.Block;
+import contactrees.Conversion;
 import contactrees.model.BetaBinomialMovePrior;
 
 /**
@@ -45,4 +49,43 @@ public class BetaBinomialMovePriorTest extends ContactreesTest {
             assertTrue("Beta sample out of [0,1]: " + x, x >= 0.0 && x <= 1.0);
         }
     }
+
+    /** The incrementally updated logP matches a direct computation after changes of the moves. */
+    @Test
+    public void incrementalLogPMatchesDirect() {
+        RealScalarParam<PositiveReal> alpha = new RealScalarParam<>(2.0, PositiveReal.INSTANCE);
+        RealScalarParam<PositiveReal> beta = new RealScalarParam<>(16.0, PositiveReal.INSTANCE);
+
+        BetaBinomialMovePrior prior = new BetaBinomialMovePrior();
+        prior.initByName("network", acg, "blockSet", blockSet, "alpha", alpha, "beta", beta);
+        assertEquals(directLogP(2.0, 16.0), prior.calculateLogP(), EPS);
+
+        Random random = new Random(1);
+        Conversion[] convs = {conv1, conv2};
+        for (int i=0; i<200; i++) {
+            Block block = blockSet.get(random.nextInt(blockSet.size()));
+            Conversion conv = convs[random.nextInt(convs.length)];
+            switch (random.nextInt(4)) {
+                case 0 -> block.removeAllMoves();
+                case 1 -> block.restore();
+                default -> {
+                    if (block.isAffected(conv))
+                        block.removeMove(conv);
+                    else
+                        block.addMove(conv);
+                }
+            }
+            assertEquals(directLogP(2.0, 16.0), prior.calculateLogP(), EPS);
+        }
+    }
+
+    double directLogP(double alpha, double beta) {
+        int n = blockSet.getBlockCount();
+        double logP = 0.0;
+        for (Conversion conv : acg.getConversions()) {
+            int k = blockSet.countAffectedBlocks(conv);
+            logP += LogBeta.value(alpha + k, beta + n - k) - LogBeta.value(alpha, beta);
+        }
+        return logP;
+    }
 }
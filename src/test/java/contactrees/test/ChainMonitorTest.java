@@ -0,0 +1,44 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import contactrees.inference.ChainMonitor;
+
+/**
+ * Test the JMX surface of the ChainMonitor.
+ *
+ * @author Nico Neureiter
+ */
+public class ChainMonitorTest extends ContactreesTest {
+
+    @Test
+    public void testMBean() throws Exception {
+        blockSet.getBlocks().get(0).addMove(conv1);
+
+        ChainMonitor monitor = new ChainMonitor();
+        monitor.initByName("network", acg, "blockSet", blockSet);
+        monitor.setID("testChain");
+
+        monitor.init(null);
+        monitor.log(100, null);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("contactrees:type=ChainMonitor,name=" + ObjectName.quote("testChain"));
+        assertEquals(100L, server.getAttribute(name, "Sample"));
+        assertEquals(2, server.getAttribute(name, "ConversionCount"));
+        assertEquals(1, server.getAttribute(name, "MoveCount"));
+        assertEquals(0L, server.getAttribute(name, "MarginalTreeHeapBytes"));
+
+        monitor.close(null);
+        assertFalse(server.isRegistered(name));
+    }
+
+}
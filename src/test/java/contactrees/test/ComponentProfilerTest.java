@@ -0,0 +1,53 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import beast.base.spec.domain.UnitInterval;
+import beast.base.spec.inference.parameter.RealScalarParam;
+import contactrees.inference.ComponentProfiler;
+import contactrees.model.ConversionMovePrior;
+
+/**
+ * Test the columns and call counts logged by the ComponentProfiler.
+ *
+ * @author Nico Neureiter
+ */
+public class ComponentProfilerTest extends ContactreesTest {
+
+    @Test
+    public void testMovePriorProfile() {
+        ConversionMovePrior movePrior = new ConversionMovePrior();
+        movePrior.initByName(
+                "network", acg,
+                "blockSet", blockSet,
+                "pMove", new RealScalarParam<>(0.1, UnitInterval.INSTANCE));
+
+        ComponentProfiler profiler = new ComponentProfiler();
+        profiler.initByName("distribution", movePrior);
+        profiler.setID("prof");
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        profiler.init(new PrintStream(header));
+        String[] columns = header.toString().split("\t");
+        assertEquals(11, columns.length);
+        assertEquals("prof.movePrior.share", columns[2]);
+        assertEquals("prof.slowestBlocks", columns[10]);
+
+        for (int i=0; i<4; i++)
+            movePrior.calculateLogP();
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        profiler.log(2, new PrintStream(line));
+        String[] values = line.toString().split("\t", -1);
+        assertEquals(2.0, Double.parseDouble(values[3]), EPS);  // movePrior calls per sample
+        assertEquals(0.0, Double.parseDouble(values[7]), EPS);  // no likelihood calls
+        assertEquals("", values[10]);                           // no blocks with likelihoods
+        assertEquals(4, movePrior.getProfileTimer().getCalls());
+    }
+
+}
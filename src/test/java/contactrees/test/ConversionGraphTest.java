@@ -7,14 +7,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 import javax.naming.directory.InvalidAttributesException;
 
 import org.junit.Test;
 
 import beast.base.evolution.tree.Node;
+import contactrees.ACGArrays;
 import contactrees.Block;
+import contactrees.CFEventList;
 import contactrees.Conversion;
 
 
@@ -73,6 +77,122 @@ public class  ConversionGraphTest extends ContactreesTest {
 		}
 	}
 
+	@Test
+	public void testJournaledRestore() {
+		String newickBefore, newickAfter;
+		acg.setJournaledStore(true, true);
+
+		for (ModificationType mod : ModificationType.values()) {
+			acg.store();
+			newickBefore = acgLogger.getExtendedNewick();
+
+			// Move an existing conversion and add/remove another one
+			Conversion conv = acg.getConversions().get(1);
+			conv.setHeight(0.75);
+			try {
+				acgModification(mod);
+			} catch (InvalidAttributesException e) {
+				assert false : "This should not happen (acg should not be empty here).";
+			}
+
+			newickAfter = acgLogger.getExtendedNewick();
+			assertFalse(newickBefore.equals(newickAfter));
+
+			// Restore (validated against the full copy inside ConversionGraph)
+			acg.restore();
+			for (Block b : blockSet) {
+				b.restore();
+			}
+
+			newickAfter = acgLogger.getExtendedNewick();
+			assertTrue(newickBefore.equals(newickAfter));
+			assertEquals(0.5, acg.getConversions().get(1).getHeight(), EPS);
+			assertFalse(acg.isInvalid());
+		}
+	}
+
+	@Test
+	public void testArraysView() {
+		for (ModificationType mod : ModificationType.values()) {
+			acg.store();
+			assertArraysMatch(acg.getArrays());
+			int convCountBefore = acg.getConvCount();
+
+			try {
+				acgModification(mod);
+			} catch (InvalidAttributesException e) {
+				assert false : "This should not happen (acg should not be empty here).";
+			}
+			assertArraysMatch(acg.getArrays());
+
+			acg.restore();
+			for (Block b : blockSet) {
+				b.restore();
+			}
+			assertEquals(convCountBefore, acg.getArrays().getConvCount());
+			assertArraysMatch(acg.getArrays());
+		}
+	}
+
+	private void assertArraysMatch(ACGArrays arrays) {
+		assertEquals(acg.getNodeCount(), arrays.getNodeCount());
+		assertEquals(acg.getRoot().getNr(), arrays.getRootNr());
+		for (Node node : acg.getNodesAsArray()) {
+			int nr = node.getNr();
+			assertEquals(node.getHeight(), arrays.getHeight(nr), 0.0);
+			assertEquals(node.isRoot() ? -1 : node.getParent().getNr(), arrays.getParent(nr));
+			assertEquals(node.isLeaf() ? -1 : node.getChild(0).getNr(), arrays.getLeft(nr));
+		}
+
+		assertEquals(acg.getConvCount(), arrays.getConvCount());
+		double prevHeight = Double.NEGATIVE_INFINITY;
+		for (int slot=0; slot<arrays.getConvCount(); slot++) {
+			Conversion conv = acg.getConversions().get(arrays.getConvID(slot));
+			assertEquals(conv.getNode1().getNr(), arrays.getConvNode1(slot));
+			assertEquals(conv.getNode2().getNr(), arrays.getConvNode2(slot));
+			assertEquals(conv.getHeight(), arrays.getConvHeight(slot), 0.0);
+
+			assertTrue(arrays.getSortedConvHeights()[slot] >= prevHeight);
+			prevHeight = arrays.getSortedConvHeights()[slot];
+		}
+	}
+
+	@Test
+	public void testCFEventOrder() {
+		assertEventsSorted(acg2.getCFEventList());
+
+		// Zero-length branch: an internal node at the height of its parent
+		for (Node node : acg2.getNodesAsArray()) {
+			if (!node.isLeaf() && !node.isRoot()) {
+				node.setHeight(node.getParent().getHeight());
+				break;
+			}
+		}
+		acg2.makeDerivedStateDirty();
+		assertEventsSorted(acg2.getCFEventList());
+	}
+
+	private void assertEventsSorted(CFEventList cfEventList) {
+		List<CFEventList.Event> events = cfEventList.getCFEvents();
+		assertEquals(acg2.getNodeCount(), events.size());
+
+		int k = 0;
+		HashSet<Node> seen = new HashSet<>();
+		for (int i=0; i<events.size(); i++) {
+			CFEventList.Event event = events.get(i);
+			if (i > 0)
+				assertTrue(events.get(i-1).getHeight() <= event.getHeight());
+			for (Node c : event.getNode().getChildren())
+				assertTrue(seen.contains(c));
+			seen.add(event.getNode());
+
+			k += event.getType() == CFEventList.EventType.SAMPLE ? 1 : -1;
+			assertEquals(k, event.getLineageCount());
+			assertEquals(event.getHeight(), event.getNode().getHeight(), 0.0);
+		}
+		assertEquals(1, k);
+	}
+
 	public enum ModificationType {ADD_CONV, REMOVE_CONV}
 
 	public void acgModification (ModificationType modification) throws InvalidAttributesException {
@@ -89,6 +209,31 @@ public class  ConversionGraphTest extends ContactreesTest {
 		}
 	}
 
+	@Test
+	public void testMoveCount() {
+		Block block1 = blockSet.get(1);
+		Block block2 = blockSet.get(2);
+
+		block1.addMove(conv1);
+		block1.addMove(conv2);
+		block2.addMove(conv2);
+		assertEquals(3, blockSet.countMoves());
+
+		block1.removeMove(conv1);
+		block1.removeMove(conv1);
+		assertEquals(2, blockSet.countMoves());
+
+		// Restore swaps in the (empty) stored moves
+		block1.restore();
+		assertEquals(1, blockSet.countMoves());
+
+		block2.removeAllMoves();
+		assertEquals(0, blockSet.countMoves());
+
+		block2.assignFrom(block1.copy());
+		assertEquals(0, blockSet.countMoves());
+	}
+
 	@Test
 	public void TestCFLength() {
 		double height = acg.getRoot().getHeight();;
@@ -110,12 +255,41 @@ public class  ConversionGraphTest extends ContactreesTest {
 	}
 
 
+	@Test
+	public void testIntervalVolumes() {
+		CFEventList cfEventList = acg.getCFEventList();
+
+		// Intervals: [0, 1] with 3 lineages (index 2) and [1, 2.5] with 2 lineages (index 3)
+		assertEquals(9.0, cfEventList.getTotalIntervalVolume(true), EPS);
+		assertEquals(6.0, cfEventList.getTotalIntervalVolume(false), EPS);
+
+		assertEquals(2, cfEventList.getIntervalIndexAtVolume(0.0, true));
+		assertEquals(2, cfEventList.getIntervalIndexAtVolume(5.9, true));
+		assertEquals(3, cfEventList.getIntervalIndexAtVolume(6.0, true));
+		assertEquals(3, cfEventList.getIntervalIndexAtVolume(9.0, true));
+		assertEquals(2, cfEventList.getIntervalIndexAtVolume(2.9, false));
+		assertEquals(3, cfEventList.getIntervalIndexAtVolume(3.0, false));
+
+		assertEquals(2, cfEventList.getIntervalIndexAtHeight(0.0));
+		assertEquals(2, cfEventList.getIntervalIndexAtHeight(0.5));
+		assertEquals(3, cfEventList.getIntervalIndexAtHeight(1.0));
+		assertEquals(3, cfEventList.getIntervalIndexAtHeight(2.75));
+
+		// Editing conversions keeps the cached values, editing the clonal frame updates them
+		acg.removeConversion(conv1);
+		assertEquals(9.0, acg.getClonalFramePairedLength(), EPS);
+		root.setHeight(3.5);
+		acg.makeDerivedStateDirty();
+		assertEquals(8.0, acg.getClonalFrameLength(), EPS);
+		assertEquals(11.0, acg.getClonalFramePairedLength(), EPS);
+	}
+
 	@Test
 	public void TestLineagesAtHeight() {
-		HashSet<Node> lineages;
+		List<Node> lineages = new ArrayList<>();
 
 		assertEquals(3, acg.countLineagesAtHeight(0.5));
-		lineages = acg.getLineagesAtHeight(0.5);
+		acg.getLineagesAtHeight(0.5, lineages);
 		assertEquals(3, lineages.size());
 		assertTrue(lineages.contains(node1));
 		assertTrue(lineages.contains(node2));
@@ -123,13 +297,13 @@ public class  ConversionGraphTest extends ContactreesTest {
 		assertFalse(lineages.contains(node4));
 
 		assertEquals(2, acg.countLineagesAtHeight(1.5));
-		lineages = acg.getLineagesAtHeight(1.5);
+		acg.getLineagesAtHeight(1.5, lineages);
 		assertEquals(2, lineages.size());
 		assertTrue(lineages.contains(node4));
 		assertTrue(lineages.contains(node3));
 
 		assertEquals(1, acg.countLineagesAtHeight(2.75));
-		lineages = acg.getLineagesAtHeight(2.75);
+		acg.getLineagesAtHeight(2.75, lineages);
 		assertEquals(1, lineages.size());
 		assertTrue(lineages.contains(root));
 
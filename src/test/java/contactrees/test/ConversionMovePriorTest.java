@@ -0,0 +1,68 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import beast.base.spec.domain.UnitInterval;
+import beast.base.spec.inference.parameter.RealScalarParam;
+import contactrees.Block;
+import contactrees.model.ConversionMovePrior;
+
+/**
+ * Test the cached logP and the running move count used by the ConversionMovePrior.
+ *
+ * @author Nico Neureiter
+ */
+public class ConversionMovePriorTest extends ContactreesTest {
+
+    @Test
+    public void testRestore() {
+        RealScalarParam<UnitInterval> pMove = new RealScalarParam<>(0.2, UnitInterval.INSTANCE);
+        ConversionMovePrior prior = new ConversionMovePrior();
+        prior.initByName("network", acg, "blockSet", blockSet, "pMove", pMove);
+
+        double logP0 = prior.calculateLogP();
+        prior.store();
+
+        // Rejected proposal: one additional move
+        blockSet.get(0).addMove(conv1);
+        double logP1 = prior.calculateLogP();
+        assertTrue(logP1 != logP0);
+        blockSet.get(0).removeMove(conv1);
+        prior.restore();
+        assertEquals(logP0, prior.getCurrentLogP(), EPS);
+
+        // A later proposal with the same number of moves must not reuse the restored logP
+        blockSet.get(1).addMove(conv2);
+        assertEquals(logP1, prior.calculateLogP(), EPS);
+    }
+
+    @Test
+    public void testConcurrentMoveCount() throws InterruptedException {
+        // Blocks are edited concurrently by the parallel Gibbs path of the BorrowingOperator
+        List<Thread> threads = new ArrayList<>();
+        for (Block block : blockSet) {
+            Thread thread = new Thread(() -> {
+                for (int i=0; i<10000; i++) {
+                    if (block.isAffected(conv1))
+                        block.removeMove(conv1);
+                    else
+                        block.addMove(conv1);
+                }
+                block.addMove(conv2);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(N_BLOCKS, blockSet.countMoves());
+    }
+
+}
@@ -1,7 +1,11 @@
 package contactrees.test;
 
+import static org.junit.Assert.assertEquals;
+
 import org.junit.Test;
 
+import beast.base.evolution.tree.TreeDistribution;
+import contactrees.model.ACGDistribution;
 import contactrees.model.ConversionPrior;
 import contactrees.util.Util;
 
@@ -29,4 +33,52 @@ public class ConversionPriorTest extends ContactreesTest {
 	protected double poissonLogPDF(double mean, int value) {
 		return value * Math.log(mean) - mean - Util.logFactorial(value);
 	}
+
+	/**
+	 * Tree prior counting its evaluations.
+	 */
+	public static class CountingTreePrior extends TreeDistribution {
+		int calls = 0;
+
+		@Override
+		public double calculateLogP() {
+			calls++;
+			logP = -treeInput.get().getRoot().getHeight();
+			return logP;
+		}
+	}
+
+	@Test
+	public void testACGDistributionCaching() {
+		CountingTreePrior cfModel = new CountingTreePrior();
+		cfModel.initByName("tree", acg);
+		ACGDistribution dist = new ACGDistribution();
+		dist.initByName("network", acg, "cfModel", cfModel, "conversionRate", "0.5");
+
+		double logP = dist.calculateLogP();
+		assertEquals(1, cfModel.calls);
+		assertEquals(logP, dist.calculateLogP(), EPS);
+		assertEquals(1, cfModel.calls);
+
+		// Editing a conversion only updates the contact part
+		conv1.setHeight(0.6);
+		assertEquals(freshLogP(), dist.calculateLogP(), EPS);
+		acg.removeConversion(conv2);
+		assertEquals(freshLogP(), dist.calculateLogP(), EPS);
+		assertEquals(1, cfModel.calls);
+
+		// Editing the clonal frame updates both parts
+		root.setHeight(3.0);
+		acg.makeDerivedStateDirty();
+		assertEquals(freshLogP(), dist.calculateLogP(), EPS);
+		assertEquals(2, cfModel.calls);
+	}
+
+	double freshLogP() {
+		CountingTreePrior cfModel = new CountingTreePrior();
+		cfModel.initByName("tree", acg);
+		ACGDistribution dist = new ACGDistribution();
+		dist.initByName("network", acg, "cfModel", cfModel, "conversionRate", "0.5");
+		return dist.calculateLogP();
+	}
 }
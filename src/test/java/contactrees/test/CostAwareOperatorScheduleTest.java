@@ -0,0 +1,101 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import beast.base.inference.Operator;
+import contactrees.inference.CostAwareOperatorSchedule;
+
+/**
+ * Test the adaptation of the operator weights in the CostAwareOperatorSchedule.
+ *
+ * @author Nico Neureiter
+ */
+public class CostAwareOperatorScheduleTest {
+
+    static class DummyOperator extends Operator {
+        @Override
+        public void initAndValidate() {}
+
+        @Override
+        public double proposal() {
+            return 0.0;
+        }
+    }
+
+    /** Gives the test access to the book-keeping of the schedule. */
+    static class TestSchedule extends CostAwareOperatorSchedule {
+        void step(int i, double nanos, double sqJump) {
+            recordStep(i, nanos, sqJump);
+        }
+
+        void adapt() {
+            adaptWeights();
+        }
+    }
+
+    Operator operator(String id, double weight) {
+        Operator op = new DummyOperator();
+        op.initByName("weight", weight);
+        op.setID(id);
+        return op;
+    }
+
+    @Test
+    public void testAdaptWeights() {
+        TestSchedule schedule = new TestSchedule();
+        schedule.initByName("learningRate", 1.0, "minWeightFactor", 0.1, "maxWeightFactor", 10.0);
+        schedule.addOperator(operator("gibbs", 1.0));
+        schedule.addOperator(operator("cf", 1.0));
+        schedule.addOperator(operator("unused", 1.0));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        schedule.init(new PrintStream(bytes));
+        assertEquals("weight.gibbs\tweight.cf\tweight.unused\t", bytes.toString());
+
+        // Without any change of the posterior the weights are not adapted
+        for (int k=0; k<100; k++)
+            schedule.step(0, 1000, 0.0);
+        schedule.adapt();
+        assertEquals(1.0, schedule.getAdaptedWeight(0), 1E-12);
+
+        // The cheap Gibbs operator is always accepted, but hardly changes the
+        // posterior. The expensive clonal frame operator moves far.
+        for (int k=0; k<100; k++) {
+            schedule.step(0, 1000, 1E-4);
+            schedule.step(1, 10000, 1.0);
+        }
+        schedule.adapt();
+
+        assertTrue(schedule.getAdaptedWeight(1) > schedule.getAdaptedWeight(0));
+        assertEquals(0.1, schedule.getAdaptedWeight(0), 1E-12);
+
+        // Operators without steps keep their original weight
+        assertEquals(1.0, schedule.getAdaptedWeight(2), 1E-12);
+    }
+
+    @Test
+    public void testWeightBounds() {
+        TestSchedule schedule = new TestSchedule();
+        schedule.initByName("learningRate", 1.0, "minWeightFactor", 0.1, "maxWeightFactor", 10.0);
+        schedule.addOperator(operator("gibbs", 10.0));
+        schedule.addOperator(operator("cf", 0.1));
+        schedule.init(new PrintStream(new ByteArrayOutputStream()));
+
+        for (int k=0; k<100; k++) {
+            schedule.step(0, 1000, 1E-4);
+            schedule.step(1, 10000, 1.0);
+        }
+        schedule.adapt();
+
+        // The clonal frame operator is limited to maxWeightFactor times its original weight
+        assertEquals(1.0, schedule.getAdaptedWeight(1), 1E-12);
+        assertTrue(schedule.getAdaptedWeight(0) >= 1.0);
+    }
+
+}
@@ -0,0 +1,356 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.core.Input;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.Distribution;
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.spec.domain.Real;
+import beast.base.spec.domain.UnitInterval;
+import beast.base.spec.inference.parameter.RealScalarParam;
+import beast.base.util.Randomizer;
+import contactrees.Block;
+import contactrees.BlockSet;
+import contactrees.Conversion;
+import contactrees.ConversionGraph;
+import contactrees.inference.CoupledACGMCMC;
+import contactrees.inference.HeatedACGChain;
+import contactrees.model.ConversionMovePrior;
+import contactrees.operators.GibbsOperator;
+
+/**
+ * Test the swap proposals and the exchange of states (parameters, ACG and
+ * blocks) between the chains of a CoupledACGMCMC run.
+ *
+ * @author Nico Neureiter
+ */
+public class CoupledACGMCMCTest extends ContactreesTest {
+
+    /** Standard normal density of a single parameter. */
+    public static class StandardNormal extends Distribution {
+        public Input<RealScalarParam<Real>> xInput = new Input<>("x", "The parameter.", Input.Validate.REQUIRED);
+
+        @Override
+        public double calculateLogP() {
+            double x = xInput.get().get();
+            logP = -0.5 * x * x;
+            return logP;
+        }
+
+        @Override
+        public List<String> getArguments() {
+            List<String> arguments = new ArrayList<>();
+            arguments.add(xInput.get().getID());
+            return arguments;
+        }
+
+        @Override
+        public List<String> getConditions() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void sample(State state, Random random) {}
+    }
+
+    /** Symmetric uniform random walk on a single parameter. */
+    public static class RandomWalk extends Operator {
+        public Input<RealScalarParam<Real>> xInput = new Input<>("x", "The parameter.", Input.Validate.REQUIRED);
+
+        @Override
+        public void initAndValidate() {}
+
+        @Override
+        public double proposal() {
+            RealScalarParam<Real> x = xInput.get();
+            x.set(x.get() + 2.0 * Randomizer.nextDouble() - 1.0);
+            return 0.0;
+        }
+    }
+
+    /**
+     * Edits the clonal frame, a conversion and a block, but is always rejected,
+     * so the chain has to restore the state.
+     */
+    public static class RejectedEdit extends Operator {
+        public Input<ConversionGraph> acgInput = new Input<>("acg", "The conversion graph.", Input.Validate.REQUIRED);
+        public Input<Block> blockInput = new Input<>("block", "The block.", Input.Validate.REQUIRED);
+
+        @Override
+        public void initAndValidate() {}
+
+        @Override
+        public double proposal() {
+            ConversionGraph acg = acgInput.get();
+            Block block = blockInput.get();
+            Conversion conv = acg.getConversions().getRandomConversion();
+
+            acg.getRoot().setHeight(1.5 * acg.getRoot().getHeight());
+            conv.setHeight(0.9 * conv.getHeight());
+            if (block.isAffected(conv))
+                block.removeMove(conv);
+            else
+                block.addMove(conv);
+
+            return Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /** Gibbs operator without a Hastings ratio (not allowed in heated chains). */
+    public static class UntemperedGibbs extends RandomWalk implements GibbsOperator {
+        @Override
+        public boolean isTemperingAdjusted() {
+            return false;
+        }
+    }
+
+    /** Gives the test access to the chains and the swap proposals. */
+    static class TestMCMCMC extends CoupledACGMCMC {
+        HeatedACGChain getChain(int i) {
+            return chains.get(i);
+        }
+
+        boolean swap() {
+            return proposeSwap(0, null);
+        }
+    }
+
+    List<RealScalarParam<Real>> params = new ArrayList<>();
+
+    MCMC chain(int i, double x0) {
+        return chain(i, x0, new RandomWalk());
+    }
+
+    MCMC chain(int i, double x0, RandomWalk operator) {
+        RealScalarParam<Real> x = new RealScalarParam<>(x0, Real.INSTANCE);
+        x.setID("x." + i);
+        params.add(x);
+
+        State state = new State();
+        state.initByName("stateNode", x);
+
+        StandardNormal prior = new StandardNormal();
+        prior.initByName("x", x);
+
+        operator.initByName("x", x, "weight", 1.0);
+
+        Logger logger = new Logger();
+        logger.initByName("log", x, "logEvery", 1000);
+
+        MCMC mcmc = new MCMC();
+        mcmc.initByName(
+                "chainLength", 1L,
+                "state", state,
+                "distribution", prior,
+                "operator", operator,
+                "logger", logger);
+        mcmc.setID("chain." + i);
+        return mcmc;
+    }
+
+    /**
+     * @return a chain on the ACG and the blocks, with the ConversionMovePrior
+     * as posterior and an operator which is always rejected.
+     */
+    MCMC acgChain(int i, ConversionGraph acg, BlockSet blockSet) {
+        acg.setID("acg." + i);
+        List<StateNode> stateNodes = new ArrayList<>();
+        stateNodes.add(acg);
+        for (Block block : blockSet.getBlocks()) {
+            block.setID("block." + i + "." + stateNodes.size());
+            stateNodes.add(block);
+        }
+
+        State state = new State();
+        state.initByName("stateNode", stateNodes);
+
+        ConversionMovePrior prior = new ConversionMovePrior();
+        prior.initByName("network", acg, "blockSet", blockSet,
+                "pMove", new RealScalarParam<>(0.2, UnitInterval.INSTANCE));
+
+        RejectedEdit operator = new RejectedEdit();
+        operator.initByName("acg", acg, "block", blockSet.get(0), "weight", 1.0);
+
+        Logger logger = new Logger();
+        logger.initByName("log", acg, "logEvery", 1000);
+
+        MCMC mcmc = new MCMC();
+        mcmc.initByName(
+                "chainLength", 1L,
+                "state", state,
+                "distribution", prior,
+                "operator", operator,
+                "logger", logger);
+        mcmc.setID("chain." + i);
+        return mcmc;
+    }
+
+    List<List<Integer>> getMoves(BlockSet blockSet) {
+        List<List<Integer>> moves = new ArrayList<>();
+        for (Block block : blockSet.getBlocks())
+            moves.add(new ArrayList<>(block.getConversionIDs()));
+        return moves;
+    }
+
+    TestMCMCMC coupledMCMC(double x0, double x1) {
+        TestMCMCMC coupled = new TestMCMCMC();
+        coupled.initByName(
+                "chain", chain(0, x0),
+                "chain", chain(1, x1),
+                "chainLength", 1L,
+                "deltaTemperature", 1.0);
+        coupled.getChain(0).initialise(1);
+        coupled.getChain(1).initialise(1);
+        return coupled;
+    }
+
+    @Test
+    public void testSwapState() {
+        TestMCMCMC coupled = coupledMCMC(0.5, 2.0);
+        HeatedACGChain cold = coupled.getChain(0);
+        HeatedACGChain hot = coupled.getChain(1);
+        assertEquals(1.0, cold.getBeta(), 1E-12);
+        assertEquals(0.5, hot.getBeta(), 1E-12);
+        assertEquals(-0.125, cold.getLogP(), 1E-12);
+        assertEquals(-2.0, hot.getLogP(), 1E-12);
+
+        cold.swapStateWith(hot);
+
+        // The values are exchanged, the state nodes keep their IDs
+        assertEquals(2.0, params.get(0).get(), 1E-12);
+        assertEquals(0.5, params.get(1).get(), 1E-12);
+        assertEquals("x.0", params.get(0).getID());
+        assertEquals("x.1", params.get(1).getID());
+        assertEquals(-2.0, cold.getLogP(), 1E-12);
+        assertEquals(-0.125, hot.getLogP(), 1E-12);
+
+        // Moving to a higher posterior in the cold chain is always accepted
+        assertTrue(coupled.swap());
+        assertEquals(0.5, params.get(0).get(), 1E-12);
+        assertEquals(2.0, params.get(1).get(), 1E-12);
+        assertEquals(1, coupled.getSwapsProposed(0));
+        assertEquals(1, coupled.getSwapsAccepted(0));
+    }
+
+    @Test
+    public void testSampleFromPrior() {
+        Randomizer.setSeed(1);
+        TestMCMCMC coupled = coupledMCMC(0.0, 0.0);
+        HeatedACGChain cold = coupled.getChain(0);
+        HeatedACGChain hot = coupled.getChain(1);
+
+        int nSteps = 200000;
+        int swapInterval = 10;
+        long accepted = 0;
+        double sumCold = 0, sumSqCold = 0, sumSqHot = 0;
+        for (int i=0; i<nSteps; i++) {
+            cold.run(1);
+            hot.run(1);
+            if (i % swapInterval == 0 && coupled.swap())
+                accepted++;
+
+            double xCold = params.get(0).get();
+            double xHot = params.get(1).get();
+            sumCold += xCold;
+            sumSqCold += xCold * xCold;
+            sumSqHot += xHot * xHot;
+
+            // The cached posterior always matches the current state
+            assertEquals(-0.5 * xCold * xCold, cold.getLogP(), 1E-10);
+        }
+
+        // Swap bookkeeping
+        assertEquals(nSteps / swapInterval, coupled.getSwapsProposed(0));
+        assertEquals(accepted, coupled.getSwapsAccepted(0));
+        assertTrue(accepted > 0 && accepted < coupled.getSwapsProposed(0));
+        assertEquals(nSteps, cold.getSample());
+
+        // The cold chain samples N(0, 1), the heated chain N(0, 1/beta)
+        assertEquals(0.0, sumCold / nSteps, 0.05);
+        assertEquals(1.0, sumSqCold / nSteps, 0.05);
+        assertEquals(2.0, sumSqHot / nSteps, 0.15);
+    }
+
+    @Test
+    public void testSwapACGState() {
+        // Chain 0 uses the ACG of the fixture, chain 1 a different clonal frame
+        // with a single conversion
+        BlockSet blockSet0 = blockSet;
+        blockSet0.get(0).addMove(conv1);
+        blockSet0.get(3).addMove(conv1);
+        blockSet0.get(3).addMove(conv2);
+
+        ConversionGraph acg1 = getACGFromNewick("((1:1.0,3:1.0)4:1.0,2:2.0)5:0.5;");
+        Node root1 = acg1.getRoot();
+        Conversion conv1_1 = new Conversion(root1.getLeft().getLeft(), root1.getRight(), 0.7, acg1, 1);
+        acg1.addConversion(conv1_1);
+        BlockSet blockSet1 = getBlockSet(N_BLOCKS, acg1);
+        blockSet1.get(5).addMove(conv1_1);
+
+        String newick0 = acg.getExtendedNewick();
+        String newick1 = acg1.getExtendedNewick();
+        List<List<Integer>> moves0 = getMoves(blockSet0);
+        List<List<Integer>> moves1 = getMoves(blockSet1);
+
+        TestMCMCMC coupled = new TestMCMCMC();
+        coupled.initByName(
+                "chain", acgChain(0, acg, blockSet0),
+                "chain", acgChain(1, acg1, blockSet1),
+                "chainLength", 1L,
+                "deltaTemperature", 1.0);
+        HeatedACGChain cold = coupled.getChain(0);
+        HeatedACGChain hot = coupled.getChain(1);
+        cold.initialise(1);
+        hot.initialise(1);
+        double logP0 = cold.getLogP();
+        double logP1 = hot.getLogP();
+
+        cold.swapStateWith(hot);
+
+        // The clonal frames, conversions and moves are exchanged, the IDs kept
+        assertEquals(newick1, acg.getExtendedNewick());
+        assertEquals(newick0, acg1.getExtendedNewick());
+        assertEquals(moves1, getMoves(blockSet0));
+        assertEquals(moves0, getMoves(blockSet1));
+        assertEquals(3, blockSet1.countMoves());
+        assertEquals(1, blockSet0.countMoves());
+        assertEquals("acg.0", acg.getID());
+        assertEquals("acg.1", acg1.getID());
+        assertFalse(acg.isInvalid());
+        assertFalse(acg1.isInvalid());
+        assertEquals(logP1, cold.getLogP(), EPS);
+        assertEquals(logP0, hot.getLogP(), EPS);
+
+        // Rejected steps restore the swapped state (not the state before the swap)
+        cold.run(5);
+        hot.run(5);
+        assertEquals(newick1, acg.getExtendedNewick());
+        assertEquals(newick0, acg1.getExtendedNewick());
+        assertEquals(moves1, getMoves(blockSet0));
+        assertEquals(moves0, getMoves(blockSet1));
+        assertEquals(logP1, cold.getLogP(), EPS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectUntemperedGibbs() {
+        TestMCMCMC coupled = new TestMCMCMC();
+        coupled.initByName(
+                "chain", chain(0, 0.0, new UntemperedGibbs()),
+                "chain", chain(1, 0.0, new UntemperedGibbs()),
+                "chainLength", 1L);
+    }
+
+}
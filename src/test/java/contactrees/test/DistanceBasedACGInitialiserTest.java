@@ -0,0 +1,185 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.datatype.Nucleotide;
+import beast.base.evolution.tree.Node;
+import beast.base.spec.evolution.likelihood.TreeLikelihood;
+import beast.base.spec.evolution.sitemodel.SiteModel;
+import beast.base.spec.evolution.substitutionmodel.JukesCantor;
+import beast.base.util.Randomizer;
+import contactrees.Block;
+import contactrees.Conversion;
+import contactrees.DistanceBasedACGInitialiser;
+import contactrees.MarginalTree;
+
+/**
+ * Test the UPGMA clonal frame and the greedy conversions of the
+ * DistanceBasedACGInitialiser on a small synthetic data set.
+ *
+ * @author Nico Neureiter
+ */
+public class DistanceBasedACGInitialiserTest extends ContactreesTest {
+
+    static final String NUCLEOTIDES = "ACGT";
+    static final int N_SITES = 60;
+
+    /**
+     * @return the sequence with the nucleotides at the sites [from, to) replaced.
+     */
+    static String mutate(String sequence, int from, int to) {
+        StringBuilder mutated = new StringBuilder(sequence);
+        for (int s=from; s<to; s++) {
+            int state = NUCLEOTIDES.indexOf(sequence.charAt(s));
+            mutated.setCharAt(s, NUCLEOTIDES.charAt((state + 1) % 4));
+        }
+        return mutated.toString();
+    }
+
+    static Alignment alignment(String... sequences) {
+        List<Sequence> seqs = new ArrayList<>();
+        for (int i=0; i<sequences.length; i++)
+            seqs.add(new Sequence(String.valueOf(i+1), sequences[i]));
+
+        Alignment data = new Alignment();
+        data.initByName("sequence", seqs, "userDataType", new Nucleotide());
+        return data;
+    }
+
+    /**
+     * Tree likelihoods for the blocks of blockSet2. All blocks support the
+     * clonal frame ((1,2),(3,4)),5, except for block 0 in which taxon 1
+     * carries the sequence of taxon 5.
+     */
+    List<TreeLikelihood> getTreeLikelihoods() {
+        Random random = new Random(1);
+        StringBuilder base = new StringBuilder();
+        for (int s=0; s<N_SITES; s++)
+            base.append(NUCLEOTIDES.charAt(random.nextInt(4)));
+
+        String s1 = base.toString();
+        String s2 = mutate(s1, 0, 2);
+        String s3 = mutate(s1, 10, 22);
+        String s4 = mutate(s3, 22, 24);
+        String s5 = mutate(s1, 30, 54);
+        Alignment concordant = alignment(s1, s2, s3, s4, s5);
+        Alignment borrowed = alignment(s5, s2, s3, s4, s5);
+
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("substModel", jc);
+
+        List<TreeLikelihood> treeLHs = new ArrayList<>();
+        for (Block block : blockSet2) {
+            MarginalTree marginalTree = new MarginalTree();
+            marginalTree.initByName("network", acg2, "block", block);
+            TreeLikelihood treeLH = new TreeLikelihood();
+            treeLH.initByName(
+                    "data", treeLHs.isEmpty() ? borrowed : concordant,
+                    "tree", marginalTree,
+                    "siteModel", siteModel);
+            treeLHs.add(treeLH);
+        }
+        return treeLHs;
+    }
+
+    DistanceBasedACGInitialiser getInitialiser(List<TreeLikelihood> treeLHs, int maxConversions) {
+        DistanceBasedACGInitialiser initialiser = new DistanceBasedACGInitialiser();
+        initialiser.initByName(
+                "network", acg2,
+                "blockSet", blockSet2,
+                "treeLikelihood", treeLHs,
+                "rootHeight", 1.0,
+                "maxConversions", maxConversions,
+                "candidates", 200);
+        return initialiser;
+    }
+
+    double getLogLikelihood(List<TreeLikelihood> treeLHs) {
+        double logLH = 0.0;
+        for (TreeLikelihood treeLH : treeLHs) {
+            MarginalTree marginalTree = (MarginalTree) treeLH.treeInput.get();
+            marginalTree.recalculate();
+            marginalTree.setEverythingDirty(true);
+            logLH += treeLH.calculateLogP();
+        }
+        return logLH;
+    }
+
+    Map<String, Node> getLeavesByID() {
+        Map<String, Node> leaves = new HashMap<>();
+        for (Node leaf : acg2.getExternalNodes())
+            leaves.put(leaf.getID(), leaf);
+        return leaves;
+    }
+
+    @Test
+    public void testClonalFrame() {
+        List<TreeLikelihood> treeLHs = getTreeLikelihoods();
+        getInitialiser(treeLHs, 0).initStateNodes();
+
+        // The conversions and moves of the fixture are removed
+        assertFalse(acg2.isInvalid());
+        assertEquals(0, acg2.getConvCount());
+        assertEquals(0, blockSet2.countMoves());
+
+        // UPGMA topology ((1,2),(3,4)),5 scaled to the root height
+        Map<String, Node> leaves = getLeavesByID();
+        assertEquals(5, leaves.size());
+        for (int i=1; i<=5; i++)
+            assertEquals(0.0, leaves.get(String.valueOf(i)).getHeight(), EPS);
+        assertEquals(1.0, acg2.getRoot().getHeight(), EPS);
+
+        Node parent12 = leaves.get("1").getParent();
+        Node parent34 = leaves.get("3").getParent();
+        assertTrue(parent12 == leaves.get("2").getParent());
+        assertTrue(parent34 == leaves.get("4").getParent());
+        assertTrue(parent12.getParent() == parent34.getParent());
+        assertTrue(leaves.get("5").getParent() == acg2.getRoot());
+
+        // (3,4) is closer than (1,2), which is inflated by the borrowing in block 0
+        assertTrue(parent34.getHeight() < parent12.getHeight());
+        assertTrue(parent12.getHeight() < parent12.getParent().getHeight());
+    }
+
+    @Test
+    public void testGreedyConversions() {
+        Randomizer.setSeed(1);
+        List<TreeLikelihood> treeLHs = getTreeLikelihoods();
+
+        getInitialiser(treeLHs, 0).initStateNodes();
+        double logLHClonalFrame = getLogLikelihood(treeLHs);
+
+        getInitialiser(treeLHs, 5).initStateNodes();
+        double logLHGreedy = getLogLikelihood(treeLHs);
+
+        assertFalse(acg2.isInvalid());
+        assertTrue(acg2.getConvCount() >= 1);
+        assertTrue(acg2.getConvCount() <= 5);
+        assertTrue(logLHGreedy > logLHClonalFrame + 2.0);
+
+        // Block 0 borrows from the lineage of taxon 5 (the only one carrying its sequence)
+        Node leaf5 = getLeavesByID().get("5");
+        boolean borrowsFrom5 = false;
+        for (int convID : blockSet2.get(0).getConversionIDs()) {
+            Conversion conv = acg2.getConversions().get(convID);
+            if (conv.getNode2() == leaf5)
+                borrowsFrom5 = true;
+        }
+        assertTrue(borrowsFrom5);
+    }
+
+}
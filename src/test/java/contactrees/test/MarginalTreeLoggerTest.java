@@ -0,0 +1,53 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import contactrees.MarginalTreeLogger;
+
+/**
+ * Test the grouping of blocks by marginal tree in the MarginalTreeLogger.
+ *
+ * @author Nico Neureiter
+ */
+public class MarginalTreeLoggerTest extends ContactreesTest {
+
+    @Test
+    public void testGrouping() {
+        for (int i=0; i<N_BLOCKS; i++)
+            blockSet.get(i).setID("b" + i);
+        blockSet.get(0).addMove(conv1);
+        blockSet.get(1).addMove(conv1);
+        blockSet.get(2).addMove(conv2);
+
+        MarginalTreeLogger logger = new MarginalTreeLogger();
+        logger.initByName("network", acg, "blockSet", blockSet);
+
+        Map<String, List<Integer>> groups = logger.groupBlocksByTree();
+        List<List<Integer>> blockGroups = new ArrayList<>(groups.values());
+        assertEquals(3, blockGroups.size());
+        assertEquals(Arrays.asList(0, 1), blockGroups.get(0));
+        assertEquals(Arrays.asList(2), blockGroups.get(1));
+        assertEquals(Arrays.asList(3, 4, 5, 6, 7), blockGroups.get(2));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        logger.log(5, new PrintStream(bytes));
+        String[] lines = bytes.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("tree STATE_5_0 = [&R] [&blocks=\"{b0,b1}\"] "));
+        assertTrue(lines[2].startsWith("tree STATE_5_2 = [&R] [&blocks=\"{b3,b4,b5,b6,b7}\"] "));
+
+        // Logging must not change the blocks of the model
+        assertEquals(3, blockSet.countMoves());
+    }
+
+}
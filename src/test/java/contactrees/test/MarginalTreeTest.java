@@ -191,6 +191,51 @@ public class MarginalTreeTest extends ContactreesTest {
         }
     }
 
+    @Test
+    public void testCompact() throws Exception {
+        String[] correctNewickStrings = {
+            "(((1:1.0,2:1.0)6:1.5,3:2.5)8:1.0,(4:1.5,5:1.5)7:2.0)9:0.5;",  // No conv
+            "((1:2.5,(2:0.5,3:0.5)6:2.0)8:1.0,(4:1.5,5:1.5)7:2.0)9:0.5",  // Conv 1
+            "(((1:1.0,2:1.0)6:0.5,3:1.5)8:2.0,(4:1.5,5:1.5)7:2.0)9:0.5",  // Conv 2
+            "((1:1.0,2:1.0)6:2.5,((3:1.0,4:1.0)8:0.5,5:1.5)7:2.0)9:0.5",  // Conv 3
+            "((1:1.5,(2:0.5,3:0.5)6:1.0)8:2.0,(4:1.5,5:1.5)7:2.0)9:0.5",  // Conv 1 & 2
+            "(1:3.5,(((2:0.5,3:0.5)6:0.5,4:1.0)8:0.5,5:1.5)7:2.0)9:0.5",  // Conv 1 & 3
+            "((1:1.0,2:1.0)6:2.5,((3:1.0,4:1.0)8:0.5,5:1.5)7:2.0)9:0.5",  // Conv 2 & 3
+            "(1:3.5,(((2:0.5,3:0.5)6:0.5,4:1.0)8:0.5,5:1.5)7:2.0)9:0.5",  // Conv 1 & 2 & 3
+        };
+
+        List<Block> blocks = blockSet2.getBlocks();
+        List<MarginalTree> marginalTrees = new ArrayList<>();
+        for (int b=0; b<N_BLOCKS; b++) {
+            MarginalTree marginalTree = new MarginalTree();
+            marginalTree.initByName("network", acg2, "block", blocks.get(b), "compact", true);
+            marginalTrees.add(marginalTree);
+        }
+
+        blocks.get(1).addMove(conv2_1);
+        blocks.get(2).addMove(conv2_2);
+        blocks.get(3).addMove(conv2_3);
+        blocks.get(4).addMove(conv2_1);
+        blocks.get(4).addMove(conv2_2);
+        blocks.get(5).addMove(conv2_1);
+        blocks.get(5).addMove(conv2_3);
+        blocks.get(6).addMove(conv2_2);
+        blocks.get(6).addMove(conv2_3);
+        blocks.get(7).addMove(conv2_1);
+        blocks.get(7).addMove(conv2_2);
+        blocks.get(7).addMove(conv2_3);
+
+        for (MarginalTree marginalTree : marginalTrees)
+            marginalTree.requiresRecalculation();
+
+        // All compact trees share the same node objects, which are re-materialised on access
+        for (int b=N_BLOCKS-1; b>=0; b--) {
+            Tree correctTree = new TreeParser(correctNewickStrings[b], false, true, false, 1);
+            assertTrue(treesEquivalent(marginalTrees.get(b), correctTree, 1e-15));
+            equalLikelihood(correctTree, marginalTrees.get(b));
+        }
+    }
+
     @Test
     public void testBranchRates() throws Exception {
         double[] rates = {2., 2., 1., 1.};
@@ -0,0 +1,128 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import beast.base.spec.domain.PositiveReal;
+import beast.base.spec.evolution.branchratemodel.StrictClockModel;
+import beast.base.spec.evolution.sitemodel.SiteModel;
+import beast.base.spec.evolution.substitutionmodel.JukesCantor;
+import beast.base.spec.inference.parameter.RealScalarParam;
+import contactrees.model.SimulatedBlockAlignment;
+
+/**
+ * Test that the SimulatedBlockAlignment is reproducible from its seed, and that
+ * the simulated data reflect the borrowings and the clock rate.
+ *
+ * @author Nico Neureiter
+ */
+public class SimulatedBlockAlignmentTest extends ContactreesTest {
+
+    SimulatedBlockAlignment simulate(int threads, long seed, int sitesPerBlock, Double clockRate) {
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("substModel", jc);
+
+        SimulatedBlockAlignment alignment = new SimulatedBlockAlignment();
+        if (clockRate == null) {
+            alignment.initByName(
+                    "network", acg2,
+                    "blockSet", blockSet2,
+                    "siteModel", siteModel,
+                    "sitesPerBlock", sitesPerBlock,
+                    "threads", threads,
+                    "seed", seed);
+        } else {
+            StrictClockModel clock = new StrictClockModel();
+            clock.initByName("clock.rate", new RealScalarParam<>(clockRate, PositiveReal.INSTANCE));
+            alignment.initByName(
+                    "network", acg2,
+                    "blockSet", blockSet2,
+                    "siteModel", siteModel,
+                    "branchRateModel", clock,
+                    "sitesPerBlock", sitesPerBlock,
+                    "threads", threads,
+                    "seed", seed);
+        }
+        return alignment;
+    }
+
+    List<String> simulate(int threads, long seed) {
+        SimulatedBlockAlignment alignment = simulate(threads, seed, 50, null);
+        List<String> sequences = new ArrayList<>();
+        for (String taxon : alignment.getTaxaNames())
+            sequences.add(taxon + ":" + alignment.getSequenceAsString(taxon));
+        return sequences;
+    }
+
+    /**
+     * @return fraction of the sites of the given block at which the two taxa have the same state.
+     */
+    static double getIdentity(SimulatedBlockAlignment alignment, String taxon1, String taxon2,
+                              int blockIdx, int sitesPerBlock) {
+        String seq1 = alignment.getSequenceAsString(taxon1);
+        String seq2 = alignment.getSequenceAsString(taxon2);
+        int identical = 0;
+        for (int s=blockIdx*sitesPerBlock; s<(blockIdx+1)*sitesPerBlock; s++) {
+            if (seq1.charAt(s) == seq2.charAt(s))
+                identical++;
+        }
+        return (double) identical / sitesPerBlock;
+    }
+
+    @Test
+    public void testThreadIndependence() {
+        blockSet2.get(0).addMove(conv2_1);
+        blockSet2.get(2).addMove(conv2_2);
+        blockSet2.get(2).addMove(conv2_3);
+        blockSet2.get(5).addMove(conv2_3);
+
+        List<String> sequential = simulate(1, 42);
+        assertEquals(acg2.getLeafNodeCount(), sequential.size());
+        assertEquals(N_BLOCKS * 50, sequential.get(0).length() - sequential.get(0).indexOf(':') - 1);
+
+        assertEquals(sequential, simulate(3, 42));
+        assertEquals(sequential, simulate(N_BLOCKS, 42));
+
+        // ... but it does depend on the seed
+        assertNotEquals(sequential, simulate(1, 43));
+    }
+
+    @Test
+    public void testBorrowedBlockMatchesDonor() {
+        // Block 0 is borrowed from the lineage of taxon 3 (donor) into the
+        // lineage of taxon 2 at height 0.5 (instead of coalescing at 2.5)
+        blockSet2.get(0).addMove(conv2_1);
+        String receiver = conv2_1.getNode1().getID();
+        String donor = conv2_1.getNode2().getID();
+
+        int sitesPerBlock = 1000;
+        SimulatedBlockAlignment alignment = simulate(2, 42, sitesPerBlock, 0.2);
+        assertEquals("1-1000", alignment.getBlockFilter(0));
+
+        double identityBorrowed = getIdentity(alignment, receiver, donor, 0, sitesPerBlock);
+        for (int b=1; b<N_BLOCKS; b++)
+            assertTrue(identityBorrowed > getIdentity(alignment, receiver, donor, b, sitesPerBlock) + 0.1);
+    }
+
+    @Test
+    public void testClockRate() {
+        int sitesPerBlock = 200;
+        SimulatedBlockAlignment slow = simulate(1, 42, sitesPerBlock, 0.001);
+        SimulatedBlockAlignment fast = simulate(1, 42, sitesPerBlock, 1.0);
+
+        // The branch lengths are scaled by the clock rate
+        for (int b=0; b<N_BLOCKS; b++) {
+            assertTrue(getIdentity(slow, "1", "5", b, sitesPerBlock) > 0.9);
+            assertTrue(getIdentity(fast, "1", "5", b, sitesPerBlock) < 0.5);
+        }
+    }
+
+}
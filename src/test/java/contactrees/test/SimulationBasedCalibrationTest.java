@@ -0,0 +1,135 @@
+package contactrees.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.inference.Logger;
+import beast.base.inference.MCMC;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.spec.domain.UnitInterval;
+import beast.base.spec.inference.parameter.RealScalarParam;
+import contactrees.Block;
+import contactrees.BlockSet;
+import contactrees.ConversionGraph;
+import contactrees.model.ConversionMovePrior;
+import contactrees.operators.ResampleBorrowings;
+
+/**
+ * Test the rank statistics of the SimulationBasedCalibration and a small
+ * end-to-end run (draw the truth, restart and run the chains, rank).
+ *
+ * @author Nico Neureiter
+ */
+public class SimulationBasedCalibrationTest extends ContactreesTest {
+
+    /**
+     * @return a worker sampling the block moves of a fixed ACG from the
+     * ConversionMovePrior, using the ResampleBorrowings operator.
+     */
+    SBCChain sbcChain(int i, ConversionGraph acg, BlockSet blockSet) {
+        acg.setID("acg." + i);
+        List<StateNode> stateNodes = new ArrayList<>();
+        stateNodes.add(acg);
+        for (Block block : blockSet.getBlocks()) {
+            block.setID("block." + i + "." + stateNodes.size());
+            stateNodes.add(block);
+        }
+
+        State state = new State();
+        state.initByName("stateNode", stateNodes);
+
+        RealScalarParam<UnitInterval> pMove = new RealScalarParam<>(0.3, UnitInterval.INSTANCE);
+        pMove.setID("pMove." + i);
+        ConversionMovePrior prior = new ConversionMovePrior();
+        prior.initByName("network", acg, "blockSet", blockSet, "pMove", pMove);
+
+        ResampleBorrowings operator = new ResampleBorrowings();
+        operator.initByName("acg", acg, "blockSet", blockSet, "pMove", pMove, "weight", 1.0);
+
+        Logger logger = new Logger();
+        logger.initByName("log", acg, "logEvery", 1000);
+
+        MCMC mcmc = new MCMC();
+        mcmc.initByName(
+                "chainLength", 1L,
+                "state", state,
+                "distribution", prior,
+                "operator", operator,
+                "logger", logger);
+        mcmc.setID("chain." + i);
+
+        SBCChain chain = new SBCChain();
+        chain.initByName("mcmc", mcmc, "prior", prior);
+        return chain;
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        int nReplicates = 20;
+        SimulationBasedCalibration sbc = new SimulationBasedCalibration();
+        sbc.initByName(
+                "chain", sbcChain(0, acg, blockSet),
+                "chain", sbcChain(1, acg2, blockSet2),
+                "replicates", nReplicates,
+                "chainLength", 50L,
+                "thin", 5,
+                "bins", 5,
+                "seed", 1L);
+        sbc.run();
+
+        // One rank per replicate and summary statistic, in {0, ..., chainLength/thin}
+        assertEquals(10, sbc.maxRank);
+        assertEquals(nReplicates, sbc.ranks.length);
+        boolean movesVary = false;
+        for (int[] replicateRanks : sbc.ranks) {
+            assertEquals(SBCChain.SUMMARY_NAMES.length, replicateRanks.length);
+            for (int rank : replicateRanks)
+                assertTrue(rank >= 0 && rank <= sbc.maxRank);
+            movesVary |= replicateRanks[1] != sbc.ranks[0][1];
+        }
+        assertTrue(movesVary);
+    }
+
+    @Test
+    public void testRank() {
+        Random random = new Random(1);
+        double[] samples = {0.5, 1.5, 2.5, 3.5};
+
+        assertEquals(0, SimulationBasedCalibration.rank(0.0, samples, random));
+        assertEquals(2, SimulationBasedCalibration.rank(2.0, samples, random));
+        assertEquals(4, SimulationBasedCalibration.rank(4.0, samples, random));
+
+        // Ties are broken uniformly
+        double[] discreteSamples = {1, 1, 1, 2};
+        int[] counts = new int[5];
+        for (int i=0; i<4000; i++)
+            counts[SimulationBasedCalibration.rank(1.0, discreteSamples, random)]++;
+        for (int r=0; r<=3; r++)
+            assertTrue(Math.abs(counts[r] - 1000) < 150);
+        assertEquals(0, counts[4]);
+    }
+
+    @Test
+    public void testUniformityTest() {
+        Random random = new Random(1);
+        int maxRank = 19;
+
+        int[] uniformRanks = new int[2000];
+        for (int i=0; i<uniformRanks.length; i++)
+            uniformRanks[i] = random.nextInt(maxRank + 1);
+        assertTrue(SimulationBasedCalibration.uniformityTest(uniformRanks, maxRank, 10)[1] > 0.001);
+
+        int[] skewedRanks = new int[2000];
+        for (int i=0; i<skewedRanks.length; i++)
+            skewedRanks[i] = Math.min(random.nextInt(maxRank + 1), random.nextInt(maxRank + 1));
+        assertTrue(SimulationBasedCalibration.uniformityTest(skewedRanks, maxRank, 10)[1] < 0.001);
+    }
+
+}
@@ -0,0 +1,261 @@
+package contactrees.test.operators;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.spec.domain.NonNegativeReal;
+import beast.base.spec.domain.UnitInterval;
+import beast.base.spec.evolution.likelihood.TreeLikelihood;
+import beast.base.spec.evolution.sitemodel.SiteModel;
+import beast.base.spec.evolution.substitutionmodel.JukesCantor;
+import beast.base.spec.inference.parameter.RealScalarParam;
+import beast.base.util.Randomizer;
+import contactrees.Block;
+import contactrees.Conversion;
+import contactrees.MarginalNode;
+import contactrees.MarginalTree;
+import contactrees.model.ConversionPrior;
+import contactrees.operators.AddRemoveConversionGibbs;
+import contactrees.operators.GibbsSampleMovesPerConversion;
+import contactrees.test.ContactreesTest;
+
+/**
+ * Test that the parallel and the batched Gibbs evaluation of the blocks in the
+ * BorrowingOperator (also on compact marginal trees) give the same results as
+ * the sequential one.
+ *
+ * @author Nico Neureiter
+ */
+public class BorrowingOperatorTest extends ContactreesTest {
+
+    List<TreeLikelihood> getTreeLikelihoods() {
+        return getTreeLikelihoods(false);
+    }
+
+    List<TreeLikelihood> getTreeLikelihoods(boolean compact) {
+        Alignment alignment = getAlignment(acg2.getLeafNodeCount());
+        JukesCantor jc = new JukesCantor();
+        jc.initByName();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("substModel", jc);
+
+        List<TreeLikelihood> treeLHs = new ArrayList<>();
+        for (Block block : blockSet2) {
+            MarginalTree marginalTree = new MarginalTree();
+            marginalTree.initByName("network", acg2, "block", block, "nodetype", MarginalNode.class.getName(),
+                    "compact", compact);
+            TreeLikelihood treeLH = new TreeLikelihood();
+            treeLH.initByName("data", alignment, "tree", marginalTree, "siteModel", siteModel);
+            treeLH.calculateLogP();
+            treeLHs.add(treeLH);
+        }
+        return treeLHs;
+    }
+
+    GibbsSampleMovesPerConversion getOperator(List<TreeLikelihood> treeLHs, int threads) {
+        GibbsSampleMovesPerConversion operator = new GibbsSampleMovesPerConversion();
+        operator.initByName(
+                "acg", acg2,
+                "blockSet", blockSet2,
+                "pMove", new RealScalarParam<>(0.3, UnitInterval.INSTANCE),
+                "treeLikelihood", treeLHs,
+                "threads", threads,
+                "weight", 1.0);
+        return operator;
+    }
+
+    AddRemoveConversionGibbs getAddRemoveOperator(List<TreeLikelihood> treeLHs, ConversionPrior prior,
+                                                  RealScalarParam<NonNegativeReal> conversionRate, int threads) {
+        AddRemoveConversionGibbs operator = new AddRemoveConversionGibbs();
+        operator.initByName(
+                "acg", acg2,
+                "blockSet", blockSet2,
+                "pMove", new RealScalarParam<>(0.3, UnitInterval.INSTANCE),
+                "conversionRate", conversionRate,
+                "conversionPrior", prior,
+                "treeLikelihood", treeLHs,
+                "threads", threads,
+                "weight", 1.0);
+        return operator;
+    }
+
+    /**
+     * @return the (sorted) moves of all blocks.
+     */
+    List<List<Integer>> getMoves() {
+        List<List<Integer>> moves = new ArrayList<>();
+        for (Block block : blockSet2) {
+            List<Integer> blockMoves = new ArrayList<>(block.getConversionIDs());
+            Collections.sort(blockMoves);
+            moves.add(blockMoves);
+        }
+        return moves;
+    }
+
+    void setMoves(List<List<Integer>> moves) {
+        for (int i=0; i<moves.size(); i++) {
+            Block block = blockSet2.get(i);
+            block.removeAllMoves();
+            for (int convID : moves.get(i))
+                block.addMove(acg2.getConversions().get(convID));
+        }
+    }
+
+    /**
+     * Bring the marginal trees and likelihoods up to date with the moves.
+     */
+    void updateLikelihoods(List<TreeLikelihood> treeLHs) {
+        for (TreeLikelihood treeLH : treeLHs) {
+            ((MarginalTree) treeLH.treeInput.get()).recalculate();
+            treeLH.calculateLogP();
+        }
+    }
+
+    @Test
+    public void testParallelEvaluation() {
+        blockSet2.get(0).addMove(conv2_1);
+        blockSet2.get(3).addMove(conv2_2);
+        blockSet2.get(5).addMove(conv2_1);
+        blockSet2.get(5).addMove(conv2_3);
+        List<List<Integer>> initialMoves = getMoves();
+
+        List<TreeLikelihood> treeLHs = getTreeLikelihoods();
+        GibbsSampleMovesPerConversion sequential = getOperator(treeLHs, 1);
+        GibbsSampleMovesPerConversion parallel = getOperator(treeLHs, 3);
+
+        for (Conversion conv : new Conversion[] {conv2_1, conv2_2, conv2_3}) {
+            for (long seed=1; seed<=5; seed++) {
+                setMoves(initialMoves);
+                double logPSequential = sequential.getBorrowingsProbGibbs(conv, true);
+                setMoves(initialMoves);
+                double logPParallel = parallel.getBorrowingsProbGibbs(conv, true);
+                assertEquals(logPSequential, logPParallel, EPS);
+
+                setMoves(initialMoves);
+                Randomizer.setSeed(seed);
+                logPSequential = sequential.drawBorrowingsGibbs(conv, true);
+                List<List<Integer>> movesSequential = getMoves();
+
+                setMoves(initialMoves);
+                Randomizer.setSeed(seed);
+                logPParallel = parallel.drawBorrowingsGibbs(conv, true);
+                List<List<Integer>> movesParallel = getMoves();
+
+                assertEquals(logPSequential, logPParallel, EPS);
+                assertEquals(movesSequential, movesParallel);
+                assertEquals(blockSet2.countMoves(), movesParallel.stream().mapToInt(List::size).sum());
+            }
+        }
+
+        // The worker threads are re-created after a shutdown
+        parallel.shutdownExecutor();
+        setMoves(initialMoves);
+        double logPSequential = sequential.getBorrowingsProbGibbs(conv2_1, true);
+        setMoves(initialMoves);
+        assertEquals(logPSequential, parallel.getBorrowingsProbGibbs(conv2_1, true), EPS);
+        parallel.shutdownExecutor();
+    }
+
+    @Test
+    public void testBatchedEvaluation() {
+        // Blocks 1, 2 and 6 share their moves (and marginal trees)
+        blockSet2.get(0).addMove(conv2_1);
+        blockSet2.get(1).addMove(conv2_2);
+        blockSet2.get(1).addMove(conv2_3);
+        blockSet2.get(2).addMove(conv2_3);
+        blockSet2.get(2).addMove(conv2_2);
+        blockSet2.get(6).addMove(conv2_2);
+        blockSet2.get(6).addMove(conv2_3);
+        List<List<Integer>> initialMoves = getMoves();
+
+        List<TreeLikelihood> treeLHs = getTreeLikelihoods();
+        for (int threads : new int[] {1, 3}) {
+            GibbsSampleMovesPerConversion operator = getOperator(treeLHs, threads);
+
+            for (Conversion conv : new Conversion[] {conv2_1, conv2_2, conv2_3}) {
+                for (long seed=1; seed<=5; seed++) {
+                    setMoves(initialMoves);
+                    updateLikelihoods(treeLHs);
+                    double logPUnbatched = operator.getBorrowingsProbGibbs(conv, false);
+                    updateLikelihoods(treeLHs);
+                    double logPBatched = operator.getBorrowingsProbGibbsBatched(conv);
+                    assertEquals(logPUnbatched, logPBatched, EPS);
+                    assertEquals(initialMoves, getMoves());
+
+                    setMoves(initialMoves);
+                    updateLikelihoods(treeLHs);
+                    Randomizer.setSeed(seed);
+                    logPUnbatched = operator.drawBorrowingsGibbs(conv, false);
+                    List<List<Integer>> movesUnbatched = getMoves();
+
+                    setMoves(initialMoves);
+                    updateLikelihoods(treeLHs);
+                    Randomizer.setSeed(seed);
+                    logPBatched = operator.drawBorrowingsGibbsBatched(conv);
+
+                    assertEquals(logPUnbatched, logPBatched, EPS);
+                    assertEquals(movesUnbatched, getMoves());
+                }
+            }
+            operator.shutdownExecutor();
+        }
+    }
+
+    @Test
+    public void testCompactParallelAddRemove() {
+        // Object-based marginal trees for the sequential reference, compact
+        // marginal trees (built from the arrays view) for the parallel operator
+        List<TreeLikelihood> treeLHs = getTreeLikelihoods(false);
+        List<TreeLikelihood> compactTreeLHs = getTreeLikelihoods(true);
+
+        RealScalarParam<NonNegativeReal> conversionRate = new RealScalarParam<>(1.0, NonNegativeReal.INSTANCE);
+        ConversionPrior prior = new ConversionPrior();
+        prior.initByName("network", acg2, "conversionRate", conversionRate);
+        AddRemoveConversionGibbs sequential = getAddRemoveOperator(treeLHs, prior, conversionRate, 1);
+        AddRemoveConversionGibbs parallel = getAddRemoveOperator(compactTreeLHs, prior, conversionRate, 3);
+
+        for (long seed=1; seed<=10; seed++) {
+            Set<Integer> convIDs = new HashSet<>();
+            for (Conversion conv : acg2.getConversions())
+                convIDs.add(conv.getID());
+
+            // Adding a conversion only edits the conversions, so the arrays
+            // view is outdated while the CF events are not
+            updateLikelihoods(compactTreeLHs);
+            Randomizer.setSeed(seed);
+            double logPAdd = parallel.drawNewConversion();
+            Conversion newConv = null;
+            for (Conversion conv : acg2.getConversions()) {
+                if (!convIDs.contains(conv.getID()))
+                    newConv = conv;
+            }
+            assertNotNull(newConv);
+            assertFalse(acg2.isInvalid());
+
+            updateLikelihoods(treeLHs);
+            updateLikelihoods(compactTreeLHs);
+            assertEquals(sequential.getConversionProb(newConv), logPAdd, EPS);
+            for (int i=0; i<treeLHs.size(); i++)
+                assertEquals(treeLHs.get(i).getCurrentLogP(), compactTreeLHs.get(i).getCurrentLogP(), EPS);
+
+            // Remove it again
+            assertEquals(logPAdd, parallel.getConversionProb(newConv), EPS);
+            acg2.removeConversion(newConv);
+            blockSet2.removeConversion(newConv);
+            assertEquals(3, acg2.getConvCount());
+        }
+
+        parallel.shutdownExecutor();
+    }
+
+}